@@ -0,0 +1,147 @@
+package com.example.android.monstergarage;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.ContextThemeWrapper;
+import android.view.LayoutInflater;
+import android.widget.FrameLayout;
+
+import com.example.android.monstergarage.benchmark.Benchmark;
+import com.example.android.monstergarage.benchmark.BenchmarkReport;
+import com.example.android.monstergarage.table_data.CarWriteBuffer;
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks binding rows in CarCursorAdapter, with lists of 1k, 10k and 100k cars.
+ * Every run binds each row of the list once into the same ViewHolder, on the main thread.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarCursorAdapterBenchmark {
+
+    private static final int RUNS = 5;
+    private static final long SWAP_TIMEOUT_MS = 30000;
+
+    private static final String[] COLUMNS = {CarEntry._ID, CarEntry.COLUMN_CAR_MAKE,
+            CarEntry.COLUMN_CAR_MODEL, CarEntry.COLUMN_CAR_YEAR, CarEntry.COLUMN_CAR_COLOR,
+            CarEntry.COLUMN_CAR_PLATE};
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("CarCursorAdapterBenchmark");
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        //The row layout uses theme attributes, so inflate it with the app theme
+        mContext = new ContextThemeWrapper(InstrumentationRegistry.getTargetContext(), R.style.AppTheme);
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write(InstrumentationRegistry.getTargetContext());
+    }
+
+    @Test
+    public void bindRows() throws Exception {
+        for (final int rows : Benchmark.ROW_COUNTS) {
+            final CarCursorAdapter adapter = new CarCursorAdapter(LayoutInflater.from(mContext),
+                    CarWriteBuffer.getInstance(mContext), new CarCursorAdapter.OnCarClickListener() {
+                        @Override
+                        public void onCarClick(long id) {
+                        }
+                    });
+            final CarPage[] pages = buildPages(rows);
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    adapter.swapPages(pages);
+                }
+            });
+            //The loader would close its own reference, the adapter keeps the one it took
+            for (CarPage page : pages) {
+                page.cursor.close();
+            }
+            waitForItemCount(adapter, rows);
+
+            final Benchmark.Result[] result = new Benchmark.Result[1];
+            final Exception[] error = new Exception[1];
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    final CarCursorAdapter.ViewHolder holder =
+                            adapter.onCreateViewHolder(new FrameLayout(mContext), 0);
+                    try {
+                        result[0] = Benchmark.measure("bind", rows, RUNS, rows, new Benchmark.Step() {
+                            @Override
+                            public void run() {
+                                for (int position = 0; position < rows; position++) {
+                                    adapter.onBindViewHolder(holder, position);
+                                }
+                            }
+                        });
+                    } catch (Exception e) {
+                        error[0] = e;
+                    } finally {
+                        adapter.close();
+                    }
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            sReport.add(result[0]);
+        }
+    }
+
+    /**
+     * Splits the given number of cars into pages the way CarListPager would load them
+     */
+    private static CarPage[] buildPages(int rows) {
+        int pageCount = (rows + CarListPager.PAGE_SIZE - 1) / CarListPager.PAGE_SIZE;
+        CarPage[] pages = new CarPage[pageCount];
+        long id = 1;
+        for (int page = 0; page < pageCount; page++) {
+            MatrixCursor cursor = new MatrixCursor(COLUMNS, CarListPager.PAGE_SIZE);
+            for (int row = 0; row < CarListPager.PAGE_SIZE && id <= rows; row++, id++) {
+                cursor.addRow(new Object[] {id, "Make" + (id % 20), "Model" + (id % 50),
+                        1980 + id % 40, CarEntry.COLOR_RED, "BEN" + id});
+            }
+            pages[page] = CarPage.of(new CarPageCursor(cursor, CarEntry._ID));
+        }
+        return pages;
+    }
+
+    /**
+     * Waits for the background diff started by swapPages() to be applied on the main thread
+     */
+    private void waitForItemCount(final CarCursorAdapter adapter, int expected) {
+        final int[] count = new int[1];
+        long deadline = SystemClock.uptimeMillis() + SWAP_TIMEOUT_MS;
+        do {
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    count[0] = adapter.getItemCount();
+                }
+            });
+            if (count[0] == expected) {
+                return;
+            }
+            SystemClock.sleep(10);
+        } while (SystemClock.uptimeMillis() < deadline);
+        fail("Adapter did not show " + expected + " rows in time, it shows " + count[0]);
+    }
+}
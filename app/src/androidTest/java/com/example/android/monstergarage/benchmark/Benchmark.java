@@ -0,0 +1,128 @@
+package com.example.android.monstergarage.benchmark;
+
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+
+import org.junit.Assume;
+
+import java.util.Arrays;
+
+/**
+ * A small benchmark harness for instrumentation tests.
+ *
+ * A benchmark is a Step that is run a number of times after a few warm-up runs. Only run() is
+ * timed, setUp() prepares each run without being counted. Each result is reported in
+ * nanoseconds per operation, where a run may perform any number of operations.
+ * One more run after the timed ones counts the objects run() allocates on its thread, so the
+ * cost of counting never shows up in the timings.
+ *
+ * Benchmarks are skipped unless the instrumentation is started with the argument benchmark=true,
+ * e.g. ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+ */
+public final class Benchmark {
+
+    //Table sizes every data layer benchmark is run at
+    public static final int[] ROW_COUNTS = {1000, 10000, 100000};
+
+    private static final int WARMUP_RUNS = 3;
+
+    private Benchmark() {}
+
+    /**
+     * One measured piece of work
+     */
+    public abstract static class Step {
+        /**
+         * Prepares the next run, not timed
+         */
+        public void setUp() throws Exception {}
+
+        /**
+         * The timed work
+         */
+        public abstract void run() throws Exception;
+    }
+
+    /**
+     * Timings of one benchmark at one table size, in nanoseconds per operation
+     */
+    public static final class Result {
+        public final String name;
+        public final int rows;
+        public final int runs;
+        public final int operationsPerRun;
+        public final long minNanos;
+        public final long medianNanos;
+        public final long p90Nanos;
+        public final long meanNanos;
+        //Objects allocated on the benchmark thread per operation
+        public final long allocationsPerOperation;
+
+        Result(String name, int rows, int operationsPerRun, long[] runNanos, long allocationsPerRun) {
+            this.name = name;
+            this.rows = rows;
+            this.runs = runNanos.length;
+            this.operationsPerRun = operationsPerRun;
+
+            long[] sorted = runNanos.clone();
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long nanos : sorted) {
+                total += nanos;
+            }
+            minNanos = sorted[0] / operationsPerRun;
+            medianNanos = sorted[sorted.length / 2] / operationsPerRun;
+            p90Nanos = sorted[(sorted.length * 9) / 10] / operationsPerRun;
+            meanNanos = total / sorted.length / operationsPerRun;
+            allocationsPerOperation = allocationsPerRun / operationsPerRun;
+        }
+    }
+
+    /**
+     * Skips the calling test unless benchmarks were asked for
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks run only with the benchmark=true instrumentation argument",
+                "true".equals(InstrumentationRegistry.getArguments().getString("benchmark")));
+    }
+
+    /**
+     * Runs the step WARMUP_RUNS times untimed, then measures it for the given number of runs
+     * @param operationsPerRun how many operations a single run() performs
+     */
+    public static Result measure(String name, int rows, int runs, int operationsPerRun, Step step)
+            throws Exception {
+        if (runs < 1 || operationsPerRun < 1) {
+            throw new IllegalArgumentException("A benchmark needs at least one run and one operation");
+        }
+        for (int run = 0; run < WARMUP_RUNS; run++) {
+            step.setUp();
+            step.run();
+        }
+
+        long[] runNanos = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            step.setUp();
+            long start = System.nanoTime();
+            step.run();
+            runNanos[run] = System.nanoTime() - start;
+        }
+        return new Result(name, rows, operationsPerRun, runNanos, countAllocations(step));
+    }
+
+    /**
+     * Runs the step once more, counting the objects allocated on this thread while it runs
+     */
+    @SuppressWarnings("deprecation")
+    private static long countAllocations(Step step) throws Exception {
+        step.setUp();
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            step.run();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return Debug.getThreadAllocCount();
+    }
+}
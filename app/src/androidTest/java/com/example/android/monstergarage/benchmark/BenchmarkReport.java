@@ -0,0 +1,91 @@
+package com.example.android.monstergarage.benchmark;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Collects the results of one benchmark class and writes them as a JSON report to
+ * files/benchmarks/<suite>.json in the app's private storage, where CI can pull it with
+ * adb shell run-as com.example.android.monstergarage cat files/benchmarks/<suite>.json
+ *
+ * Every result is also logged as one line of JSON under the GarageBenchmark tag.
+ */
+public final class BenchmarkReport {
+
+    private static final String LOG_TAG = "GarageBenchmark";
+
+    private final String mSuite;
+    private final ArrayList<Benchmark.Result> mResults = new ArrayList<>();
+
+    public BenchmarkReport(String suite) {
+        mSuite = suite;
+    }
+
+    public synchronized void add(Benchmark.Result result) {
+        mResults.add(result);
+        try {
+            Log.i(LOG_TAG, toJson(result).toString());
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Could not log result " + result.name, e);
+        }
+    }
+
+    /**
+     * Writes every result added so far, does nothing when no benchmark ran
+     */
+    public synchronized void write(Context context) throws IOException, JSONException {
+        if (mResults.isEmpty()) {
+            return;
+        }
+
+        JSONObject report = new JSONObject();
+        report.put("suite", mSuite);
+        report.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("timestamp", System.currentTimeMillis());
+        JSONArray results = new JSONArray();
+        for (Benchmark.Result result : mResults) {
+            results.put(toJson(result));
+        }
+        report.put("results", results);
+
+        File directory = new File(context.getFilesDir(), "benchmarks");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, mSuite + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(report.toString(2));
+        } finally {
+            writer.close();
+        }
+        Log.i(LOG_TAG, "Wrote " + mResults.size() + " results to " + file);
+    }
+
+    private static JSONObject toJson(Benchmark.Result result) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("name", result.name);
+        json.put("rows", result.rows);
+        json.put("runs", result.runs);
+        json.put("operations_per_run", result.operationsPerRun);
+        json.put("min_ns", result.minNanos);
+        json.put("median_ns", result.medianNanos);
+        json.put("p90_ns", result.p90Nanos);
+        json.put("mean_ns", result.meanNanos);
+        json.put("allocations_per_op", result.allocationsPerOperation);
+        return json;
+    }
+}
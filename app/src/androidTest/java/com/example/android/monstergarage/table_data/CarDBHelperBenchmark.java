@@ -0,0 +1,113 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.monstergarage.benchmark.Benchmark;
+import com.example.android.monstergarage.benchmark.BenchmarkReport;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks creating garage.db from scratch, and opening an existing one holding
+ * 1k, 10k and 100k cars through CarDBHelper.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarDBHelperBenchmark {
+
+    private static final String TEST_DATABASE = "benchmark_helper.db";
+    private static final int RUNS = 10;
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("CarDBHelperBenchmark");
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        if (mContext != null) {
+            mContext.deleteDatabase(TEST_DATABASE);
+        }
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write(InstrumentationRegistry.getTargetContext());
+    }
+
+    @Test
+    public void createFreshDatabase() throws Exception {
+        sReport.add(Benchmark.measure("create", 0, RUNS, 1, new Benchmark.Step() {
+            @Override
+            public void setUp() {
+                mContext.deleteDatabase(TEST_DATABASE);
+            }
+
+            @Override
+            public void run() {
+                //Runs onCreate() and every migration step
+                CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+                helper.getWritableDatabase();
+                helper.close();
+            }
+        }));
+    }
+
+    @Test
+    public void openExistingDatabase() throws Exception {
+        int seededRows = 0;
+        for (final int rows : Benchmark.ROW_COUNTS) {
+            seedTo(seededRows, rows);
+            seededRows = rows;
+
+            sReport.add(Benchmark.measure("open", rows, RUNS, 1, new Benchmark.Step() {
+                @Override
+                public void run() {
+                    //Opening and the first read, which is what the app waits for on launch
+                    CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+                    SQLiteDatabase db = helper.getReadableDatabase();
+                    assertEquals(rows, DatabaseUtils.queryNumEntries(db, GarageContract.CarEntry.TABLE_NAME));
+                    helper.close();
+                }
+            }));
+        }
+    }
+
+    private void seedTo(int fromRows, int toRows) {
+        CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO cars (make, model, year, color, plate, plate_key) VALUES (?, ?, ?, 0, ?4, ?4)");
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = fromRows; i < toRows; i++) {
+                insert.bindString(1, "Make" + (i % 20));
+                insert.bindString(2, "Model" + (i % 50));
+                insert.bindLong(3, 1980 + i % 40);
+                insert.bindString(4, "BEN" + i);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            helper.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that readers keep making progress while a bulk writer holds a long transaction
+ * open on garage.db, which only holds in WAL mode.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarDBHelperConcurrencyTest {
+
+    private static final String TEST_DATABASE = "concurrency_test.db";
+    private static final int EXISTING_CARS = 500;
+    private static final int READER_THREADS = 3;
+    private static final int READS_PER_THREAD = 50;
+
+    private Context mContext;
+    private CarDBHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE);
+        mHelper = new CarDBHelper(mContext, TEST_DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(TEST_DATABASE);
+    }
+
+    @Test
+    public void databaseIsInWalMode() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null).toLowerCase());
+        assertEquals(CarDBHelper.Tuning.SYNCHRONOUS_NORMAL,
+                DatabaseUtils.longForQuery(db, "PRAGMA synchronous", null));
+    }
+
+    @Test
+    public void readersProgressWhileBulkWriterIsActive() throws Exception {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertCars(db, 0, EXISTING_CARS);
+
+        final CountDownLatch writerInTransaction = new CountDownLatch(1);
+        final CountDownLatch readsFinished = new CountDownLatch(READER_THREADS);
+        final AtomicInteger readsDuringWrite = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(READER_THREADS + 1);
+        try {
+            //The writer keeps inserting inside one open transaction until every reader is done
+            Future<Boolean> writer = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    db.beginTransactionNonExclusive();
+                    try {
+                        int next = EXISTING_CARS;
+                        insertCars(db, next, 100);
+                        next += 100;
+                        writerInTransaction.countDown();
+                        while (!readsFinished.await(0, TimeUnit.MILLISECONDS)) {
+                            insertCars(db, next, 100);
+                            next += 100;
+                            if (next > EXISTING_CARS + 200000) {
+                                //Readers never finished, they were blocked by this transaction
+                                return false;
+                            }
+                        }
+                        db.setTransactionSuccessful();
+                        return true;
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            });
+
+            assertTrue(writerInTransaction.await(10, TimeUnit.SECONDS));
+
+            for (int thread = 0; thread < READER_THREADS; thread++) {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int read = 0; read < READS_PER_THREAD; read++) {
+                                //Readers only ever see committed rows
+                                long count = DatabaseUtils.queryNumEntries(db, GarageContract.CarEntry.TABLE_NAME);
+                                if (count == EXISTING_CARS) {
+                                    readsDuringWrite.incrementAndGet();
+                                }
+                            }
+                        } finally {
+                            readsFinished.countDown();
+                        }
+                    }
+                });
+            }
+
+            assertTrue("Readers were blocked by the writer", writer.get(60, TimeUnit.SECONDS));
+            assertEquals(READER_THREADS * READS_PER_THREAD, readsDuringWrite.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void insertCars(SQLiteDatabase db, int firstPlate, int count) {
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO cars (make, model, year, color, plate, plate_key) VALUES ('Ford', 'Focus', 2004, 0, ?1, ?1)");
+        try {
+            for (int i = 0; i < count; i++) {
+                insert.bindString(1, "PLATE" + (firstPlate + i));
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Upgrades a hand built version 1 garage database through CarDBHelper's migration steps
+ * and checks the resulting schema and data.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarDBHelperMigrationTest {
+
+    private static final String TEST_DATABASE = "migration_test.db";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(TEST_DATABASE);
+    }
+
+    @Test
+    public void upgradeFromVersion1ConvertsYearAndAddsIndexes() {
+        SQLiteDatabase v1 = mContext.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+        v1.execSQL("CREATE TABLE cars(_id INTEGER PRIMARY KEY AUTOINCREMENT, make TEXT NOT NULL, "
+                + "model TEXT NOT NULL, year TEXT NOT NULL, color INTEGER NOT NULL, plate TEXT NOT NULL);");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Ford', 'Focus', ' 2004 ', 0, 'ABC123');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Kia', 'Rio', '2011', 0, 'ABC123');");
+        v1.setVersion(1);
+        v1.close();
+
+        CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            Cursor cursor = db.rawQuery("SELECT typeof(year), year, plate FROM cars ORDER BY _id", null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals("integer", cursor.getString(0));
+                assertEquals(2004, cursor.getInt(1));
+                assertEquals("ABC123", cursor.getString(2));
+                assertTrue(cursor.moveToNext());
+                assertEquals(2011, cursor.getInt(1));
+                assertEquals("ABC123-2", cursor.getString(2));
+            } finally {
+                cursor.close();
+            }
+
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_PLATE));
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_MAKE_MODEL_YEAR));
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_YEAR));
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_COLOR));
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_DELETED));
+            assertTrue(CarDBHelper.isPlateKeyIndexUnique(db));
+            //Switching would rewrite the whole file, so a garage upgraded with cars keeps its mode
+            assertFalse(CarDBHelper.isIncrementalVacuum(db));
+
+            try {
+                db.execSQL("INSERT INTO cars (make, model, year, color, plate, plate_key) VALUES ('VW', 'Golf', 2015, 0, 'abc-123', 'ABC123');");
+                fail("Plate should be unique after the upgrade");
+            } catch (SQLiteConstraintException expected) {
+                // Duplicate plates are rejected by the unique index
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void freshDatabaseMatchesUpgradedSchema() {
+        CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_PLATE));
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_MAKE_MODEL_YEAR));
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_YEAR));
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_COLOR));
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_DELETED));
+            assertTrue(CarDBHelper.isPlateKeyIndexUnique(db));
+            //A new database gets incremental auto_vacuum before it holds any cars
+            assertTrue(CarDBHelper.isIncrementalVacuum(db));
+
+            db.execSQL("INSERT INTO cars (make, model, year, color, plate, plate_key) VALUES ('VW', 'Golf', '2015', 0, 'XYZ', 'XYZ');");
+            Cursor cursor = db.rawQuery("SELECT typeof(year) FROM cars", null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals("integer", cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void duplicatePlateKeysAreMergedAfterTheUpgrade() {
+        SQLiteDatabase v1 = mContext.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+        v1.execSQL("CREATE TABLE cars(_id INTEGER PRIMARY KEY AUTOINCREMENT, make TEXT NOT NULL, "
+                + "model TEXT NOT NULL, year TEXT NOT NULL, color INTEGER NOT NULL, plate TEXT NOT NULL);");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Ford', 'Focus', '2004', 0, 'AB-123');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Kia', 'Rio', '2011', 0, 'CD 456');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Opel', 'Astra', '2010', 0, 'ab 123');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('VW', 'Golf', '2015', 0, 'AB123');");
+        v1.setVersion(1);
+        v1.close();
+
+        CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            //Upgraded with the duplicates still there, so the key index starts out plain
+            assertTrue(indexExists(db, CarDBHelper.INDEX_CARS_PLATE_KEY));
+            assertFalse(CarDBHelper.isPlateKeyIndexUnique(db));
+
+            assertEquals(2, new CarMaintenance(helper, null).dedupePlatesNow());
+
+            assertTrue(CarDBHelper.isPlateKeyIndexUnique(db));
+            //The oldest car stays, with the values of the newest
+            Cursor cursor = db.rawQuery("SELECT _id, make, plate, plate_key FROM cars ORDER BY _id", null);
+            try {
+                assertEquals(2, cursor.getCount());
+                assertTrue(cursor.moveToFirst());
+                assertEquals(1, cursor.getLong(0));
+                assertEquals("VW", cursor.getString(1));
+                assertEquals("AB123", cursor.getString(2));
+                assertEquals("AB123", cursor.getString(3));
+                assertTrue(cursor.moveToNext());
+                assertEquals("CD456", cursor.getString(3));
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void upgradedCarsPassTheValidator() {
+        SQLiteDatabase v1 = mContext.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+        v1.execSQL("CREATE TABLE cars(_id INTEGER PRIMARY KEY AUTOINCREMENT, make TEXT NOT NULL, "
+                + "model TEXT NOT NULL, year TEXT NOT NULL, color INTEGER NOT NULL, plate TEXT NOT NULL);");
+        //Unreadable and impossible years, and a duplicate of a plate already at the length limit
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Ford', 'Focus', 'new', -65536, 'ABCDEFGH-1234567');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Kia', 'Rio', '1700', -1, 'ABCDEFGH-1234567');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Opel', 'Astra', '2010', 0, 'CD 456');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('VW', 'Golf', '2015', 0, 'CD 456');");
+        v1.setVersion(1);
+        v1.close();
+
+        CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            Cursor cursor = db.rawQuery("SELECT make, model, year, color, plate FROM cars ORDER BY _id", null);
+            try {
+                assertEquals(4, cursor.getCount());
+                while (cursor.moveToNext()) {
+                    ContentValues car = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, car);
+                    //Throws for any car the editor could not save again as it is
+                    CarValidator.validateNewCar(car);
+                }
+                assertTrue(cursor.moveToFirst());
+                assertEquals(CarValidator.MIN_YEAR, cursor.getInt(2));
+                assertTrue(cursor.moveToNext());
+                assertEquals("ABCDEFGH-12345-2", cursor.getString(4));
+                assertTrue(cursor.moveToLast());
+                assertEquals("CD 456-4", cursor.getString(4));
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void duplicatePlateIsNotRenamedToAPlateInUse() {
+        SQLiteDatabase v1 = mContext.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+        v1.execSQL("CREATE TABLE cars(_id INTEGER PRIMARY KEY AUTOINCREMENT, make TEXT NOT NULL, "
+                + "model TEXT NOT NULL, year TEXT NOT NULL, color INTEGER NOT NULL, plate TEXT NOT NULL);");
+        //The second car's usual new plate "AB-2" is the third car's
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Ford', 'Focus', '2004', 0, 'AB');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Kia', 'Rio', '2011', 0, 'AB');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Opel', 'Astra', '2010', 0, 'AB-2');");
+        v1.setVersion(1);
+        v1.close();
+
+        CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            Cursor cursor = db.rawQuery("SELECT plate FROM cars ORDER BY _id", null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals("AB", cursor.getString(0));
+                assertTrue(cursor.moveToNext());
+                assertEquals("AB-2-2", cursor.getString(0));
+                assertTrue(cursor.moveToNext());
+                assertEquals("AB-2", cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+            assertTrue(CarDBHelper.isPlateKeyIndexUnique(db));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void argbColorsBecomeColorIdsAfterTheUpgrade() {
+        SQLiteDatabase v1 = mContext.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+        v1.execSQL("CREATE TABLE cars(_id INTEGER PRIMARY KEY AUTOINCREMENT, make TEXT NOT NULL, "
+                + "model TEXT NOT NULL, year TEXT NOT NULL, color INTEGER NOT NULL, plate TEXT NOT NULL);");
+        //Red, White (also what Other was stored as), Gray (also Silver) and a value no color has
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Ford', 'Focus', '2004', -65536, 'A1');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Kia', 'Rio', '2011', -1, 'A2');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('Opel', 'Astra', '2010', -7829368, 'A3');");
+        v1.execSQL("INSERT INTO cars (make, model, year, color, plate) VALUES ('VW', 'Golf', '2015', 12345, 'A4');");
+        v1.setVersion(1);
+        v1.close();
+
+        CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            Cursor cursor = db.rawQuery("SELECT color FROM cars ORDER BY _id", null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals(CarEntry.COLOR_RED, cursor.getInt(0));
+                assertTrue(cursor.moveToNext());
+                assertEquals(CarEntry.COLOR_WHITE, cursor.getInt(0));
+                assertTrue(cursor.moveToNext());
+                assertEquals(CarEntry.COLOR_GRAY, cursor.getInt(0));
+                assertTrue(cursor.moveToNext());
+                assertEquals(CarEntry.COLOR_OTHER, cursor.getInt(0));
+            } finally {
+                cursor.close();
+            }
+
+            assertColorsMatchCarColors(db);
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void colorsTableAndSpinnerMatchCarColors() {
+        CarDBHelper helper = new CarDBHelper(mContext, TEST_DATABASE);
+        try {
+            assertColorsMatchCarColors(helper.getWritableDatabase());
+        } finally {
+            helper.close();
+        }
+        //The spinners list the colors by position, so the name at each position must be its id's
+        String[] names = CarColors.names();
+        assertEquals(CarColors.count(), names.length);
+        assertEquals("Other", names[CarEntry.COLOR_OTHER]);
+        assertEquals("Silver", names[CarEntry.COLOR_SILVER]);
+        assertEquals("Purple", names[CarEntry.COLOR_PURPLE]);
+    }
+
+    //The colors table holds every color of CarColors under the same id, and nothing else
+    private static void assertColorsMatchCarColors(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT _id, name, argb FROM " + CarDBHelper.TABLE_COLORS + " ORDER BY _id", null);
+        try {
+            assertEquals(CarColors.count(), cursor.getCount());
+            while (cursor.moveToNext()) {
+                assertEquals(CarColors.name(cursor.getInt(0)), cursor.getString(1));
+                assertEquals(CarColors.argb(cursor.getInt(0)), cursor.getInt(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean indexExists(SQLiteDatabase db, String indexName) {
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?",
+                new String[] {indexName});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Instrumentation tests for the cars/export URI: every live car exported as CSV or JSON through
+ * openTypedAssetFile() comes back the same when the file is imported with CarImporter, and
+ * soft deleted cars are left out.
+ */
+public class CarExporterTest extends GarageProviderTestCase {
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getProvider().call(GarageContract.METHOD_PURGE_DELETED, null, null);
+        mFile = new File(getContext().getCacheDir(), "export_test");
+
+        mResolver.insert(CarEntry.CONTENT_URI, car("Ford, Motor", "Focus \"ST\"\nfast", 2004,
+                CarEntry.COLOR_RED, "AB-123"));
+        mResolver.insert(CarEntry.CONTENT_URI, car("Opel", "Astra", 2010, CarEntry.COLOR_BLUE, "CD-456"));
+        mResolver.insert(CarEntry.CONTENT_URI, car("Kia", "Rio", 2011, CarEntry.COLOR_OTHER, "EF-789"));
+        Uri deletedCar = mResolver.insert(CarEntry.CONTENT_URI,
+                car("VW", "Golf", 2015, CarEntry.COLOR_RED, "GH-012"));
+        mResolver.delete(CarEntry.buildSoftDeleteUri(deletedCar), null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testCsvExportImportsAsTheSameCars() throws IOException {
+        assertRoundTrip(CarEntry.EXPORT_CSV_TYPE);
+    }
+
+    public void testJsonExportImportsAsTheSameCars() throws IOException {
+        assertRoundTrip(CarEntry.EXPORT_JSON_TYPE);
+    }
+
+    private void assertRoundTrip(String mimeType) throws IOException {
+        String exported = readCars();
+        export(mimeType);
+        mResolver.delete(CarEntry.CONTENT_URI, null, null);
+        getProvider().call(GarageContract.METHOD_PURGE_DELETED, null, null);
+        assertEquals(0, countCars());
+
+        CarImporter.Result result = new CarImporter(mResolver).importCars(Uri.fromFile(mFile), null);
+
+        assertEquals(3, result.carsRead);
+        assertEquals(0, result.carsRejected);
+        assertEquals(exported, readCars());
+    }
+
+    //The export URI names no format, the MIME type filter picks it
+    private void export(String mimeType) throws IOException {
+        AssetFileDescriptor export = mResolver.openTypedAssetFileDescriptor(CarEntry.EXPORT_URI, mimeType, null);
+        assertNotNull(export);
+        InputStream input = export.createInputStream();
+        try {
+            FileOutputStream output = new FileOutputStream(mFile);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, count);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static ContentValues car(String make, String model, int year, int color, String plate) {
+        ContentValues car = car(make, year, color, plate);
+        car.put(CarEntry.COLUMN_CAR_MODEL, model);
+        return car;
+    }
+
+    //Every live car in plate order, the columns of a car joined with | and the cars with newlines
+    private String readCars() {
+        Cursor cursor = mResolver.query(CarEntry.CONTENT_URI, new String[] {CarEntry.COLUMN_CAR_MAKE,
+                        CarEntry.COLUMN_CAR_MODEL, CarEntry.COLUMN_CAR_YEAR, CarEntry.COLUMN_CAR_COLOR,
+                        CarEntry.COLUMN_CAR_PLATE}, null, null, CarEntry.COLUMN_CAR_PLATE);
+        try {
+            StringBuilder cars = new StringBuilder();
+            while (cursor.moveToNext()) {
+                cars.append(cursor.getString(0)).append('|').append(cursor.getString(1)).append('|')
+                        .append(cursor.getInt(2)).append('|').append(cursor.getInt(3)).append('|')
+                        .append(cursor.getString(4)).append('\n');
+            }
+            return cars.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.android.monstergarage.table_data;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Instrumentation tests for CarImporter's CSV and JSON readers: quoting, line ends and fields
+ * that cross a refill of the read buffer must come through as typed, and cars with a value
+ * that cannot be read are counted as rejected while the rest of the file is imported.
+ */
+public class CarImporterTest extends GarageProviderTestCase {
+
+    private static final String CSV_HEADER = "make,model,year,color,plate\r\n";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "import_test.csv");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testQuotedFieldsKeepCommasNewlinesAndQuotes() throws IOException {
+        CarImporter.Result result = importFile(CSV_HEADER
+                + "\"Ford, Motor\",\"Focus\nST\",2004,Red,AB-123\r\n"
+                + "Opel,\"Astra \"\"OPC\"\"\",2010,#0000FF,CD-456");
+
+        assertEquals(2, result.carsImported);
+        assertEquals(0, result.carsRejected);
+        assertEquals("Ford, Motor|Focus\nST|" + CarEntry.COLOR_RED, readCar("AB-123"));
+        assertEquals("Opel|Astra \"OPC\"|" + CarEntry.COLOR_BLUE, readCar("CD-456"));
+    }
+
+    public void testRecordsAcrossBufferRefillsAreReadWhole() throws IOException {
+        //Rows of every length from well past one 16K buffer, so quotes, commas and CRLFs
+        //land on every side of a refill somewhere in the file
+        StringBuilder csv = new StringBuilder(CSV_HEADER);
+        int rows = 3000;
+        for (int i = 0; i < rows; i++) {
+            csv.append("Make").append(i % 13).append(",\"Model, \"\"").append(i);
+            for (int pad = 0; pad < i % 7; pad++) {
+                csv.append('x');
+            }
+            csv.append("\"\"\",").append(1990 + i % 30).append(",Red,P").append(i).append("\r\n");
+        }
+
+        CarImporter.Result result = importFile(csv.toString());
+
+        assertEquals(rows, result.carsImported);
+        assertEquals(rows, countCars());
+        assertEquals("Make0|Model, \"0\"|" + CarEntry.COLOR_RED, readCar("P0"));
+        assertEquals("Make1|Model, \"1x\"|" + CarEntry.COLOR_RED, readCar("P1"));
+        assertEquals("Make9|Model, \"2999xxx\"|" + CarEntry.COLOR_RED, readCar("P2999"));
+    }
+
+    public void testBadYearAndColorAreRejectedAndCounted() throws IOException {
+        CarImporter.Result result = importFile(CSV_HEADER
+                + "Ford,Focus,2004,Red,AB-123\r\n"
+                + "Opel,Astra,20o4,Red,CD-456\r\n"
+                + "Kia,Rio,2011,Chartreuse,EF-789\r\n"
+                + "VW,Golf,2015,Black,GH-012\r\n");
+
+        assertEquals(4, result.carsRead);
+        assertEquals(2, result.carsImported);
+        assertEquals(2, result.carsRejected);
+        assertEquals("Row 2: Cannot read year \"20o4\"", result.errors.get(0));
+        assertEquals("Row 3: Cannot read color \"Chartreuse\"", result.errors.get(1));
+        assertEquals(2, countCars());
+    }
+
+    public void testJsonArrayIsImported() throws IOException {
+        CarImporter.Result result = importFile("[\n"
+                + "{\"make\": \"Ford\", \"model\": \"Focus\", \"year\": 2004, \"color\": \"red\", \"plate\": \"AB-123\"},\n"
+                + "{\"make\": \"Opel\", \"model\": \"Astra\", \"year\": \"2010\", \"color\": -16776961, \"plate\": \"CD-456\", \"notes\": \"skipped\"},\n"
+                + "{\"make\": \"Kia\", \"model\": null, \"year\": 2011, \"color\": \"Black\", \"plate\": \"EF-789\"}\n"
+                + "]");
+
+        assertEquals(3, result.carsRead);
+        assertEquals(2, result.carsImported);
+        assertEquals(1, result.carsRejected);
+        assertEquals("Ford|Focus|" + CarEntry.COLOR_RED, readCar("AB-123"));
+        assertEquals("Opel|Astra|" + CarEntry.COLOR_BLUE, readCar("CD-456"));
+    }
+
+    public void testUnterminatedQuoteFailsTheImport() throws IOException {
+        try {
+            importFile(CSV_HEADER + "Ford,\"Focus,2004,Red,AB-123\r\n");
+            fail("Imported a file that ends inside a quoted field");
+        } catch (IOException expected) {
+        }
+    }
+
+    private CarImporter.Result importFile(String content) throws IOException {
+        FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            output.write(content.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+        return new CarImporter(mResolver).importCars(Uri.fromFile(mFile), null);
+    }
+
+    //The make, model and color of the car with the given plate, joined with |
+    private String readCar(String plate) {
+        Cursor cursor = mResolver.query(CarEntry.CONTENT_URI, new String[] {CarEntry.COLUMN_CAR_MAKE,
+                        CarEntry.COLUMN_CAR_MODEL, CarEntry.COLUMN_CAR_COLOR},
+                CarEntry.COLUMN_CAR_PLATE + "=?", new String[] {plate}, null);
+        try {
+            assertTrue("No car with plate " + plate, cursor.moveToFirst());
+            return cursor.getString(0) + "|" + cursor.getString(1) + "|" + cursor.getInt(2);
+        } finally {
+            cursor.close();
+        }
+    }
+}
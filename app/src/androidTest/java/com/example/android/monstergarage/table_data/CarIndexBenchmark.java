@@ -0,0 +1,90 @@
+package com.example.android.monstergarage.table_data;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.monstergarage.benchmark.Benchmark;
+import com.example.android.monstergarage.benchmark.BenchmarkReport;
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures looking cars up in CarIndex by id and by plate, with 1k, 10k and 100k cars indexed.
+ * Every lookup should take well under a microsecond and allocate nothing.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarIndexBenchmark {
+
+    private static final int RUNS = 10;
+    private static final int OPERATIONS_PER_RUN = 10000;
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("CarIndexBenchmark");
+
+    private final Random mRandom = new Random(42);
+    //Cars to look up in the next run, picked in setUp() so picking them is neither timed nor counted
+    private final long[] mIds = new long[OPERATIONS_PER_RUN];
+    private final String[] mPlates = new String[OPERATIONS_PER_RUN];
+    private final CarIndex.Car mCar = new CarIndex.Car();
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write(InstrumentationRegistry.getTargetContext());
+    }
+
+    @Test
+    public void lookups() throws Exception {
+        for (final int rows : Benchmark.ROW_COUNTS) {
+            final CarIndex.Table table = new CarIndex.Table(rows);
+            final String[] plates = new String[rows];
+            for (int i = 0; i < rows; i++) {
+                plates[i] = "SEED" + i;
+                table.put(i + 1, "Make" + (i % 20), "Model" + (i % 50), 1980 + i % 40, CarEntry.COLOR_RED, plates[i]);
+            }
+
+            sReport.add(Benchmark.measure("find_by_id", rows, RUNS, OPERATIONS_PER_RUN, new Benchmark.Step() {
+                @Override
+                public void setUp() {
+                    for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                        mIds[i] = 1 + mRandom.nextInt(rows);
+                    }
+                }
+
+                @Override
+                public void run() {
+                    for (long id : mIds) {
+                        assertTrue(table.find(id, mCar));
+                    }
+                }
+            }));
+
+            sReport.add(Benchmark.measure("find_by_plate", rows, RUNS, OPERATIONS_PER_RUN, new Benchmark.Step() {
+                @Override
+                public void setUp() {
+                    for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                        mPlates[i] = plates[mRandom.nextInt(rows)];
+                    }
+                }
+
+                @Override
+                public void run() {
+                    for (String plate : mPlates) {
+                        assertTrue(table.findIdByPlate(plate) != CarIndex.NO_ID);
+                    }
+                }
+            }));
+        }
+    }
+}
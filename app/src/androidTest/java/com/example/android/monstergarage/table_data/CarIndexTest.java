@@ -0,0 +1,86 @@
+package com.example.android.monstergarage.table_data;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the id and plate tables of CarIndex, including removals in the middle of a probe
+ * run and growing past the initial size.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarIndexTest {
+
+    @Test
+    public void findsCarsByIdAndPlate() {
+        CarIndex.Table table = new CarIndex.Table(0);
+        table.put(3, "Ford", "Focus", 2004, CarEntry.COLOR_RED, "AB-123");
+        table.put(900, "Opel", "Astra", 2010, CarEntry.COLOR_BLUE, "CD-456");
+
+        CarIndex.Car car = new CarIndex.Car();
+        assertTrue(table.find(900, car));
+        assertEquals("Opel", car.make);
+        assertEquals(2010, car.year);
+        assertEquals("CD-456", car.plate);
+        assertEquals(3, table.findIdByPlate("AB-123"));
+        //Found by plate key, like the provider checks it
+        assertEquals(3, table.findIdByPlate("ab 123"));
+        assertEquals(CarIndex.NO_ID, table.findIdByPlate("XX-000"));
+        assertFalse(table.find(4, car));
+    }
+
+    @Test
+    public void changedPlateMovesInThePlateTable() {
+        CarIndex.Table table = new CarIndex.Table(0);
+        table.put(1, "Ford", "Focus", 2004, CarEntry.COLOR_RED, "AB-123");
+        table.put(1, "Ford", "Focus", 2004, CarEntry.COLOR_RED, "AB-124");
+
+        assertEquals(1, table.size());
+        assertEquals(CarIndex.NO_ID, table.findIdByPlate("AB-123"));
+        assertEquals(1, table.findIdByPlate("AB-124"));
+
+        table.remove(1);
+        assertEquals(0, table.size());
+        assertEquals(CarIndex.NO_ID, table.findIdByPlate("AB-124"));
+    }
+
+    @Test
+    public void matchesAHashMapThroughRandomChanges() {
+        CarIndex.Table table = new CarIndex.Table(0);
+        Map<Long, String> expectedPlates = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 50000; i++) {
+            //Few enough ids that the same cars keep coming back
+            long id = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                table.remove(id);
+                expectedPlates.remove(id);
+            } else {
+                String plate = "P" + id + "-" + random.nextInt(4);
+                table.put(id, "Make", "Model", 2000, CarEntry.COLOR_RED, plate);
+                expectedPlates.put(id, plate);
+            }
+        }
+
+        assertEquals(expectedPlates.size(), table.size());
+        CarIndex.Car car = new CarIndex.Car();
+        for (long id = 0; id < 5000; id++) {
+            String plate = expectedPlates.get(id);
+            assertEquals(plate != null, table.find(id, car));
+            if (plate != null) {
+                assertEquals(plate, car.plate);
+                assertEquals(id, table.findIdByPlate(plate));
+            }
+        }
+    }
+}
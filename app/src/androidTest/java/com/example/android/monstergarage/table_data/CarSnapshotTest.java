@@ -0,0 +1,245 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips the cars table through a CarSnapshot file and checks that a restore leaves
+ * the search table, indexes and triggers working.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarSnapshotTest {
+
+    private static final String TEST_DATABASE = "snapshot_test.db";
+
+    private Context mContext;
+    private CarDBHelper mHelper;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE);
+        mHelper = new CarDBHelper(mContext, TEST_DATABASE);
+        mFile = new File(mContext.getCacheDir(), "test.snapshot");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(TEST_DATABASE);
+        mFile.delete();
+    }
+
+    @Test
+    public void restoreReplacesCarsWithSnapshot() throws IOException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertCar(db, 3, "Ford", "Focus", 2004, CarEntry.COLOR_BLUE, "AB-123");
+        insertCar(db, 4, "Ford", "Fiesta", 2010, CarEntry.COLOR_RED, "CD-456");
+        insertCar(db, 900, "Škoda", "Octavia, \"RS\"", 1999, CarEntry.COLOR_BLUE, "ÉF-789");
+        String before = dump(db);
+
+        assertEquals(3, CarSnapshot.write(db, mFile));
+
+        db.execSQL("DELETE FROM cars");
+        insertCar(db, 5, "Opel", "Astra", 2001, 0, "GH-000");
+
+        assertEquals(3, CarSnapshot.restore(db, mFile));
+        assertEquals(before, dump(db));
+
+        //The search table was rebuilt and its triggers are back
+        assertEquals(2, DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM cars_fts WHERE cars_fts MATCH 'ford'", null));
+        db.execSQL("UPDATE cars SET model = 'Mondeo' WHERE _id = 3");
+        assertEquals(1, DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM cars_fts WHERE cars_fts MATCH 'mondeo'", null));
+
+        //So is the unique plate index
+        assertEquals(1, DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM sqlite_master WHERE name = ?", new String[] {CarDBHelper.INDEX_CARS_PLATE}));
+    }
+
+    @Test
+    public void emptyTableRoundTrips() throws IOException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertEquals(0, CarSnapshot.write(db, mFile));
+        insertCar(db, 1, "Ford", "Focus", 2004, 0, "AB-123");
+
+        assertEquals(0, CarSnapshot.restore(db, mFile));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "cars"));
+    }
+
+    @Test
+    public void corruptSnapshotLeavesCarsUntouched() throws IOException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertCar(db, 1, "Ford", "Focus", 2004, 0, "AB-123");
+        CarSnapshot.write(db, mFile);
+        insertCar(db, 2, "Opel", "Astra", 2001, 0, "GH-000");
+        String before = dump(db);
+
+        //Cut the file short in the middle of the plate column
+        byte[] truncated = new byte[(int) mFile.length() - 3];
+        RandomAccessFile input = new RandomAccessFile(mFile, "r");
+        try {
+            input.readFully(truncated);
+        } finally {
+            input.close();
+        }
+        FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            output.write(truncated);
+        } finally {
+            output.close();
+        }
+
+        try {
+            CarSnapshot.restore(db, mFile);
+            fail("Restored a truncated snapshot");
+        } catch (IOException expected) {
+        }
+        assertEquals(before, dump(db));
+    }
+
+    @Test
+    public void impossibleLengthIsReportedAsCorrupt() throws IOException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertCar(db, 1, "Ford", "Focus", 2004, CarEntry.COLOR_RED, "AB-123");
+        CarSnapshot.write(db, mFile);
+        String before = dump(db);
+
+        //The length of the first plate becomes 0xFFFFFFFF, -1 once cast to an int
+        patch(readColumnOffset(5), new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+
+        try {
+            CarSnapshot.restore(db, mFile);
+            fail("Restored a plate longer than the file");
+        } catch (IOException expected) {
+        }
+        assertEquals(before, dump(db));
+    }
+
+    @Test
+    public void unknownColorIsReportedAsCorrupt() throws IOException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertCar(db, 1, "Ford", "Focus", 2004, CarEntry.COLOR_RED, "AB-123");
+        CarSnapshot.write(db, mFile);
+        String before = dump(db);
+
+        //The color dictionary holds one color, replace it with an id that is no color
+        patch(readColumnOffset(4) + 1, new byte[] {0, 0, 0, 99});
+
+        try {
+            CarSnapshot.restore(db, mFile);
+            fail("Restored a car with an unknown color");
+        } catch (IOException expected) {
+        }
+        assertEquals(before, dump(db));
+    }
+
+    @Test
+    public void repeatedIdIsReportedAsCorrupt() throws IOException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertCar(db, 1, "Ford", "Focus", 2004, CarEntry.COLOR_RED, "AB-123");
+        insertCar(db, 2, "Opel", "Astra", 2001, CarEntry.COLOR_RED, "GH-000");
+        CarSnapshot.write(db, mFile);
+        String before = dump(db);
+
+        //The second car's id difference becomes 0, giving it the first car's _id
+        patch(readColumnOffset(0) + 1, new byte[] {0});
+
+        try {
+            CarSnapshot.restore(db, mFile);
+            fail("Restored two cars with the same _id");
+        } catch (IOException expected) {
+        }
+        assertEquals(before, dump(db));
+    }
+
+    @Test
+    public void samePlateKeyTwiceIsReportedAsCorrupt() throws IOException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertCar(db, 1, "Ford", "Focus", 2004, CarEntry.COLOR_RED, "AB-123");
+        insertCar(db, 2, "Opel", "Astra", 2001, CarEntry.COLOR_RED, "CD-456");
+        CarSnapshot.write(db, mFile);
+        String before = dump(db);
+
+        //The second plate, after the first one's length byte and 6 bytes, becomes the first
+        //one in other case and with a space, the same plate key
+        patch(readColumnOffset(5) + 1 + 6 + 1, "ab 123".getBytes("UTF-8"));
+
+        try {
+            CarSnapshot.restore(db, mFile);
+            fail("Restored two cars with the same plate key");
+        } catch (IOException expected) {
+        }
+        assertEquals(before, dump(db));
+    }
+
+    //Offset of the given column, written after the magic, version and car count
+    private int readColumnOffset(int column) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(12 + 4 * column);
+            return file.readInt();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void patch(long position, byte[] bytes) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(position);
+            file.write(bytes);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void insertCar(SQLiteDatabase db, long id, String make, String model, int year,
+                                  int color, String plate) {
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO cars (_id, make, model, year, color, plate, plate_key) VALUES (?, ?, ?, ?, ?, ?, ?)");
+        try {
+            insert.bindLong(1, id);
+            insert.bindString(2, make);
+            insert.bindString(3, model);
+            insert.bindLong(4, year);
+            insert.bindLong(5, color);
+            insert.bindString(6, plate);
+            insert.bindString(7, CarEntry.plateKey(plate));
+            insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static String dump(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT _id, make, model, year, color, plate, plate_key FROM cars ORDER BY _id", null);
+        try {
+            return DatabaseUtils.dumpCursorToString(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+}
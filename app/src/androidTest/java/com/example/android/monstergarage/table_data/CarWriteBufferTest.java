@@ -0,0 +1,173 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.support.test.InstrumentationRegistry;
+import android.test.mock.MockContentResolver;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instrumentation tests for CarWriteBuffer against the provider: edits to one car are merged
+ * into one write, an undone edit never reaches the provider, and a batch that fails on one car
+ * still writes the others. The buffer runs on the main thread like in the app.
+ */
+public class CarWriteBufferTest extends GarageProviderTestCase {
+
+    private static final long WRITE_TIMEOUT_SECONDS = 10;
+
+    private BatchRecordingResolver mWriteResolver;
+    private FailureListener mListener;
+    private CarWriteBuffer mBuffer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWriteResolver = new BatchRecordingResolver();
+        mWriteResolver.addProvider(GarageContract.CONTENT_AUTHORITY, getProvider());
+        mListener = new FailureListener();
+        mBuffer = new CarWriteBuffer(new CarWriteExecutor(mWriteResolver));
+        mBuffer.setListener(mListener);
+    }
+
+    public void testUpdatesToOneCarAreWrittenOnce() throws InterruptedException {
+        final Uri carUri = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mBuffer.update(carUri, values(CarEntry.COLUMN_CAR_MODEL, "Focus"));
+                mBuffer.update(carUri, values(CarEntry.COLUMN_CAR_PLATE, "AB-124"));
+                mBuffer.flush();
+            }
+        });
+        mWriteResolver.awaitBatch();
+
+        assertEquals(1, mWriteResolver.batchSizes.size());
+        assertEquals(1, (int) mWriteResolver.batchSizes.get(0));
+        assertEquals("Focus|AB-124", readCar(carUri));
+    }
+
+    public void testUndoBeforeFlushWritesNothing() {
+        final Uri carUri = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+
+        final Object[] pendingValues = new Object[1];
+        final boolean[] canUndo = new boolean[1];
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mBuffer.update(carUri, values(CarEntry.COLUMN_CAR_MODEL, "Focus"));
+                mBuffer.undo();
+                pendingValues[0] = mBuffer.getPendingValues(ContentUris.parseId(carUri));
+                canUndo[0] = mBuffer.canUndo();
+                //Nothing is left to hand to the executor, so flush() returns without a write
+                mBuffer.flush();
+            }
+        });
+
+        assertNull(pendingValues[0]);
+        assertFalse(canUndo[0]);
+        assertTrue(mWriteResolver.batchSizes.isEmpty());
+        assertEquals("Model|AB-123", readCar(carUri));
+    }
+
+    public void testBadCarDoesNotCostTheOthersTheirEdits() throws InterruptedException {
+        final Uri goodCar = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+        final Uri badCar = mResolver.insert(CarEntry.CONTENT_URI, car("Opel", 2010, "CD-456"));
+
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mBuffer.update(goodCar, values(CarEntry.COLUMN_CAR_MODEL, "Focus"));
+                //Valid on its own, but the Ford holds that plate key
+                mBuffer.update(badCar, values(CarEntry.COLUMN_CAR_PLATE, "ab 123"));
+                mBuffer.flush();
+            }
+        });
+
+        //The cars are written one by one after the batch, in order, so the Ford is done
+        //by the time the Opel reports its failure
+        assertTrue(mListener.failed.await(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(mListener.error instanceof SQLiteConstraintException);
+        assertEquals(1, mWriteResolver.batchSizes.size());
+        assertEquals(2, (int) mWriteResolver.batchSizes.get(0));
+        assertEquals("Focus|AB-123", readCar(goodCar));
+        assertEquals("Model|CD-456", readCar(badCar));
+    }
+
+    private static ContentValues values(String column, String value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        return values;
+    }
+
+    private static void onMainThread(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+
+    //The model and plate of the car, joined with |
+    private String readCar(Uri carUri) {
+        Cursor cursor = mResolver.query(carUri, new String[] {CarEntry.COLUMN_CAR_MODEL,
+                CarEntry.COLUMN_CAR_PLATE}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0) + "|" + cursor.getString(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Hands the buffer's writes to the provider under test, recording the size of every batch
+     */
+    private static final class BatchRecordingResolver extends MockContentResolver {
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        private final Semaphore mBatchesDone = new Semaphore(0);
+
+        @Override
+        public ContentProviderResult[] applyBatch(String authority, ArrayList<ContentProviderOperation> operations)
+                throws RemoteException, OperationApplicationException {
+            batchSizes.add(operations.size());
+            try {
+                return super.applyBatch(authority, operations);
+            } finally {
+                mBatchesDone.release();
+            }
+        }
+
+        /**
+         * Waits until the next batch is committed or rolled back
+         */
+        void awaitBatch() throws InterruptedException {
+            assertTrue(mBatchesDone.tryAcquire(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    private static final class FailureListener implements CarWriteBuffer.Listener {
+        final CountDownLatch failed = new CountDownLatch(1);
+        volatile Exception error;
+
+        @Override
+        public void onBufferChanged() {}
+
+        @Override
+        public void onWriteFailed(Exception error) {
+            this.error = error;
+            failed.countDown();
+        }
+    }
+}
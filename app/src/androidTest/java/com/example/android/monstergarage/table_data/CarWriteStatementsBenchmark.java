@@ -0,0 +1,161 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.monstergarage.benchmark.Benchmark;
+import com.example.android.monstergarage.benchmark.BenchmarkReport;
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the per-row latency and allocations of writing cars through ContentValues,
+ * the way SQLiteDatabase.insert() and update() do, against CarWriteStatements' compiled
+ * statements, with 1k, 10k and 100k cars in the table.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarWriteStatementsBenchmark {
+
+    private static final String TEST_DATABASE = "benchmark_statements.db";
+    private static final int RUNS = 10;
+    private static final int OPERATIONS_PER_RUN = 100;
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("CarWriteStatementsBenchmark");
+
+    private Context mContext;
+    private CarDBHelper mHelper;
+    private CarWriteStatements mStatements;
+    private final Random mRandom = new Random(42);
+    private int mNextPlate;
+    //Plates for the next run, made in setUp() so building them is neither timed nor counted
+    private final String[] mPlates = new String[OPERATIONS_PER_RUN];
+    private final long[] mIds = new long[OPERATIONS_PER_RUN];
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE);
+        mHelper = new CarDBHelper(mContext, TEST_DATABASE);
+        mStatements = new CarWriteStatements(mHelper);
+    }
+
+    @After
+    public void tearDown() {
+        if (mStatements != null) {
+            mStatements.close();
+            mHelper.close();
+        }
+        if (mContext != null) {
+            mContext.deleteDatabase(TEST_DATABASE);
+        }
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write(InstrumentationRegistry.getTargetContext());
+    }
+
+    @Test
+    public void contentValuesAgainstCompiledStatements() throws Exception {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        int seededRows = 0;
+        for (final int rows : Benchmark.ROW_COUNTS) {
+            seedTo(db, seededRows, rows);
+            seededRows = rows;
+
+            sReport.add(Benchmark.measure("insert_content_values", rows, RUNS, OPERATIONS_PER_RUN, new Step() {
+                @Override
+                public void run() {
+                    for (String plate : mPlates) {
+                        ContentValues car = new ContentValues();
+                        car.put(CarEntry.COLUMN_CAR_MAKE, "Make");
+                        car.put(CarEntry.COLUMN_CAR_MODEL, "Model");
+                        car.put(CarEntry.COLUMN_CAR_YEAR, 2000);
+                        car.put(CarEntry.COLUMN_CAR_COLOR, CarEntry.COLOR_RED);
+                        car.put(CarEntry.COLUMN_CAR_PLATE, plate);
+                        assertTrue(db.insert(CarEntry.TABLE_NAME, null, car) > 0);
+                    }
+                }
+            }));
+
+            sReport.add(Benchmark.measure("insert_statement", rows, RUNS, OPERATIONS_PER_RUN, new Step() {
+                @Override
+                public void run() {
+                    for (String plate : mPlates) {
+                        assertTrue(mStatements.insert("Make", "Model", 2000, CarEntry.COLOR_RED, plate) > 0);
+                    }
+                }
+            }));
+
+            sReport.add(Benchmark.measure("update_content_values", rows, RUNS, OPERATIONS_PER_RUN, new Step() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                        ContentValues car = new ContentValues();
+                        car.put(CarEntry.COLUMN_CAR_MAKE, "Make");
+                        car.put(CarEntry.COLUMN_CAR_MODEL, "Model");
+                        car.put(CarEntry.COLUMN_CAR_YEAR, 2001);
+                        car.put(CarEntry.COLUMN_CAR_COLOR, CarEntry.COLOR_BLUE);
+                        car.put(CarEntry.COLUMN_CAR_PLATE, mPlates[i]);
+                        assertEquals(1, db.update(CarEntry.TABLE_NAME, car, CarEntry._ID + "=?",
+                                new String[] {String.valueOf(mIds[i])}));
+                    }
+                }
+            }));
+
+            sReport.add(Benchmark.measure("update_statement", rows, RUNS, OPERATIONS_PER_RUN, new Step() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                        assertEquals(1, mStatements.updateById(mIds[i], "Make", "Model", 2001,
+                                CarEntry.COLOR_BLUE, mPlates[i]));
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Picks fresh plates and random existing cars for the next run
+     */
+    private abstract class Step extends Benchmark.Step {
+        @Override
+        public void setUp() {
+            for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                mPlates[i] = "BEN" + mNextPlate++;
+                //The seeded cars keep the first ids, the inserts only add after them
+                mIds[i] = 1 + mRandom.nextInt(Benchmark.ROW_COUNTS[0]);
+            }
+        }
+    }
+
+    private void seedTo(SQLiteDatabase db, int fromRows, int toRows) {
+        SQLiteStatement insert = db.compileStatement(CarWriteStatements.INSERT_SQL);
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = fromRows; i < toRows; i++) {
+                CarWriteStatements.bindCar(insert, "Make" + (i % 20), "Model" + (i % 50),
+                        1980 + i % 40, CarEntry.COLOR_RED, "SEED" + i);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+}
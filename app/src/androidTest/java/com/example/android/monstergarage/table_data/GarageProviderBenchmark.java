@@ -0,0 +1,211 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.IsolatedContext;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import com.example.android.monstergarage.benchmark.Benchmark;
+import com.example.android.monstergarage.benchmark.BenchmarkReport;
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks GarageProvider's insert, update, delete and query paths with 1k, 10k and 100k cars
+ * in the table. The provider runs against a renamed copy of garage.db, never the app's real data.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GarageProviderBenchmark {
+
+    private static final int RUNS = 10;
+    private static final int OPERATIONS_PER_RUN = 100;
+    private static final int SEED_CHUNK = 5000;
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("GarageProviderBenchmark");
+
+    private Context mContext;
+    private GarageProvider mProvider;
+    private MockContentResolver mResolver;
+    private final Random mRandom = new Random(42);
+    private int mSeededRows;
+    private int mNextPlate;
+    //Ids of the cars in the table when the current table size was reached
+    private long[] mCarIds;
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+
+        Context targetContext = InstrumentationRegistry.getTargetContext();
+        mResolver = new MockContentResolver();
+        mContext = new IsolatedContext(mResolver,
+                new RenamingDelegatingContext(targetContext, targetContext, "benchmark."));
+        mContext.deleteDatabase("garage.db");
+
+        ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = GarageContract.CONTENT_AUTHORITY;
+        mProvider = new GarageProvider();
+        mProvider.attachInfo(mContext, providerInfo);
+        mResolver.addProvider(GarageContract.CONTENT_AUTHORITY, mProvider);
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+        if (mContext != null) {
+            mContext.deleteDatabase("garage.db");
+        }
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write(InstrumentationRegistry.getTargetContext());
+    }
+
+    @Test
+    public void providerOperations() throws Exception {
+        for (final int rows : Benchmark.ROW_COUNTS) {
+            seedTo(rows);
+            mCarIds = loadCarIds();
+
+            sReport.add(Benchmark.measure("insert", rows, RUNS, OPERATIONS_PER_RUN, new Benchmark.Step() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                        assertNotNull(mResolver.insert(CarEntry.CONTENT_URI, buildCar(mNextPlate++)));
+                    }
+                }
+            }));
+
+            sReport.add(Benchmark.measure("update_by_id", rows, RUNS, OPERATIONS_PER_RUN, new Benchmark.Step() {
+                @Override
+                public void run() {
+                    ContentValues values = new ContentValues();
+                    for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                        values.put(CarEntry.COLUMN_CAR_MODEL, "Model" + i);
+                        mResolver.update(randomCarUri(), values, null, null);
+                    }
+                }
+            }));
+
+            sReport.add(Benchmark.measure("query_by_id", rows, RUNS, OPERATIONS_PER_RUN, new Benchmark.Step() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                        readAll(mResolver.query(randomCarUri(), null, null, null, null));
+                    }
+                }
+            }));
+
+            sReport.add(Benchmark.measure("query_page", rows, RUNS, OPERATIONS_PER_RUN, new Benchmark.Step() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                        Uri pageUri = CarEntry.buildPageUri(mRandom.nextInt(rows), -1, 50);
+                        readAll(mResolver.query(pageUri, null, null, null, null));
+                    }
+                }
+            }));
+
+            sReport.add(Benchmark.measure("query_all", rows, RUNS, 1, new Benchmark.Step() {
+                @Override
+                public void run() {
+                    readAll(mResolver.query(CarEntry.CONTENT_URI, null, null, null, null));
+                }
+            }));
+
+            sReport.add(Benchmark.measure("delete_by_id", rows, RUNS, OPERATIONS_PER_RUN, new Benchmark.Step() {
+                private final Uri[] mDeleteUris = new Uri[OPERATIONS_PER_RUN];
+
+                @Override
+                public void setUp() {
+                    //Delete freshly inserted cars so the table keeps its size
+                    for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+                        mDeleteUris[i] = mResolver.insert(CarEntry.CONTENT_URI, buildCar(mNextPlate++));
+                    }
+                }
+
+                @Override
+                public void run() {
+                    for (Uri uri : mDeleteUris) {
+                        assertEquals(1, mResolver.delete(uri, null, null));
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Bulk inserts cars until the seeded part of the table holds the given number of rows
+     */
+    private void seedTo(int rows) {
+        while (mSeededRows < rows) {
+            int count = Math.min(SEED_CHUNK, rows - mSeededRows);
+            ContentValues[] cars = new ContentValues[count];
+            for (int i = 0; i < count; i++) {
+                cars[i] = buildCar(mNextPlate++);
+            }
+            assertEquals(count, mResolver.bulkInsert(CarEntry.CONTENT_URI, cars));
+            mSeededRows += count;
+        }
+    }
+
+    private long[] loadCarIds() {
+        Cursor cursor = mResolver.query(CarEntry.CONTENT_URI, new String[] {CarEntry._ID}, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    //Only delete_by_id removes cars, and it runs last for each table size
+    private Uri randomCarUri() {
+        return ContentUris.withAppendedId(CarEntry.CONTENT_URI, mCarIds[mRandom.nextInt(mCarIds.length)]);
+    }
+
+    private static ContentValues buildCar(int plate) {
+        ContentValues car = new ContentValues();
+        car.put(CarEntry.COLUMN_CAR_MAKE, "Make" + (plate % 20));
+        car.put(CarEntry.COLUMN_CAR_MODEL, "Model" + (plate % 50));
+        car.put(CarEntry.COLUMN_CAR_YEAR, 1980 + plate % 40);
+        car.put(CarEntry.COLUMN_CAR_COLOR, CarEntry.COLOR_RED);
+        car.put(CarEntry.COLUMN_CAR_PLATE, "BEN" + plate);
+        return car;
+    }
+
+    /**
+     * Steps through every row, so the whole result is actually read from SQLite
+     */
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.util.Log;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Instrumentation tests for GarageProvider's bulkInsert() and applyBatch(): every row lands,
+ * one bad row rejects the whole call before anything is written, and a failed batch rolls
+ * back. Also logs how much faster bulkInsert() is than inserting the same rows one by one.
+ */
+public class GarageProviderBulkInsertTest extends GarageProviderTestCase {
+
+    private static final String LOG_TAG = GarageProviderBulkInsertTest.class.getSimpleName();
+    private static final int BENCHMARK_ROWS = 2000;
+
+    public void testBulkInsertInsertsEveryRow() {
+        int inserted = mResolver.bulkInsert(CarEntry.CONTENT_URI, buildCars(250, 0));
+
+        assertEquals(250, inserted);
+        assertEquals(250, countCars());
+    }
+
+    public void testBulkInsertRejectsInvalidRowBeforeWriting() {
+        ContentValues[] cars = buildCars(10, 0);
+        cars[7].remove(CarEntry.COLUMN_CAR_MODEL);
+
+        try {
+            mResolver.bulkInsert(CarEntry.CONTENT_URI, cars);
+            fail("Expected the car without a model to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // The row is rejected by the same check as a single insert
+        }
+        assertEquals(0, countCars());
+    }
+
+    public void testApplyBatchRollsBackWhenAnOperationFails() throws Exception {
+        ContentValues[] cars = buildCars(2, 0);
+        cars[1].remove(CarEntry.COLUMN_CAR_MAKE);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (ContentValues car : cars) {
+            operations.add(ContentProviderOperation.newInsert(CarEntry.CONTENT_URI).withValues(car).build());
+        }
+
+        try {
+            mResolver.applyBatch(GarageContract.CONTENT_AUTHORITY, operations);
+            fail("Expected the car without a make to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // The first insert must not survive the failed batch
+        }
+        assertEquals(0, countCars());
+    }
+
+    public void testBulkInsertIsFasterThanPerRowInsert() {
+        ContentValues[] perRowCars = buildCars(BENCHMARK_ROWS, 0);
+        long start = System.nanoTime();
+        for (ContentValues car : perRowCars) {
+            mResolver.insert(CarEntry.CONTENT_URI, car);
+        }
+        long perRowNanos = System.nanoTime() - start;
+
+        mResolver.delete(CarEntry.CONTENT_URI, null, null);
+
+        ContentValues[] bulkCars = buildCars(BENCHMARK_ROWS, BENCHMARK_ROWS);
+        start = System.nanoTime();
+        mResolver.bulkInsert(CarEntry.CONTENT_URI, bulkCars);
+        long bulkNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, String.format("%d rows: per-row insert %.0f rows/s, bulkInsert %.0f rows/s",
+                BENCHMARK_ROWS, rowsPerSecond(perRowNanos), rowsPerSecond(bulkNanos)));
+
+        assertEquals(BENCHMARK_ROWS, countCars());
+        assertTrue("bulkInsert should beat one transaction per row", bulkNanos < perRowNanos);
+    }
+
+    private static double rowsPerSecond(long nanos) {
+        return BENCHMARK_ROWS / (nanos / 1e9);
+    }
+
+    private static ContentValues[] buildCars(int count, int firstPlate) {
+        ContentValues[] cars = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues car = new ContentValues();
+            car.put(CarEntry.COLUMN_CAR_MAKE, "Make" + (i % 20));
+            car.put(CarEntry.COLUMN_CAR_MODEL, "Model" + (i % 50));
+            car.put(CarEntry.COLUMN_CAR_YEAR, String.valueOf(1980 + i % 40));
+            car.put(CarEntry.COLUMN_CAR_COLOR, CarEntry.COLOR_RED);
+            car.put(CarEntry.COLUMN_CAR_PLATE, "PLT" + (firstPlate + i));
+            cars[i] = car;
+        }
+        return cars;
+    }
+}
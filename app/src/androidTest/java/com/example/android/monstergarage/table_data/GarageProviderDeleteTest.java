@@ -0,0 +1,138 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+import com.example.android.monstergarage.table_data.GarageContract.StatsEntry;
+
+/**
+ * Instrumentation tests for GarageProvider's chunked and soft deletes. A soft deleted car must
+ * be hidden from every query, search and statistic until it is restored, and gone for good
+ * once it is purged.
+ */
+public class GarageProviderDeleteTest extends GarageProviderTestCase {
+
+    private static final int CAR_COUNT = 30;
+
+    private Uri mFirstCarUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        purgeDeleted();
+
+        ContentValues[] cars = new ContentValues[CAR_COUNT];
+        for (int i = 0; i < cars.length; i++) {
+            cars[i] = car(i % 2 == 0 ? "Ford" : "Opel", 1990 + i, "DEL" + i);
+        }
+        mResolver.bulkInsert(CarEntry.CONTENT_URI, cars);
+        mFirstCarUri = ContentUris.withAppendedId(CarEntry.CONTENT_URI, firstCarId());
+    }
+
+    public void testChunkedDeleteOnlyRemovesMatchingCars() {
+        Uri uri = CarEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(CarEntry.QUERY_PARAMETER_CHUNK_SIZE, "4").build();
+
+        int deleted = mResolver.delete(uri, CarEntry.COLUMN_CAR_MAKE + "=?", new String[] {"Ford"});
+
+        assertEquals(CAR_COUNT / 2, deleted);
+        assertEquals(CAR_COUNT / 2, countCars());
+        assertEquals(0, countCars(CarEntry.COLUMN_CAR_MAKE + "=?", new String[] {"Ford"}));
+    }
+
+    public void testSoftDeletedCarsAreHiddenEverywhere() {
+        int deleted = mResolver.delete(CarEntry.buildSoftDeleteUri(CarEntry.CONTENT_URI),
+                CarEntry.COLUMN_CAR_YEAR + "<?", new String[] {"2000"});
+
+        assertEquals(10, deleted);
+        assertEquals(CAR_COUNT - 10, countCars());
+        assertEquals(0, count(mResolver.query(mFirstCarUri, null, null, null, null)));
+        assertEquals(0, count(mResolver.query(CarEntry.SEARCH_URI.buildUpon()
+                .appendQueryParameter(CarEntry.QUERY_PARAMETER_SEARCH, "DEL1").build(), null,
+                CarEntry.COLUMN_CAR_YEAR + "<?", new String[] {"2000"}, null)));
+        //Only the 2000s and 2010s are left
+        assertEquals(2, count(mResolver.query(StatsEntry.buildYearBandUri(10), null, null, null, null)));
+
+        //A soft deleted car can no longer be changed or deleted
+        ContentValues newModel = new ContentValues();
+        newModel.put(CarEntry.COLUMN_CAR_MODEL, "Astra");
+        assertEquals(0, mResolver.update(mFirstCarUri, newModel, null, null));
+        assertEquals(0, mResolver.delete(mFirstCarUri, null, null));
+    }
+
+    public void testPurgeRemovesSoftDeletedCarsForGood() {
+        assertEquals(1, mResolver.delete(CarEntry.buildSoftDeleteUri(mFirstCarUri), null, null));
+
+        assertEquals(1, purgeDeleted());
+        assertEquals(0, purgeDeleted());
+        assertEquals(CAR_COUNT - 1, countCars());
+    }
+
+    public void testPlateOfSoftDeletedCarCanBeTakenAgain() {
+        assertEquals(1, mResolver.delete(CarEntry.buildSoftDeleteUri(mFirstCarUri), null, null));
+
+        assertNotNull(mResolver.insert(CarEntry.CONTENT_URI, car("Kia", 2012, "DEL0")));
+        assertEquals(CAR_COUNT, countCars());
+        //The soft deleted car gave its plate up, so there is nothing left to purge
+        assertEquals(0, purgeDeleted());
+    }
+
+    public void testSoftDeletedCarCanBeRestoredUntilPurged() {
+        long id = ContentUris.parseId(mFirstCarUri);
+        assertEquals(1, mResolver.delete(CarEntry.buildSoftDeleteUri(mFirstCarUri), null, null));
+
+        assertEquals(1, restoreDeleted(id));
+        assertEquals(1, count(mResolver.query(mFirstCarUri, null, null, null, null)));
+        //A live car is not restored again
+        assertEquals(0, restoreDeleted(id));
+
+        assertEquals(1, mResolver.delete(CarEntry.buildSoftDeleteUri(mFirstCarUri), null, null));
+        assertEquals(1, purgeDeleted());
+        assertEquals(0, restoreDeleted(id));
+        assertEquals(CAR_COUNT - 1, countCars());
+    }
+
+    public void testChunkSizeMustBePositive() {
+        Uri uri = CarEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(CarEntry.QUERY_PARAMETER_CHUNK_SIZE, "0").build();
+        try {
+            mResolver.delete(uri, null, null);
+            fail("Expected a chunk size of 0 to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(CAR_COUNT, countCars());
+    }
+
+    private int purgeDeleted() {
+        Bundle result = getProvider().call(GarageContract.METHOD_PURGE_DELETED, null, null);
+        return result.getInt(GarageContract.PURGED_CARS);
+    }
+
+    private int restoreDeleted(long id) {
+        Bundle result = getProvider().call(GarageContract.METHOD_RESTORE_DELETED, String.valueOf(id), null);
+        return result.getInt(GarageContract.RESTORED_CARS);
+    }
+
+    private long firstCarId() {
+        Cursor cursor = mResolver.query(CarEntry.CONTENT_URI, new String[] {CarEntry._ID},
+                null, null, CarEntry._ID);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int count(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+import com.example.android.monstergarage.table_data.GarageContract.MetricsEntry;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Instrumentation tests for GarageProvider's metrics: every call is counted under its operation
+ * and URI match code, with failed calls counted as errors, both in the cars/_metrics cursor and
+ * in dump(). The tests run against the debug build, the only one answering cars/_metrics.
+ */
+public class GarageProviderMetricsTest extends GarageProviderTestCase {
+
+    public void testCallsErrorsAndRowsAreCountedPerMatchCode() {
+        Uri carUri = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+        insertBadCar();
+        mResolver.query(carUri, null, null, null, null).close();
+        mResolver.query(CarEntry.CONTENT_URI, null, null, null, null).close();
+
+        //calls, errors and rows
+        assertEquals("2|1|1", readMetrics("insert", GarageProvider.CARS_TABLE_CODE));
+        assertEquals("1|0|1", readMetrics("query", GarageProvider.CARS_ID_CODE));
+        assertEquals("1|0|1", readMetrics("query", GarageProvider.CARS_TABLE_CODE));
+        assertNull(readMetrics("update", GarageProvider.CARS_ID_CODE));
+    }
+
+    public void testUnknownUriIsCountedAsAnError() {
+        try {
+            mResolver.query(CarEntry.CONTENT_URI.buildUpon().appendPath("no").appendPath("such").build(),
+                    null, null, null, null);
+            fail("Queried an unknown URI");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals("1|1|0", readMetrics("query", -1));
+    }
+
+    public void testDumpPrintsTheSameCounts() {
+        mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+        insertBadCar();
+
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        getProvider().dump(null, writer, new String[0]);
+        writer.flush();
+
+        String insertLine = null;
+        for (String line : output.toString().split("\n")) {
+            if (line.startsWith("insert ")) {
+                insertLine = line;
+            }
+        }
+        assertNotNull("No insert line in " + output, insertLine);
+        String[] fields = insertLine.trim().split(" +");
+        assertEquals(String.valueOf(GarageProvider.CARS_TABLE_CODE), fields[1]);
+        assertEquals("2", fields[2]);
+        assertEquals("1", fields[3]);
+        assertEquals("1", fields[4]);
+    }
+
+    private void insertBadCar() {
+        ContentValues oldYear = car("Benz", 1700, "CD-456");
+        try {
+            mResolver.insert(CarEntry.CONTENT_URI, oldYear);
+            fail("Inserted a car from " + oldYear.getAsInteger(CarEntry.COLUMN_CAR_YEAR));
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    //The calls, errors and rows of one operation and match code joined with |, or null if never called
+    private String readMetrics(String operation, int matchCode) {
+        Cursor cursor = mResolver.query(MetricsEntry.CONTENT_URI, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (operation.equals(cursor.getString(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_OPERATION)))
+                        && matchCode == cursor.getInt(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_MATCH_CODE))) {
+                    return cursor.getLong(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_CALLS)) + "|"
+                            + cursor.getLong(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_ERRORS)) + "|"
+                            + cursor.getLong(cursor.getColumnIndexOrThrow(MetricsEntry.COLUMN_ROWS));
+                }
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Instrumentation tests for GarageProvider's keyset paging in every sort order, with and
+ * without a filter. Walking the pages must return exactly the rows of one ordered query.
+ */
+public class GarageProviderPagingTest extends GarageProviderTestCase {
+
+    private static final int PAGE_SIZE = 7;
+    private static final String[] MAKES = {"Audi", "Ford", "Opel"};
+    private static final String[] MODELS = {"A", "B"};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        //Plenty of ties on make, model and year, so pages often end in the middle of one
+        ContentValues[] cars = new ContentValues[60];
+        for (int i = 0; i < cars.length; i++) {
+            cars[i] = new ContentValues();
+            cars[i].put(CarEntry.COLUMN_CAR_MAKE, MAKES[i % MAKES.length]);
+            cars[i].put(CarEntry.COLUMN_CAR_MODEL, MODELS[(i / 3) % MODELS.length]);
+            cars[i].put(CarEntry.COLUMN_CAR_YEAR, 1995 + (i * 7) % 5);
+            cars[i].put(CarEntry.COLUMN_CAR_COLOR, i % 2 == 0 ? CarEntry.COLOR_RED : CarEntry.COLOR_BLUE);
+            cars[i].put(CarEntry.COLUMN_CAR_PLATE, "P" + ((i * 37) % 60));
+        }
+        mResolver.bulkInsert(CarEntry.CONTENT_URI, cars);
+    }
+
+    public void testPagesMatchOrderedQueryInEverySortOrder() {
+        String[] sorts = {CarEntry.SORT_BY_ID, CarEntry.SORT_BY_PLATE, CarEntry.SORT_BY_YEAR, CarEntry.SORT_BY_MAKE_MODEL};
+        for (String sortBy : sorts) {
+            assertEquals(sortBy, orderedIds(sortBy, null, null), pagedIds(sortBy, null, null));
+        }
+    }
+
+    public void testPagesOnlyHoldFilteredCars() {
+        String selection = CarEntry.COLUMN_CAR_COLOR + "=? AND " + CarEntry.COLUMN_CAR_YEAR + ">=?";
+        String[] args = {String.valueOf(CarEntry.COLOR_RED), "1997"};
+        ArrayList<Long> expected = orderedIds(CarEntry.SORT_BY_YEAR, selection, args);
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, pagedIds(CarEntry.SORT_BY_YEAR, selection, args));
+    }
+
+    public void testClosedPageKeepsItsRange() {
+        String[] sortColumns = CarEntry.getSortColumns(CarEntry.SORT_BY_MAKE_MODEL);
+        Cursor firstPage = mResolver.query(CarEntry.buildPageUri(CarEntry.SORT_BY_MAKE_MODEL,
+                null, 0, null, -1, PAGE_SIZE), null, null, null, null);
+        String[] lastKey = new String[sortColumns.length];
+        long lastId;
+        try {
+            firstPage.moveToLast();
+            for (int i = 0; i < sortColumns.length; i++) {
+                lastKey[i] = firstPage.getString(firstPage.getColumnIndexOrThrow(sortColumns[i]));
+            }
+            lastId = firstPage.getLong(firstPage.getColumnIndexOrThrow(CarEntry._ID));
+        } finally {
+            firstPage.close();
+        }
+
+        //Without a limit the closed page still stops at its last car
+        Cursor closedPage = mResolver.query(CarEntry.buildPageUri(CarEntry.SORT_BY_MAKE_MODEL,
+                null, 0, lastKey, lastId, -1), null, null, null, null);
+        try {
+            assertEquals(PAGE_SIZE, closedPage.getCount());
+        } finally {
+            closedPage.close();
+        }
+    }
+
+    public void testWrongNumberOfKeyValuesIsRejected() {
+        Uri uri = CarEntry.buildPageUri(CarEntry.SORT_BY_MAKE_MODEL, new String[] {"Ford"}, 5, null, -1, PAGE_SIZE);
+        try {
+            mResolver.query(uri, null, null, null, null);
+            fail("Expected a bound with too few key values to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private ArrayList<Long> orderedIds(String sortBy, String selection, String[] args) {
+        String sortOrder = "";
+        for (String column : CarEntry.getSortColumns(sortBy)) {
+            sortOrder += column + ", ";
+        }
+        Cursor cursor = mResolver.query(CarEntry.CONTENT_URI, new String[] {CarEntry._ID},
+                selection, args, sortOrder + CarEntry._ID);
+        ArrayList<Long> ids = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Walks the pages the way CarListPager does, starting each page after the last car of the previous one
+     */
+    private ArrayList<Long> pagedIds(String sortBy, String selection, String[] args) {
+        String[] sortColumns = CarEntry.getSortColumns(sortBy);
+        ArrayList<Long> ids = new ArrayList<>();
+        String[] afterKey = null;
+        long afterId = 0;
+        while (true) {
+            Cursor page = mResolver.query(CarEntry.buildPageUri(sortBy, afterKey, afterId, null, -1, PAGE_SIZE),
+                    null, selection, args, null);
+            try {
+                while (page.moveToNext()) {
+                    ids.add(page.getLong(page.getColumnIndexOrThrow(CarEntry._ID)));
+                }
+                if (page.getCount() < PAGE_SIZE) {
+                    return ids;
+                }
+                page.moveToLast();
+                afterKey = new String[sortColumns.length];
+                for (int i = 0; i < sortColumns.length; i++) {
+                    afterKey[i] = page.getString(page.getColumnIndexOrThrow(sortColumns[i]));
+                }
+                afterId = page.getLong(page.getColumnIndexOrThrow(CarEntry._ID));
+            } finally {
+                page.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+/**
+ * Instrumentation tests for plate keys: plates that differ only in case, spaces and hyphens are
+ * the same plate, and inserts and bulk inserts settle a taken plate by their conflict policy.
+ */
+public class GarageProviderPlateConflictTest extends GarageProviderTestCase {
+
+    public void testPlateKeyIgnoresCaseSpacesAndHyphens() {
+        assertEquals("AB123", CarEntry.plateKey("ab 123"));
+        assertEquals("AB123", CarEntry.plateKey("AB-123"));
+        String key = "AB123";
+        assertSame(key, CarEntry.plateKey(key));
+    }
+
+    public void testSamePlateKeyIsRejectedByDefault() {
+        assertNotNull(mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123")));
+
+        assertNull(mResolver.insert(CarEntry.CONTENT_URI, car("Opel", 2010, "ab 123")));
+        assertEquals(1, countCars());
+    }
+
+    public void testReplaceDeletesTheCarHoldingThePlate() {
+        Uri oldCar = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+
+        Uri newCar = mResolver.insert(CarEntry.buildConflictUri(CarEntry.CONFLICT_REPLACE),
+                car("Opel", 2010, "ab 123"));
+
+        assertNotNull(newCar);
+        assertFalse(ContentUris.parseId(oldCar) == ContentUris.parseId(newCar));
+        assertEquals(1, countCars());
+        assertEquals("Opel", readMake(newCar));
+    }
+
+    public void testMergeUpdatesTheCarHoldingThePlate() {
+        Uri oldCar = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+
+        Uri mergedCar = mResolver.insert(CarEntry.buildConflictUri(CarEntry.CONFLICT_MERGE),
+                car("Opel", 2010, "ab 123"));
+
+        assertEquals(ContentUris.parseId(oldCar), ContentUris.parseId(mergedCar));
+        assertEquals(1, countCars());
+        assertEquals("Opel", readMake(oldCar));
+    }
+
+    public void testBulkInsertSettlesEveryTakenPlate() {
+        mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+        ContentValues[] cars = {car("Opel", 2010, "AB 123"), car("Kia", 2011, "CD-456"), car("VW", 2015, "cd456")};
+
+        assertEquals(1, mResolver.bulkInsert(CarEntry.CONTENT_URI, cars));
+        assertEquals(2, countCars());
+
+        mResolver.delete(CarEntry.CONTENT_URI, null, null);
+        mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+        assertEquals(3, mResolver.bulkInsert(CarEntry.buildConflictUri(CarEntry.CONFLICT_MERGE), cars));
+        //The Opel was merged into the Ford, and the VW into the Kia inserted just before it
+        assertEquals(2, countCars());
+    }
+
+    public void testUnknownPolicyIsRejected() {
+        try {
+            mResolver.insert(CarEntry.buildConflictUri("ignore"), car("Ford", 2004, "AB-123"));
+            fail("Expected the unknown conflict policy to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private String readMake(Uri carUri) {
+        Cursor cursor = mResolver.query(carUri, new String[] {CarEntry.COLUMN_CAR_MAKE}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.test.RenamingDelegatingContext;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Instrumentation tests for GarageProvider's query cache: a repeated query is answered from the
+ * cache, and every kind of write drops the entries it could have changed, so a query after the
+ * write sees the new data and never a stale copy.
+ */
+public class GarageProviderQueryCacheTest extends GarageProviderTestCase {
+
+    public void testCarQueryIsCachedUntilTheCarChanges() {
+        Uri carUri = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+        assertEquals("Model", readModel(carUri));
+        int hits = cacheStats().getInt(GarageContract.QUERY_CACHE_HITS);
+
+        assertEquals("Model", readModel(carUri));
+        assertEquals(hits + 1, cacheStats().getInt(GarageContract.QUERY_CACHE_HITS));
+
+        ContentValues values = new ContentValues();
+        values.put(CarEntry.COLUMN_CAR_MODEL, "Focus");
+        assertEquals(1, mResolver.update(carUri, values, null, null));
+
+        assertEquals("Focus", readModel(carUri));
+        assertEquals(hits + 1, cacheStats().getInt(GarageContract.QUERY_CACHE_HITS));
+    }
+
+    public void testInsertAndSoftDeleteDropListEntries() {
+        mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+        assertEquals(1, countCars());
+        int hits = cacheStats().getInt(GarageContract.QUERY_CACHE_HITS);
+        assertEquals(1, countCars());
+        assertEquals(hits + 1, cacheStats().getInt(GarageContract.QUERY_CACHE_HITS));
+
+        Uri newCar = mResolver.insert(CarEntry.CONTENT_URI, car("Opel", 2010, "CD-456"));
+        assertEquals(2, countCars());
+
+        assertEquals(1, mResolver.delete(CarEntry.buildSoftDeleteUri(newCar), null, null));
+        assertEquals(1, countCars());
+    }
+
+    public void testApplyBatchLeavesNoStaleEntry() throws Exception {
+        Uri carUri = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+        assertEquals("Model", readModel(carUri));
+        assertEquals(1, countCars());
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(carUri)
+                .withValue(CarEntry.COLUMN_CAR_MODEL, "Focus").build());
+        operations.add(ContentProviderOperation.newInsert(CarEntry.CONTENT_URI)
+                .withValues(car("Opel", 2010, "CD-456")).build());
+        mResolver.applyBatch(GarageContract.CONTENT_AUTHORITY, operations);
+
+        assertEquals("Focus", readModel(carUri));
+        assertEquals(2, countCars());
+    }
+
+    public void testInvalidationsAreNotCountedAsEvictions() {
+        Uri carUri = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+        readModel(carUri);
+        countCars();
+        Bundle before = cacheStats();
+
+        //A table wide change drops every entry
+        mResolver.bulkInsert(CarEntry.CONTENT_URI, new ContentValues[] {car("Opel", 2010, "CD-456")});
+
+        Bundle after = cacheStats();
+        assertEquals(0, after.getInt(GarageContract.QUERY_CACHE_ENTRIES));
+        assertEquals(before.getInt(GarageContract.QUERY_CACHE_EVICTIONS),
+                after.getInt(GarageContract.QUERY_CACHE_EVICTIONS));
+        assertTrue(after.getLong(GarageContract.QUERY_CACHE_INVALIDATIONS)
+                > before.getLong(GarageContract.QUERY_CACHE_INVALIDATIONS));
+    }
+
+    /**
+     * The provider under test keeps its files in /dev/null, where no snapshot can be saved, so
+     * this one runs a provider of its own on a renamed garage.db, like GarageProviderBenchmark
+     */
+    public void testSnapshotRestoreLeavesNoStaleEntry() {
+        Context targetContext = InstrumentationRegistry.getTargetContext();
+        Context context = new RenamingDelegatingContext(targetContext, targetContext, "query_cache_test.");
+        context.deleteDatabase("garage.db");
+        String snapshot = "query_cache_test";
+        ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = GarageContract.CONTENT_AUTHORITY;
+        GarageProvider provider = new GarageProvider();
+        provider.attachInfo(context, providerInfo);
+        try {
+            Uri carUri = provider.insert(CarEntry.CONTENT_URI, car("Ford", 2004, "AB-123"));
+            provider.call(GarageContract.METHOD_SAVE_SNAPSHOT, snapshot, null);
+
+            ContentValues values = new ContentValues();
+            values.put(CarEntry.COLUMN_CAR_MODEL, "Focus");
+            provider.update(carUri, values, null, null);
+            provider.insert(CarEntry.CONTENT_URI, car("Opel", 2010, "CD-456"));
+            assertEquals("Focus", readModel(provider, carUri));
+            assertEquals(2, countCars(provider));
+
+            provider.call(GarageContract.METHOD_RESTORE_SNAPSHOT, snapshot, null);
+
+            assertEquals("Model", readModel(provider, carUri));
+            assertEquals(1, countCars(provider));
+        } finally {
+            provider.shutdown();
+            context.deleteDatabase("garage.db");
+            new File(new File(context.getFilesDir(), "snapshots"), snapshot + ".snapshot").delete();
+        }
+    }
+
+    private Bundle cacheStats() {
+        return mResolver.call(GarageContract.BASE_CONTENT_URI, GarageContract.METHOD_QUERY_CACHE_STATS, null, null);
+    }
+
+    private String readModel(Uri carUri) {
+        return readModel(getProvider(), carUri);
+    }
+
+    private static String readModel(GarageProvider provider, Uri carUri) {
+        Cursor cursor = provider.query(carUri, new String[] {CarEntry.COLUMN_CAR_MODEL}, null, null, null);
+        try {
+            assertTrue("No car " + ContentUris.parseId(carUri), cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int countCars(GarageProvider provider) {
+        Cursor cursor = provider.query(CarEntry.CONTENT_URI, new String[] {CarEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
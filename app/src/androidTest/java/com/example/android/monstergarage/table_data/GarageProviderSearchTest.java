@@ -0,0 +1,98 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+/**
+ * Instrumentation tests for the cars/search URI. The FTS triggers must keep the search table in
+ * step with every insert, update and delete, every word of the search text is a prefix of a word
+ * in the make, model or plate, and a soft deleted car is only found again once it is restored.
+ */
+public class GarageProviderSearchTest extends GarageProviderTestCase {
+
+    private Uri mFordUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getProvider().call(GarageContract.METHOD_PURGE_DELETED, null, null);
+
+        mFordUri = mResolver.insert(CarEntry.CONTENT_URI, car("Ford", "Focus", 2004, "AB-123"));
+        mResolver.insert(CarEntry.CONTENT_URI, car("Opel", "Astra", 2010, "CD-456"));
+    }
+
+    public void testPrefixesOfMakeModelAndPlateMatch() {
+        assertEquals("AB-123", search("For"));
+        assertEquals("AB-123", search("foc"));
+        assertEquals("CD-456", search("ASTR"));
+        //The plate is split into words at the dash
+        assertEquals("AB-123", search("ab"));
+        assertEquals("CD-456", search("45"));
+        assertEquals("AB-123|CD-456", search("a"));
+
+        //Every word has to match
+        assertEquals("AB-123", search("ford fo"));
+        assertEquals("", search("ford astra"));
+        assertEquals("", search("ocus"));
+        assertEquals("", search(" - "));
+    }
+
+    public void testUpdatedCarIsFoundByItsNewValues() {
+        ContentValues values = new ContentValues();
+        values.put(CarEntry.COLUMN_CAR_MODEL, "Mondeo");
+        values.put(CarEntry.COLUMN_CAR_PLATE, "EF-789");
+        assertEquals(1, mResolver.update(mFordUri, values, null, null));
+
+        assertEquals("", search("focus"));
+        assertEquals("", search("ab"));
+        assertEquals("EF-789", search("mond"));
+        assertEquals("EF-789", search("ef 78"));
+        assertEquals("EF-789", search("ford"));
+    }
+
+    public void testSoftDeletedCarIsNotFoundUntilRestored() {
+        long id = ContentUris.parseId(mFordUri);
+        assertEquals(1, mResolver.delete(CarEntry.buildSoftDeleteUri(mFordUri), null, null));
+
+        assertEquals("", search("ford"));
+        assertEquals("", search("ab"));
+        assertEquals("CD-456", search("a"));
+
+        Bundle result = getProvider().call(GarageContract.METHOD_RESTORE_DELETED, String.valueOf(id), null);
+        assertEquals(1, result.getInt(GarageContract.RESTORED_CARS));
+        assertEquals("AB-123", search("ford"));
+
+        //A hard delete takes the car out of the search table as well
+        assertEquals(1, mResolver.delete(mFordUri, null, null));
+        assertEquals("", search("ford"));
+    }
+
+    private static ContentValues car(String make, String model, int year, String plate) {
+        ContentValues car = car(make, year, plate);
+        car.put(CarEntry.COLUMN_CAR_MODEL, model);
+        return car;
+    }
+
+    //The plates of the cars found, in plate order and joined with |
+    private String search(String text) {
+        Cursor cursor = mResolver.query(CarEntry.buildSearchUri(text, -1),
+                new String[] {CarEntry.COLUMN_CAR_PLATE}, null, null, CarEntry.COLUMN_CAR_PLATE);
+        try {
+            StringBuilder plates = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (plates.length() > 0) {
+                    plates.append('|');
+                }
+                plates.append(cursor.getString(0));
+            }
+            return plates.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+}
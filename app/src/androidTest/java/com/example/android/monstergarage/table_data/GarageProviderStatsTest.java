@@ -0,0 +1,78 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+import com.example.android.monstergarage.table_data.GarageContract.StatsEntry;
+
+/**
+ * Instrumentation tests for GarageProvider's grouped statistics URIs: the counts, years and
+ * color names of each group, their order, and a where clause that narrows the cars first.
+ */
+public class GarageProviderStatsTest extends GarageProviderTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver.bulkInsert(CarEntry.CONTENT_URI, new ContentValues[] {
+                car("Ford", 1994, CarEntry.COLOR_RED, "A1"),
+                car("Ford", 1999, CarEntry.COLOR_BLUE, "A2"),
+                car("Ford", 2004, CarEntry.COLOR_RED, "A3"),
+                car("Opel", 2001, CarEntry.COLOR_RED, "A4"),
+                car("Audi", 2015, CarEntry.COLOR_BLACK, "A5")});
+    }
+
+    public void testCountsPerMakeBiggestFirst() {
+        Cursor cursor = mResolver.query(StatsEntry.BY_MAKE_URI, null, null, null, null);
+        try {
+            assertEquals(3, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Ford", cursor.getString(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_GROUP)));
+            assertEquals(3, cursor.getInt(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_CAR_COUNT)));
+            assertEquals(1994, cursor.getInt(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_OLDEST_YEAR)));
+            assertEquals(2004, cursor.getInt(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_NEWEST_YEAR)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testCountsPerYearBandOldestFirst() {
+        Cursor cursor = mResolver.query(StatsEntry.buildYearBandUri(10),
+                new String[] {StatsEntry.COLUMN_GROUP, StatsEntry.COLUMN_CAR_COUNT}, null, null, null);
+        try {
+            assertEquals(3, cursor.getCount());
+            int[][] expected = {{1990, 2}, {2000, 2}, {2010, 1}};
+            for (int[] band : expected) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(band[0], cursor.getInt(0));
+                assertEquals(band[1], cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testWhereClauseFiltersBeforeGrouping() {
+        Cursor cursor = mResolver.query(StatsEntry.BY_COLOR_URI, null,
+                CarEntry.COLUMN_CAR_MAKE + "=?", new String[] {"Ford"}, null);
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(CarEntry.COLOR_RED, cursor.getInt(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_GROUP)));
+            assertEquals("Red", cursor.getString(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_COLOR_NAME)));
+            assertEquals(2, cursor.getInt(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_CAR_COUNT)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testUnknownGroupingIsRejected() {
+        try {
+            mResolver.query(StatsEntry.CONTENT_URI.buildUpon().appendPath("by_plate").build(),
+                    null, null, null, null);
+            fail("Expected an unknown grouping to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+/**
+ * Base of the GarageProvider instrumentation tests. ProviderTestCase2 runs the provider against
+ * an isolated copy of garage.db, so the tests never touch the app's real data, and setUp()
+ * empties the cars table so every test starts from no cars.
+ */
+abstract class GarageProviderTestCase extends ProviderTestCase2<GarageProvider> {
+
+    protected MockContentResolver mResolver;
+
+    GarageProviderTestCase() {
+        super(GarageProvider.class, GarageContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+        mResolver.delete(CarEntry.CONTENT_URI, null, null);
+    }
+
+    /**
+     * A valid red car with the given make, year and plate
+     */
+    static ContentValues car(String make, int year, String plate) {
+        return car(make, year, CarEntry.COLOR_RED, plate);
+    }
+
+    static ContentValues car(String make, int year, int color, String plate) {
+        ContentValues car = new ContentValues();
+        car.put(CarEntry.COLUMN_CAR_MAKE, make);
+        car.put(CarEntry.COLUMN_CAR_MODEL, "Model");
+        car.put(CarEntry.COLUMN_CAR_YEAR, year);
+        car.put(CarEntry.COLUMN_CAR_COLOR, color);
+        car.put(CarEntry.COLUMN_CAR_PLATE, plate);
+        return car;
+    }
+
+    /**
+     * The number of cars the provider returns, soft deleted cars are left out like in any query
+     */
+    int countCars() {
+        return countCars(null, null);
+    }
+
+    int countCars(String where, String[] whereArgs) {
+        Cursor cursor = mResolver.query(CarEntry.CONTENT_URI, new String[] {CarEntry._ID}, where, whereArgs, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
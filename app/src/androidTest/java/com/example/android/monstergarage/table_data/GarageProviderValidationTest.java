@@ -0,0 +1,81 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+import android.net.Uri;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+/**
+ * Instrumentation tests for the car checks GarageProvider runs before inserting or updating:
+ * each kind of bad value is rejected with an IllegalArgumentException and nothing is written,
+ * while an update only has the columns it changes checked.
+ */
+public class GarageProviderValidationTest extends GarageProviderTestCase {
+
+    private Uri mCarUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCarUri = mResolver.insert(CarEntry.CONTENT_URI, car("AB-123"));
+    }
+
+    public void testYearAsTextFromTheEditorIsAccepted() {
+        ContentValues car = car("CD 456");
+        car.put(CarEntry.COLUMN_CAR_YEAR, "2004");
+
+        assertNotNull(mResolver.insert(CarEntry.CONTENT_URI, car));
+    }
+
+    public void testBadValuesAreRejectedOnInsert() {
+        ContentValues blankMake = car("X1");
+        blankMake.put(CarEntry.COLUMN_CAR_MAKE, "  ");
+        ContentValues oldYear = car("X2");
+        oldYear.put(CarEntry.COLUMN_CAR_YEAR, 1700);
+        ContentValues textYear = car("X3");
+        textYear.put(CarEntry.COLUMN_CAR_YEAR, "20o4");
+        ContentValues unknownColor = car("X4");
+        unknownColor.put(CarEntry.COLUMN_CAR_COLOR, 12345);
+        ContentValues badPlate = car("X5");
+        badPlate.put(CarEntry.COLUMN_CAR_PLATE, "AB--12");
+        ContentValues noColor = car("X6");
+        noColor.remove(CarEntry.COLUMN_CAR_COLOR);
+
+        for (ContentValues car : new ContentValues[] {blankMake, oldYear, textYear, unknownColor, badPlate, noColor}) {
+            try {
+                mResolver.insert(CarEntry.CONTENT_URI, car);
+                fail("Expected " + car + " to be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(1, countCars());
+    }
+
+    public void testPartialUpdateOnlyChecksItsColumns() {
+        ContentValues newYear = new ContentValues();
+        newYear.put(CarEntry.COLUMN_CAR_YEAR, 2010);
+
+        assertEquals(1, mResolver.update(mCarUri, newYear, null, null));
+    }
+
+    public void testPartialUpdateWithoutMakeIsStillChecked() {
+        //Each column used to be checked only when make was part of the update
+        ContentValues nullModel = new ContentValues();
+        nullModel.putNull(CarEntry.COLUMN_CAR_MODEL);
+        ContentValues badPlate = new ContentValues();
+        badPlate.put(CarEntry.COLUMN_CAR_PLATE, "#1");
+
+        for (ContentValues values : new ContentValues[] {nullModel, badPlate}) {
+            try {
+                mResolver.update(mCarUri, values, null, null);
+                fail("Expected " + values + " to be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    //Only the plate differs between the cars of these tests
+    private static ContentValues car(String plate) {
+        return car("Ford", 2001, plate);
+    }
+}
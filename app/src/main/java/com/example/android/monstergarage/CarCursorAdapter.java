@@ -1,52 +1,403 @@
 package com.example.android.monstergarage;
 
-import android.content.Context;
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.example.android.monstergarage.table_data.CarColors;
+import com.example.android.monstergarage.table_data.CarWriteBuffer;
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * Created by Jujuan on 11/23/2017.
+ *
+ * RecyclerView adapter over the pages produced by CarListPager. Each page is a small cursor,
+ * pages that are not currently loaded show as empty placeholder rows until they are
+ * loaded again, so list positions never move while the user scrolls.
+ *
+ * Items have stable ids. When new pages arrive they are diffed against the rows currently shown
+ * with DiffUtil on a background thread, and only the inserted, removed or changed rows are
+ * animated and rebound.
+ *
+ * Binding a row does not allocate: views are cached in a ViewHolder, column indexes are resolved
+ * once per swap, and text is copied straight from the cursor into char buffers kept by the holder.
+ *
+ * Edits still waiting in the CarWriteBuffer are shown over the values read from the provider,
+ * call notifyDataSetChanged() when the buffer changes.
  */
 
-public class CarCursorAdapter extends CursorAdapter {
+public class CarCursorAdapter extends RecyclerView.Adapter<CarCursorAdapter.ViewHolder> {
 
-    public CarCursorAdapter(Context context, Cursor cursor){
-        super(context, cursor, 0);
+    /**
+     * Notified when the user taps a car in the list
+     */
+    public interface OnCarClickListener {
+        void onCarClick(long id);
     }
 
+    //Diffs are computed off the main thread, one at a time
+    private static final ExecutorService sDiffExecutor = Executors.newSingleThreadExecutor();
+
+    private final LayoutInflater mInflater;
+    private final OnCarClickListener mClickListener;
+    private final CarWriteBuffer mWriteBuffer;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    //Pages currently shown, and the flattened state of their rows
+    private CarPage[] mPages = CarPage.NONE;
+    private Snapshot mSnapshot = new Snapshot(CarPage.NONE);
+    //Pages waiting for their diff to finish, or null
+    private CarPage[] mPendingPages;
+    //Increased for every swap, so a diff that was overtaken by a newer swap is thrown away
+    private int mGeneration;
+
+    //Column indexes of the current pages, every page is queried with the same columns
+    private int mColorColumn = -1;
+    private int mMakeColumn = -1;
+    private int mModelColumn = -1;
+    private int mYearColumn = -1;
+    private int mPlateColumn = -1;
+
+    //Labels written in front of the year and plate
+    private static final char[] NO_PREFIX = new char[0];
+    private static final char[] YEAR_PREFIX = "Yr: ".toCharArray();
+    private static final char[] PLATE_PREFIX = "LP#: ".toCharArray();
+
+    /**
+     * Caches the row's views and the buffers its text is copied into
+     */
+    static final class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView carColorView;
+        final TextView carMakeModelView;
+        final TextView carYearView;
+        final TextView carPlateView;
+
+        final CharArrayBuffer makeBuffer = new CharArrayBuffer(32);
+        final CharArrayBuffer modelBuffer = new CharArrayBuffer(32);
+        final CharArrayBuffer yearBuffer = new CharArrayBuffer(8);
+        final CharArrayBuffer plateBuffer = new CharArrayBuffer(16);
+
+        //Text shown by each TextView. A TextView keeps using the array it was given,
+        //so every view needs its own array, only changed right before the next setText()
+        char[] makeModelText = new char[64];
+        char[] yearText = new char[16];
+        char[] plateText = new char[24];
+
+        ViewHolder(View view) {
+            super(view);
+            carColorView = (ImageView) view.findViewById(R.id.colorImageView);
+            carMakeModelView = (TextView) view.findViewById(R.id.makeModeltextView);
+            carYearView = (TextView) view.findViewById(R.id.yearTextView);
+            carPlateView = (TextView) view.findViewById(R.id.platesTextView);
+        }
+    }
+
+    /**
+     * Flattened ids, content hashes and loaded state of every row of a set of pages,
+     * plus the list position where each page starts
+     */
+    private static final class Snapshot {
+        final long[] ids;
+        final int[] contentHashes;
+        final boolean[] loaded;
+        final int[] pageStarts;
+
+        Snapshot(CarPage[] pages) {
+            pageStarts = new int[pages.length];
+            int count = 0;
+            for (int page = 0; page < pages.length; page++) {
+                pageStarts[page] = count;
+                count += pages[page].ids.length;
+            }
+
+            ids = new long[count];
+            contentHashes = new int[count];
+            loaded = new boolean[count];
+            for (int page = 0; page < pages.length; page++) {
+                CarPage carPage = pages[page];
+                int start = pageStarts[page];
+                System.arraycopy(carPage.ids, 0, ids, start, carPage.ids.length);
+                System.arraycopy(carPage.contentHashes, 0, contentHashes, start, carPage.ids.length);
+                for (int row = 0; row < carPage.ids.length; row++) {
+                    loaded[start + row] = carPage.cursor != null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares two snapshots by car id, and by content and loaded state for the same car
+     */
+    private static final class SnapshotDiff extends DiffUtil.Callback {
+        private final Snapshot mOld;
+        private final Snapshot mNew;
+
+        SnapshotDiff(Snapshot oldSnapshot, Snapshot newSnapshot) {
+            mOld = oldSnapshot;
+            mNew = newSnapshot;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.ids.length;
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.ids.length;
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return mOld.ids[oldPosition] == mNew.ids[newPosition];
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return mOld.contentHashes[oldPosition] == mNew.contentHashes[newPosition]
+                    && mOld.loaded[oldPosition] == mNew.loaded[newPosition];
+        }
+    }
+
+    public CarCursorAdapter(LayoutInflater inflater, CarWriteBuffer writeBuffer, OnCarClickListener clickListener){
+        mInflater = inflater;
+        mWriteBuffer = writeBuffer;
+        mClickListener = clickListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Replace the pages shown by the list. The change is diffed against the current rows on a
+     * background thread and applied to the list when the diff is ready. The adapter holds its
+     * own reference on every page cursor it may still bind from, so loaders can close theirs.
+     */
+    public void swapPages(final CarPage[] pages) {
+        acquire(pages);
+        if (mPendingPages != null) {
+            release(mPendingPages);
+        }
+        mPendingPages = pages;
+
+        final int generation = ++mGeneration;
+        final Snapshot oldSnapshot = mSnapshot;
+        final Snapshot newSnapshot = new Snapshot(pages);
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                        new SnapshotDiff(oldSnapshot, newSnapshot), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            //A newer swap replaced these pages while the diff was running
+                            return;
+                        }
+                        applyPages(pages, newSnapshot);
+                        diff.dispatchUpdatesTo(CarCursorAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Releases every page cursor held by the adapter, call when the list goes away
+     */
+    public void close() {
+        mGeneration++;
+        if (mPendingPages != null) {
+            release(mPendingPages);
+            mPendingPages = null;
+        }
+        release(mPages);
+        mPages = CarPage.NONE;
+    }
+
+    private void applyPages(CarPage[] pages, Snapshot snapshot) {
+        release(mPages);
+        mPages = pages;
+        mPendingPages = null;
+        mSnapshot = snapshot;
+        for (CarPage page : pages) {
+            if (page.cursor != null) {
+                resolveColumns(page.cursor);
+                break;
+            }
+        }
+    }
+
+    private static void acquire(CarPage[] pages) {
+        for (CarPage page : pages) {
+            if (page.cursor != null) {
+                page.cursor.acquire();
+            }
+        }
+    }
+
+    private static void release(CarPage[] pages) {
+        for (CarPage page : pages) {
+            if (page.cursor != null) {
+                page.cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Looks up the column indexes once, instead of for every row that is bound
+     */
+    private void resolveColumns(Cursor cursor) {
+        mColorColumn = cursor.getColumnIndexOrThrow(CarEntry.COLUMN_CAR_COLOR);
+        mMakeColumn = cursor.getColumnIndexOrThrow(CarEntry.COLUMN_CAR_MAKE);
+        mModelColumn = cursor.getColumnIndexOrThrow(CarEntry.COLUMN_CAR_MODEL);
+        mYearColumn = cursor.getColumnIndexOrThrow(CarEntry.COLUMN_CAR_YEAR);
+        mPlateColumn = cursor.getColumnIndexOrThrow(CarEntry.COLUMN_CAR_PLATE);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mSnapshot.ids.length;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mSnapshot.ids[position];
+    }
 
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.main_listview_item, parent, false);
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = mInflater.inflate(R.layout.main_listview_item, parent, false);
+        final ViewHolder holder = new ViewHolder(view);
+        view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (holder.getAdapterPosition() != RecyclerView.NO_POSITION) {
+                    mClickListener.onCarClick(holder.getItemId());
+                }
+            }
+        });
+        return holder;
     }
 
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-
-        //Find fields that will be populated in UI list view
-        ImageView carColorView = (ImageView) view.findViewById(R.id.colorImageView);
-        TextView carMakeModelView = (TextView) view.findViewById(R.id.makeModeltextView);
-        TextView carYearView = (TextView) view.findViewById(R.id.yearTextView);
-        TextView carPlateView = (TextView) view.findViewById(R.id.platesTextView);
-
-        //Extract the required properties from cursor
-        int carColor = cursor.getInt(cursor.getColumnIndexOrThrow("color"));
-        String carMake = cursor.getString(cursor.getColumnIndexOrThrow("make"));
-        String carModel = cursor.getString(cursor.getColumnIndexOrThrow("model"));
-        String carYear = cursor.getString(cursor.getColumnIndexOrThrow("year"));
-        String carPlate = cursor.getString(cursor.getColumnIndexOrThrow("plate"));
-
-        //Assign or populate list view fields with extracted properties
-        carColorView.setBackgroundColor(carColor);
-        carMakeModelView.setText(carMake + " " + carModel);
-        carYearView.setText("Yr: "+ carYear);
-        carPlateView.setText("LP#: " +carPlate);
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        int page = pageOf(position);
+        Cursor cursor = mPages[page].cursor;
+        if (cursor != null && cursor.moveToPosition(position - mSnapshot.pageStarts[page])) {
+            bindCar(holder, cursor, mWriteBuffer.getPendingValues(mSnapshot.ids[position]));
+        } else {
+            bindPlaceholder(holder);
+        }
+    }
+
+    /**
+     * Binary search for the page that holds the given list position
+     */
+    private int pageOf(int position) {
+        int[] pageStarts = mSnapshot.pageStarts;
+        int low = 0;
+        int high = pageStarts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (pageStarts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void bindCar(ViewHolder holder, Cursor cursor, @Nullable ContentValues pending) {
+
+        //Copy the required properties from the cursor window into the holder's buffers,
+        //or from an edit that has not been written yet
+        copyColumn(cursor, mMakeColumn, pending, CarEntry.COLUMN_CAR_MAKE, holder.makeBuffer);
+        copyColumn(cursor, mModelColumn, pending, CarEntry.COLUMN_CAR_MODEL, holder.modelBuffer);
+        copyColumn(cursor, mYearColumn, pending, CarEntry.COLUMN_CAR_YEAR, holder.yearBuffer);
+        copyColumn(cursor, mPlateColumn, pending, CarEntry.COLUMN_CAR_PLATE, holder.plateBuffer);
+        Integer pendingColor = pending != null ? pending.getAsInteger(CarEntry.COLUMN_CAR_COLOR) : null;
+        int color = pendingColor != null ? pendingColor : cursor.getInt(mColorColumn);
+
+        //Assign or populate list view fields with extracted properties, the color id indexes
+        //straight into CarColors
+        holder.carColorView.setBackgroundColor(CarColors.isValid(color) ? CarColors.argb(color) : 0);
+        holder.makeModelText = showText(holder.carMakeModelView, holder.makeModelText,
+                NO_PREFIX, holder.makeBuffer, holder.modelBuffer);
+        holder.yearText = showText(holder.carYearView, holder.yearText,
+                YEAR_PREFIX, holder.yearBuffer, null);
+        holder.plateText = showText(holder.carPlateView, holder.plateText,
+                PLATE_PREFIX, holder.plateBuffer, null);
+
+    }
+
+    /**
+     * Copies a column into the buffer, using the pending edit's value instead when it has one
+     */
+    private static void copyColumn(Cursor cursor, int column, @Nullable ContentValues pending,
+                                   String key, CharArrayBuffer buffer) {
+        Object value = pending != null ? pending.get(key) : null;
+        if (value == null) {
+            cursor.copyStringToBuffer(column, buffer);
+            return;
+        }
+        String text = value.toString();
+        if (buffer.data == null || buffer.data.length < text.length()) {
+            buffer.data = new char[text.length()];
+        }
+        text.getChars(0, text.length(), buffer.data, 0);
+        buffer.sizeCopied = text.length();
+    }
+
+    /**
+     * Writes prefix + first (+ " " + second) into the view's own char array and shows it.
+     * Returns the array to keep for the view, which is only replaced when the text outgrows it.
+     */
+    private static char[] showText(TextView view, char[] text, char[] prefix,
+                                   CharArrayBuffer first, @Nullable CharArrayBuffer second) {
+        int length = prefix.length + first.sizeCopied;
+        if (second != null) {
+            length += 1 + second.sizeCopied;
+        }
+        if (text.length < length) {
+            text = new char[Math.max(length, text.length * 2)];
+        }
+
+        System.arraycopy(prefix, 0, text, 0, prefix.length);
+        int end = prefix.length;
+        System.arraycopy(first.data, 0, text, end, first.sizeCopied);
+        end += first.sizeCopied;
+        if (second != null) {
+            text[end++] = ' ';
+            System.arraycopy(second.data, 0, text, end, second.sizeCopied);
+            end += second.sizeCopied;
+        }
+
+        view.setText(text, 0, end);
+        return text;
+    }
 
+    /**
+     * Blank out a row whose page is still being loaded
+     */
+    private void bindPlaceholder(ViewHolder holder) {
+        holder.carColorView.setBackgroundColor(0);
+        holder.carMakeModelView.setText(null);
+        holder.carYearView.setText(null);
+        holder.carPlateView.setText(null);
     }
 
 
@@ -0,0 +1,130 @@
+package com.example.android.monstergarage;
+
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.ArrayList;
+
+/**
+ * The filter and order picked for the cars list. The filter becomes a where clause with
+ * ? placeholders, so the values typed in never end up in the SQL, and the order is one of
+ * the CarEntry.SORT_BY_* values the provider pages through with an index.
+ */
+final class CarFilter {
+
+    private static final String KEY_MAKE = "filter_make";
+    private static final String KEY_MIN_YEAR = "filter_min_year";
+    private static final String KEY_MAX_YEAR = "filter_max_year";
+    private static final String KEY_COLOR = "filter_color";
+    private static final String KEY_SORT_BY = "filter_sort_by";
+
+    //Each filter is null when it does not narrow the list
+    @Nullable
+    final String make;
+    @Nullable
+    final Integer minYear;
+    @Nullable
+    final Integer maxYear;
+    @Nullable
+    final Integer color;
+    final String sortBy;
+
+    CarFilter(@Nullable String make, @Nullable Integer minYear, @Nullable Integer maxYear,
+              @Nullable Integer color, String sortBy) {
+        this.make = make;
+        this.minYear = minYear;
+        this.maxYear = maxYear;
+        this.color = color;
+        this.sortBy = sortBy;
+    }
+
+    /**
+     * Every car, in the order they were added
+     */
+    static CarFilter none() {
+        return new CarFilter(null, null, null, null, CarEntry.SORT_BY_ID);
+    }
+
+    boolean isFiltered() {
+        return make != null || minYear != null || maxYear != null || color != null;
+    }
+
+    /**
+     * The where clause for the filters that are set, or null when there are none
+     */
+    @Nullable
+    String selection() {
+        StringBuilder selection = new StringBuilder();
+        if (make != null) {
+            appendClause(selection, CarEntry.COLUMN_CAR_MAKE + "=?");
+        }
+        if (minYear != null) {
+            appendClause(selection, CarEntry.COLUMN_CAR_YEAR + ">=?");
+        }
+        if (maxYear != null) {
+            appendClause(selection, CarEntry.COLUMN_CAR_YEAR + "<=?");
+        }
+        if (color != null) {
+            appendClause(selection, CarEntry.COLUMN_CAR_COLOR + "=?");
+        }
+        return selection.length() == 0 ? null : selection.toString();
+    }
+
+    /**
+     * The values for the placeholders of selection(), in the same order
+     */
+    @Nullable
+    String[] selectionArgs() {
+        ArrayList<String> args = new ArrayList<>();
+        if (make != null) {
+            args.add(make);
+        }
+        if (minYear != null) {
+            args.add(String.valueOf(minYear));
+        }
+        if (maxYear != null) {
+            args.add(String.valueOf(maxYear));
+        }
+        if (color != null) {
+            args.add(String.valueOf(color));
+        }
+        return args.isEmpty() ? null : args.toArray(new String[args.size()]);
+    }
+
+    private static void appendClause(StringBuilder selection, String clause) {
+        if (selection.length() > 0) {
+            selection.append(" AND ");
+        }
+        selection.append(clause);
+    }
+
+    void writeTo(Bundle bundle) {
+        bundle.putString(KEY_MAKE, make);
+        if (minYear != null) {
+            bundle.putInt(KEY_MIN_YEAR, minYear);
+        }
+        if (maxYear != null) {
+            bundle.putInt(KEY_MAX_YEAR, maxYear);
+        }
+        if (color != null) {
+            bundle.putInt(KEY_COLOR, color);
+        }
+        bundle.putString(KEY_SORT_BY, sortBy);
+    }
+
+    /**
+     * Reads back a filter saved with writeTo(), or none() if the bundle holds no filter
+     */
+    static CarFilter readFrom(@Nullable Bundle bundle) {
+        if (bundle == null || !bundle.containsKey(KEY_SORT_BY)) {
+            return none();
+        }
+        return new CarFilter(bundle.getString(KEY_MAKE),
+                bundle.containsKey(KEY_MIN_YEAR) ? bundle.getInt(KEY_MIN_YEAR) : null,
+                bundle.containsKey(KEY_MAX_YEAR) ? bundle.getInt(KEY_MAX_YEAR) : null,
+                bundle.containsKey(KEY_COLOR) ? bundle.getInt(KEY_COLOR) : null,
+                bundle.getString(KEY_SORT_BY));
+    }
+}
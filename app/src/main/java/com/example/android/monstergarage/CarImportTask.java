@@ -0,0 +1,100 @@
+package com.example.android.monstergarage;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.example.android.monstergarage.table_data.CarImporter;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+/**
+ * Runs a CarImporter on a background thread while a progress dialog shows how far it got.
+ * The import keeps going if the activity that started it goes away, and its outcome is
+ * shown as a toast through the application context.
+ */
+class CarImportTask extends AsyncTask<Uri, Integer, CarImporter.Result> {
+
+    private static final String LOG_TAG = CarImportTask.class.getSimpleName();
+
+    private final Context mAppContext;
+    private final CarImporter mImporter;
+    private final WeakReference<ProgressDialog> mDialog;
+    private IOException mError;
+
+    /**
+     * @param conflictPolicy one of the CarEntry.CONFLICT_* policies, for cars whose plate is taken
+     */
+    CarImportTask(Context context, ProgressDialog dialog, String conflictPolicy) {
+        mAppContext = context.getApplicationContext();
+        mImporter = new CarImporter(mAppContext.getContentResolver(), conflictPolicy);
+        mDialog = new WeakReference<>(dialog);
+    }
+
+    /**
+     * Stops the import after the chunk being written
+     */
+    void cancelImport() {
+        mImporter.cancel();
+    }
+
+    @Override
+    protected CarImporter.Result doInBackground(Uri... sources) {
+        try {
+            return mImporter.importCars(sources[0], new CarImporter.ProgressListener() {
+                @Override
+                public void onProgress(long bytesRead, long totalBytes, int carsImported) {
+                    //Percentage of the file read, or -1 while the size is unknown
+                    int percent = totalBytes > 0 ? (int) (bytesRead * 100 / totalBytes) : -1;
+                    publishProgress(percent, carsImported);
+                }
+            });
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Import of " + sources[0] + " failed", e);
+            mError = e;
+            return null;
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+        ProgressDialog dialog = mDialog.get();
+        if (dialog == null || !dialog.isShowing()) {
+            return;
+        }
+        if (progress[0] >= 0) {
+            dialog.setIndeterminate(false);
+            dialog.setProgress(progress[0]);
+        }
+        dialog.setMessage(progress[1] + " cars imported");
+    }
+
+    @Override
+    protected void onPostExecute(CarImporter.Result result) {
+        ProgressDialog dialog = mDialog.get();
+        if (dialog != null && dialog.isShowing()) {
+            dialog.dismiss();
+        }
+
+        String message;
+        if (result == null) {
+            message = "Import failed: " + mError.getMessage();
+        } else {
+            message = result.carsImported + " cars imported";
+            if (result.carsRejected > 0) {
+                message += ", " + result.carsRejected + " skipped";
+                if (!result.errors.isEmpty()) {
+                    message += " (" + result.errors.get(0) + ")";
+                }
+            }
+            if (result.cancelled) {
+                message += ", import cancelled";
+            }
+        }
+        Toast.makeText(mAppContext, message, Toast.LENGTH_LONG).show();
+    }
+}
@@ -0,0 +1,387 @@
+package com.example.android.monstergarage;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
+import android.text.TextUtils;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the cars list one small page at a time using keyset pagination on
+ * CarEntry.CONTENT_URI, with one CarPageLoader per page.
+ *
+ * The list is in one of the CarEntry.SORT_BY_* orders, always followed by _id so no two cars
+ * tie, and may be narrowed by a where clause that every page query carries.
+ * Every page covers a fixed range of that order, from just after the last car of the previous
+ * page up to and including its own last car. Only the last page is open ended and limited to
+ * PAGE_SIZE rows. Because the ranges never move, a page can be re-queried after a change or
+ * after it was dropped without shifting rows into its neighbours.
+ * Only the pages around the visible rows keep a cursor, so memory stays bounded and the
+ * first page paints just as fast for ten cars as for a hundred thousand.
+ *
+ * The page loaders do not watch their own cursors. GarageProvider notifies the URI of each
+ * changed car, so the pager listens to the whole table once and, in _id order, reloads only
+ * the page whose range holds the changed _id. In any other order a changed car may move to
+ * another page, and table level notifications can touch any car, so both reload every loaded page.
+ */
+public class CarListPager implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    //Number of cars fetched per page, small enough to always fit in one CursorWindow
+    static final int PAGE_SIZE = 50;
+    //Maximum number of page cursors kept open at once
+    private static final int MAX_LOADED_PAGES = 8;
+    //Start loading the next page when the user scrolls this close to the end of the list
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    private static final String KEY_LOADER_COUNT = "pager_loader_count";
+
+    /**
+     * Receives the current set of pages every time one is loaded, reloaded or dropped
+     */
+    public interface Listener {
+        /**
+         * @param pages every page in order, pages not currently loaded have no cursor
+         *              but still know their car ids
+         */
+        void onPagesChanged(CarPage[] pages);
+    }
+
+    /**
+     * One fixed range of the list, bounded by the sort key and _id of a car at each end
+     */
+    private static final class Page {
+        //Sort key and _id of the last car of the previous page, 0 for the first page
+        final String[] afterKey;
+        final long afterId;
+        //Sort key and _id of the page's own last car, or -1 while this is the open ended last page
+        String[] untilKey;
+        long untilId = -1;
+        CarPage loaded = CarPage.of(null);
+        boolean loading;
+
+        Page(String[] afterKey, long afterId) {
+            this.afterKey = afterKey;
+            this.afterId = afterId;
+        }
+
+        Uri uri(String sortBy) {
+            return CarEntry.buildPageUri(sortBy, afterKey, afterId, untilKey, untilId,
+                    untilId < 0 ? PAGE_SIZE : -1);
+        }
+
+        //New cars get higher ids than every existing car, so they land in the open ended last page
+        boolean contains(long id) {
+            return id > afterId && (untilId < 0 || id <= untilId);
+        }
+    }
+
+    private final Context mContext;
+    private final LoaderManager mLoaderManager;
+    private final int mFirstLoaderId;
+    private final String[] mProjection;
+    private final Listener mListener;
+    private final ArrayList<Page> mPages = new ArrayList<>();
+    //Page loaders may have been started with every id below mFirstLoaderId + mLoaderCount.
+    //Dropped pages leave gaps, so this is the only way to find them all again
+    private int mLoaderCount;
+    //Order and filter of the list, applied by the next start()
+    private String mSortBy = CarEntry.SORT_BY_ID;
+    private String mSelection;
+    private String[] mSelectionArgs;
+
+    //Watches CarEntry.CONTENT_URI and every car URI below it
+    private final ContentObserver mCarsObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange) {
+            //Before API 16 the changed URI is not passed on
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onCarsChanged(uri);
+        }
+    };
+    private boolean mObserving;
+
+    /**
+     * @param firstLoaderId page n is loaded with loader id firstLoaderId + n, so the ids
+     *                      from firstLoaderId upwards must not be used by anything else
+     */
+    public CarListPager(Context context, LoaderManager loaderManager, int firstLoaderId,
+                        String[] projection, Listener listener) {
+        mContext = context;
+        mLoaderManager = loaderManager;
+        mFirstLoaderId = firstLoaderId;
+        mProjection = projection;
+        mListener = listener;
+    }
+
+    /**
+     * Sets the order and filter of the list, call start() afterwards to reload it
+     * @param sortBy one of the CarEntry.SORT_BY_* values
+     * @param selection where clause with ? placeholders, or null for every car
+     */
+    public void setQuery(String sortBy, @Nullable String selection, @Nullable String[] selectionArgs) {
+        mSortBy = sortBy;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+    }
+
+    /**
+     * Saves how many loader ids the pager used, so the next instance can drop their loaders
+     */
+    public void writeTo(Bundle bundle) {
+        bundle.putInt(KEY_LOADER_COUNT, mLoaderCount);
+    }
+
+    /**
+     * Reads back what writeTo() saved for a previous activity instance, call before start()
+     */
+    public void readFrom(@Nullable Bundle bundle) {
+        if (bundle != null) {
+            mLoaderCount = Math.max(mLoaderCount, bundle.getInt(KEY_LOADER_COUNT));
+        }
+    }
+
+    /**
+     * Starts loading from the first page. Every other page loader is destroyed, whether it
+     * came from this pager or a previous activity instance, because initLoader() would
+     * otherwise hand back its cursor from the old range, order or filter.
+     */
+    public void start() {
+        for (int index = 1; index < mLoaderCount; index++) {
+            mLoaderManager.destroyLoader(mFirstLoaderId + index);
+        }
+        mLoaderCount = 1;
+        mPages.clear();
+        Page firstPage = new Page(null, 0);
+        firstPage.loading = true;
+        mPages.add(firstPage);
+        mLoaderManager.restartLoader(mFirstLoaderId, null, this);
+
+        if (!mObserving) {
+            mContext.getContentResolver().registerContentObserver(CarEntry.CONTENT_URI, true, mCarsObserver);
+            mObserving = true;
+        }
+    }
+
+    /**
+     * Stops listening for changes to the cars table. Call when the owner is destroyed.
+     */
+    public void stop() {
+        if (mObserving) {
+            mContext.getContentResolver().unregisterContentObserver(mCarsObserver);
+            mObserving = false;
+        }
+    }
+
+    /**
+     * Reloads the loaded page holding the changed car, or every loaded page when the change
+     * is not about a single car. Pages without a loader are re-queried anyway once they
+     * scroll back into view.
+     */
+    private void onCarsChanged(Uri uri) {
+        long changedId = CarEntry.SORT_BY_ID.equals(mSortBy) ? parseCarId(uri) : -1;
+        for (int index = 0; index < mPages.size(); index++) {
+            if (changedId < 0 || mPages.get(index).contains(changedId)) {
+                Loader<Cursor> loader = mLoaderManager.getLoader(mFirstLoaderId + index);
+                if (loader != null) {
+                    loader.onContentChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the id of a single car URI such as cars/42, or -1 for any other URI
+     */
+    private static long parseCarId(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !CarEntry.TABLE_NAME.equals(segments.get(0))
+                || !TextUtils.isDigitsOnly(segments.get(1))) {
+            return -1;
+        }
+        return Long.parseLong(segments.get(1));
+    }
+
+    /**
+     * Tell the pager which list positions are on screen. Loads the next page when the end
+     * is near, re-loads dropped pages that scrolled back into view and drops pages far away.
+     */
+    public void onVisibleRange(int firstPosition, int lastPosition) {
+        if (mPages.isEmpty()) {
+            return;
+        }
+
+        int total = 0;
+        for (Page page : mPages) {
+            total += page.loaded.ids.length;
+        }
+        if (lastPosition >= total - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+
+        //Make sure every page touching the visible range, plus one page either side, is loaded
+        int firstWanted = pageIndexOf(Math.max(0, firstPosition - PAGE_SIZE));
+        int lastWanted = pageIndexOf(lastPosition + PAGE_SIZE);
+        for (int index = firstWanted; index <= lastWanted; index++) {
+            Page page = mPages.get(index);
+            if (page.loaded.cursor == null && !page.loading) {
+                page.loading = true;
+                initLoader(index);
+            }
+        }
+
+        dropFarPages(firstWanted, lastWanted);
+    }
+
+    /**
+     * Closes off the open ended last page at its last row and opens a new page after it
+     */
+    private void loadNextPage() {
+        Page lastPage = mPages.get(mPages.size() - 1);
+        long[] lastIds = lastPage.loaded.ids;
+        if (lastPage.loading || lastPage.loaded.cursor == null || lastIds.length < PAGE_SIZE) {
+            //Still loading, or the last page is not full so there is nothing more to load
+            return;
+        }
+
+        lastPage.untilKey = readSortKey(lastPage.loaded.cursor, lastIds.length - 1);
+        lastPage.untilId = lastIds[lastIds.length - 1];
+        Loader<Cursor> lastLoader = mLoaderManager.getLoader(mFirstLoaderId + mPages.size() - 1);
+        if (lastLoader != null) {
+            //Future reloads of the old last page now stay inside its fixed range
+            ((CarPageLoader) lastLoader).setUri(lastPage.uri(mSortBy));
+        }
+
+        Page nextPage = new Page(lastPage.untilKey, lastPage.untilId);
+        nextPage.loading = true;
+        mPages.add(nextPage);
+        initLoader(mPages.size() - 1);
+    }
+
+    private void initLoader(int index) {
+        mLoaderCount = Math.max(mLoaderCount, index + 1);
+        mLoaderManager.initLoader(mFirstLoaderId + index, null, this);
+    }
+
+    /**
+     * Reads the values of the sort columns at the given row, as they are sent in a page URI
+     */
+    private String[] readSortKey(Cursor cursor, int position) {
+        String[] columns = CarEntry.getSortColumns(mSortBy);
+        String[] key = new String[columns.length];
+        cursor.moveToPosition(position);
+        for (int i = 0; i < columns.length; i++) {
+            key[i] = cursor.getString(cursor.getColumnIndexOrThrow(columns[i]));
+        }
+        return key;
+    }
+
+    /**
+     * Destroys the loaders of the pages furthest from the wanted range until at most
+     * MAX_LOADED_PAGES remain. Their ids are kept so list positions do not move.
+     */
+    private void dropFarPages(int firstWanted, int lastWanted) {
+        int loadedPages = 0;
+        for (Page page : mPages) {
+            if (page.loaded.cursor != null || page.loading) {
+                loadedPages++;
+            }
+        }
+
+        int low = 0;
+        int high = mPages.size() - 1;
+        while (loadedPages > MAX_LOADED_PAGES && (low < firstWanted || high > lastWanted)) {
+            //Drop from whichever end is further from the wanted range
+            int index = (firstWanted - low >= high - lastWanted) ? low++ : high--;
+            Page page = mPages.get(index);
+            if (page.loaded.cursor != null || page.loading) {
+                mLoaderManager.destroyLoader(mFirstLoaderId + index);
+                page.loaded = dropCursor(page.loaded);
+                page.loading = false;
+                loadedPages--;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the page holding the given list position, clamped to the last page
+     */
+    private int pageIndexOf(int position) {
+        int start = 0;
+        for (int index = 0; index < mPages.size(); index++) {
+            start += mPages.get(index).loaded.ids.length;
+            if (position < start) {
+                return index;
+            }
+        }
+        return mPages.size() - 1;
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        Page page = mPages.get(id - mFirstLoaderId);
+        return new CarPageLoader(mContext, page.uri(mSortBy), mProjection, mSelection, mSelectionArgs, false);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        int index = loader.getId() - mFirstLoaderId;
+        if (index >= mPages.size()) {
+            //A loader of a page this pager no longer has, it must not be reused later
+            mLoaderManager.destroyLoader(loader.getId());
+            return;
+        }
+        Page page = mPages.get(index);
+        page.loaded = CarPage.of((CarPageCursor) cursor);
+        page.loading = false;
+        publish();
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        int index = loader.getId() - mFirstLoaderId;
+        if (index >= mPages.size()) {
+            //A loader being destroyed is no longer registered, anything else is an orphan
+            if (mLoaderManager.getLoader(loader.getId()) == loader) {
+                mLoaderManager.destroyLoader(loader.getId());
+            }
+            return;
+        }
+        //The cursor is about to be closed, so hand the adapter a set of pages without it
+        Page page = mPages.get(index);
+        page.loaded = dropCursor(page.loaded);
+        publish();
+    }
+
+    /**
+     * The same page without its cursor, keeping the ids and hashes of its rows
+     */
+    private static CarPage dropCursor(CarPage page) {
+        return new CarPage(null, page.ids, page.contentHashes);
+    }
+
+    private void publish() {
+        CarPage[] pages = new CarPage[mPages.size()];
+        for (int index = 0; index < mPages.size(); index++) {
+            pages[index] = mPages.get(index).loaded;
+        }
+        mListener.onPagesChanged(pages);
+    }
+}
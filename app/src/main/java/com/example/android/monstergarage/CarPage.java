@@ -0,0 +1,35 @@
+package com.example.android.monstergarage;
+
+import android.support.annotation.Nullable;
+
+/**
+ * One page of the cars list as shown by CarCursorAdapter. The ids and content hashes of the
+ * rows are kept even after the page's cursor has been dropped, so list positions stay put
+ * and the next diff still knows which rows the page held.
+ */
+final class CarPage {
+
+    static final CarPage[] NONE = new CarPage[0];
+
+    //The page's rows, or null while the page is not loaded
+    @Nullable
+    final CarPageCursor cursor;
+    final long[] ids;
+    final int[] contentHashes;
+
+    CarPage(@Nullable CarPageCursor cursor, long[] ids, int[] contentHashes) {
+        this.cursor = cursor;
+        this.ids = ids;
+        this.contentHashes = contentHashes;
+    }
+
+    /**
+     * A loaded page holding every row of the given cursor
+     */
+    static CarPage of(@Nullable CarPageCursor cursor) {
+        if (cursor == null) {
+            return new CarPage(null, new long[0], new int[0]);
+        }
+        return new CarPage(cursor, cursor.getIds(), cursor.getContentHashes());
+    }
+}
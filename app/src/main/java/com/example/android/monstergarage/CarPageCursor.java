@@ -0,0 +1,76 @@
+package com.example.android.monstergarage;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * A loaded page of cars. The row ids and a hash of each row's contents are read once on the
+ * loader's background thread, so the list can be diffed against its previous state without
+ * touching the cursor from another thread.
+ *
+ * The cursor is reference counted: the loader that created it holds the first reference and
+ * CarCursorAdapter takes another while the page is on screen, so a loader replacing the page
+ * does not close it under a list that is still showing it. All references are taken and
+ * released on the main thread.
+ */
+class CarPageCursor extends CursorWrapper {
+
+    private final long[] mIds;
+    private final int[] mContentHashes;
+    private int mReferences = 1;
+
+    CarPageCursor(Cursor cursor, String idColumnName) {
+        super(cursor);
+
+        int count = cursor.getCount();
+        int idColumn = cursor.getColumnIndexOrThrow(idColumnName);
+        int columnCount = cursor.getColumnCount();
+        mIds = new long[count];
+        mContentHashes = new int[count];
+
+        cursor.moveToPosition(-1);
+        int row = 0;
+        while (cursor.moveToNext()) {
+            mIds[row] = cursor.getLong(idColumn);
+            int hash = 17;
+            for (int column = 0; column < columnCount; column++) {
+                String value = cursor.getString(column);
+                hash = 31 * hash + (value == null ? 0 : value.hashCode());
+            }
+            mContentHashes[row] = hash;
+            row++;
+        }
+        cursor.moveToPosition(-1);
+    }
+
+    /**
+     * The _id of every row, in cursor order
+     */
+    long[] getIds() {
+        return mIds;
+    }
+
+    /**
+     * A hash of every column of every row, in cursor order
+     */
+    int[] getContentHashes() {
+        return mContentHashes;
+    }
+
+    /**
+     * Take another reference, which must be matched by a call to close()
+     */
+    void acquire() {
+        mReferences++;
+    }
+
+    /**
+     * Releases one reference, the underlying cursor is closed when the last one goes
+     */
+    @Override
+    public void close() {
+        if (mReferences > 0 && --mReferences == 0) {
+            super.close();
+        }
+    }
+}
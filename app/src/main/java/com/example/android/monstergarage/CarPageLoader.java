@@ -0,0 +1,148 @@
+package com.example.android.monstergarage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.content.ContentResolverCompat;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+/**
+ * Loader for a page of cars, which wraps its result in a CarPageCursor so the row ids
+ * and content hashes are read on the loader's background thread.
+ *
+ * It works like CursorLoader, except that watching the cursor for changes is optional.
+ * The list pager turns it off and decides itself which page a row change belongs to,
+ * rather than letting every page re-query whenever any car changes.
+ */
+class CarPageLoader extends AsyncTaskLoader<Cursor> {
+
+    //Null when the owner of this loader calls onContentChanged() itself
+    private final ForceLoadContentObserver mObserver;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private Uri mUri;
+    private Cursor mCursor;
+    private CancellationSignal mCancellationSignal;
+
+    /**
+     * @param selection where clause with ? placeholders filtering the cars, or null for all cars
+     * @param observeChanges true to reload whenever the provider notifies the cursor's URI
+     */
+    CarPageLoader(Context context, Uri uri, String[] projection, @Nullable String selection,
+                  @Nullable String[] selectionArgs, boolean observeChanges) {
+        super(context);
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mObserver = observeChanges ? new ForceLoadContentObserver() : null;
+    }
+
+    /**
+     * Changes the URI used by the next load
+     */
+    void setUri(Uri uri) {
+        mUri = uri;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mCancellationSignal = new CancellationSignal();
+        }
+        try {
+            Cursor cursor = ContentResolverCompat.query(getContext().getContentResolver(),
+                    mUri, mProjection, mSelection, mSelectionArgs, null, mCancellationSignal);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                //Reading the ids and hashes also fills the cursor window here, off the main thread
+                CarPageCursor pageCursor = new CarPageCursor(cursor, CarEntry._ID);
+                if (mObserver != null) {
+                    pageCursor.registerContentObserver(mObserver);
+                }
+                return pageCursor;
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (isReset()) {
+            //A load finished after the loader was reset, nobody will ever use this cursor
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        Cursor oldCursor = mCursor;
+        mCursor = cursor;
+
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+
+        if (oldCursor != null && oldCursor != cursor && !oldCursor.isClosed()) {
+            oldCursor.close();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mCursor != null && !mCursor.isClosed()) {
+            mCursor.close();
+        }
+        mCursor = null;
+    }
+}
@@ -1,12 +1,18 @@
 package com.example.android.monstergarage;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.support.annotation.Nullable;
+import android.support.v4.app.LoaderManager;
 import android.support.v4.app.NavUtils;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
@@ -19,18 +25,33 @@ import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.monstergarage.table_data.CarColors;
+import com.example.android.monstergarage.table_data.CarIndex;
+import com.example.android.monstergarage.table_data.CarWriteBuffer;
+import com.example.android.monstergarage.table_data.CarWriteExecutor;
 import com.example.android.monstergarage.table_data.GarageContract;
 
 /**
  * This activity allows users to create and save a new car into the database
  * or edit and delete an existing car
  *
- * * *************** RECOMMENDED UPDATE ****************
- * This class activity should use Cursor Loader by implementing LoaderManager.LoaderCallbacks<Cursor>
- * to increase efficiency by loading/querying data from the database in a background thread
- * Data should never be loaded on the main thread - slows the app and prevent user interaction
+ * An existing car is loaded with a CursorLoader on a background thread, and saves/deletes
+ * are handed to the shared CarWriteExecutor, so opening and closing the editor never
+ * waits on the database
+ *
+ * Changes to an existing car go through the CarWriteBuffer, which merges repeated saves of the
+ * same car into one write and lets the list undo them. The editor shows the buffered values
+ * over the loaded ones, so reopening a car straight after saving it shows the new values
+ *
+ * When the in-memory CarIndex already holds the car, the fields are filled from it in onCreate
+ * and the provider is not queried at all. The index also catches a plate that another car
+ * already has before the editor closes
  */
-public class EditorActivity extends AppCompatActivity {
+public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    //Identifier for the loader that queries the car being edited
+    private static final int EXISTING_CAR_LOADER_ID = 1;
+
     private EditText mCarYearView;
     private EditText mCarMakeView;
     private EditText mCarModelView;
@@ -38,6 +59,8 @@ public class EditorActivity extends AppCompatActivity {
     private Spinner mCarColorSpinner;
     private int mColor = GarageContract.CarEntry.COLOR_WHITE;
     Uri currentCarUri;
+    //Receives cars looked up in the index, reused for every lookup
+    private final CarIndex.Car mIndexedCar = new CarIndex.Car();
 
 
     @Override
@@ -73,16 +96,55 @@ public class EditorActivity extends AppCompatActivity {
         }else {
             // Otherwise this is an existing car, so change app bar to say "Edit this Car"
             setTitle("Edit this Car");
-            editCurrentCarSetup();
+            if (CarIndex.getInstance(this).findCar(ContentUris.parseId(currentCarUri), mIndexedCar)) {
+                showCar(mIndexedCar.id, mIndexedCar.make, mIndexedCar.model,
+                        String.valueOf(mIndexedCar.year), mIndexedCar.color, mIndexedCar.plate);
+            } else {
+                //Query the car in the background, the edit text fields are filled in onLoadFinished
+                getSupportLoaderManager().initLoader(EXISTING_CAR_LOADER_ID, null, this);
+            }
         }
 
     }
 
     /**
-     * Gets user input from editor views and saves into database as  a new car
+     * True when an edit still waiting in the CarWriteBuffer gives the car another plate. The
+     * index only knows the database, so the plate it found there is about to be free, and the
+     * provider still refuses it if the writes do not turn out that way
      */
-    private void saveCarToDatabase() {
+    private boolean isPlateLeaving(long carId, String plate) {
+        ContentValues pending = CarWriteBuffer.getInstance(this).getPendingValues(carId);
+        String pendingPlate = pending != null
+                ? pending.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE) : null;
+        return pendingPlate != null
+                && !GarageContract.CarEntry.plateKey(pendingPlate).equals(GarageContract.CarEntry.plateKey(plate));
+    }
 
+    /**
+     * Gets user input from editor views and saves into database as  a new car
+     * The write itself runs on the CarWriteExecutor thread, so it is safe to finish
+     * the activity right after calling this method
+     * @return false when the car was not saved and the user should fix it first
+     */
+    private boolean saveCarToDatabase() {
+
+        //Toasts are shown after this activity has finished, so use the application context
+        final Context appContext = getApplicationContext();
+
+        //A plate already on another car would only be rejected by the provider after the
+        //editor closed, the index tells right away
+        String plate = mCarPlateView.getText().toString().trim();
+        long plateOwner = CarIndex.getInstance(this).findIdByPlate(plate);
+        if (plateOwner != CarIndex.NO_ID
+                && (currentCarUri == null || plateOwner != ContentUris.parseId(currentCarUri))) {
+            if (!isPlateLeaving(plateOwner, plate)) {
+                Toast.makeText(this, "License plate " + plate + " is already in the garage", Toast.LENGTH_SHORT).show();
+                return false;
+            }
+            //The plate is only free once the other car's edit is written, so write it now, ahead
+            //of this car's own write on the CarWriteExecutor thread
+            CarWriteBuffer.getInstance(this).flush();
+        }
 
 
         //If Saving a new in "Add a Car" selection
@@ -97,7 +159,7 @@ public class EditorActivity extends AppCompatActivity {
             //If user tries to save a blank car, prevent crash by closing activity and return home
             if (currentCarUri == null && TextUtils.isEmpty(carMake) && TextUtils.isEmpty(carModel) && TextUtils.isEmpty(carYear) &&
                     TextUtils.isEmpty(carPlate)) {
-                return;
+                return true;
             }
 
             //A simple Key-value pair data structure suitable for
@@ -112,13 +174,23 @@ public class EditorActivity extends AppCompatActivity {
 
             //Safely insert a new car into the database through the (GarageProvider)content provider's
             //insert method which returns the new content URI path and ID for the new car.
-            Uri newUri = getContentResolver().insert(GarageContract.CarEntry.CONTENT_URI, carBundledValues);
-            //Check if save was successful or not
-            if (newUri == null) {
-                Toast.makeText(this, "Error saving this car", Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, "Car saved, new id: " + newUri, Toast.LENGTH_SHORT).show();
-            }
+            CarWriteExecutor.getInstance(this).insert(GarageContract.CarEntry.CONTENT_URI, carBundledValues,
+                    new CarWriteExecutor.Callback() {
+                        @Override
+                        public void onWriteComplete(@Nullable Uri newUri, int rowsAffected) {
+                            //Check if save was successful or not
+                            if (newUri == null) {
+                                Toast.makeText(appContext, "Error saving this car", Toast.LENGTH_SHORT).show();
+                            } else {
+                                Toast.makeText(appContext, "Car saved, new id: " + newUri, Toast.LENGTH_SHORT).show();
+                            }
+                        }
+
+                        @Override
+                        public void onWriteFailed(Exception error) {
+                            Toast.makeText(appContext, error.getMessage(), Toast.LENGTH_SHORT).show();
+                        }
+                    });
         }
 
         //If Editing an already existing car in "Edit this Car" selection
@@ -140,43 +212,51 @@ public class EditorActivity extends AppCompatActivity {
             carBundledValues.put(GarageContract.CarEntry.COLUMN_CAR_COLOR, carColor);
             carBundledValues.put(GarageContract.CarEntry.COLUMN_CAR_PLATE, carPlate);
 
-            //Safely insert a new car into the database through the (GarageProvider)content provider's
-            //insert method which returns the new content URI path and ID for the new car.
-            int rowUpdated = getContentResolver().update(currentCarUri, carBundledValues, null, null);
-            //Check if save was successful or not
-            if (rowUpdated == 0) {
-                Toast.makeText(this, "Error updating this car", Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, rowUpdated + " Car successfully updated", Toast.LENGTH_SHORT).show();
+            //Hand the update to the write buffer, which writes it through the (GarageProvider)
+            //content provider a few seconds later, together with any other buffered edits.
+            //Bad values are rejected right here and the editor stays open to fix them,
+            //the list offers to undo a good edit
+            try {
+                CarWriteBuffer.getInstance(this).update(currentCarUri, carBundledValues);
+            } catch (IllegalArgumentException e) {
+                Toast.makeText(appContext, e.getMessage(), Toast.LENGTH_SHORT).show();
+                return false;
             }
 
         }
 
-
+        return true;
     }
 
     /**
-     * Loading/Querying data from database to fill the edit text fields
-     * on the main Editor Acivity thread
-     * Here is where you should user Cursor Loader methods instead
+     * Called on the main thread to create the loader that queries the car being edited
+     * "content://com.example.android.monstergarage/cars/2" on a background thread
      */
-    private void editCurrentCarSetup(){
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
 
         //Bundle list of columns you want returned from the database
         String[] columns = {
+                GarageContract.CarEntry._ID,
                 GarageContract.CarEntry.COLUMN_CAR_MAKE,
                 GarageContract.CarEntry.COLUMN_CAR_MODEL,
                 GarageContract.CarEntry.COLUMN_CAR_YEAR,
                 GarageContract.CarEntry.COLUMN_CAR_COLOR,
                 GarageContract.CarEntry.COLUMN_CAR_PLATE };
 
-        //Safely perform database query using (GarageProvider)content provider's
-        //query method, which checks for appropriate content URI path request such as
-        //"content://com.example.android.monstergarage/cars/2" first, then executes query
-        Cursor returnedQuery_Cursor = getContentResolver().query(currentCarUri,
-                columns, null, null, null);
+        return new CursorLoader(this, currentCarUri, columns, null, null, null);
+    }
+
+    /**
+     * Fills the edit text fields in "Edit this Car" with the loaded car
+     */
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor returnedQuery_Cursor) {
 
-        returnedQuery_Cursor.moveToFirst();
+        //Bail early if the car no longer exists
+        if (returnedQuery_Cursor == null || !returnedQuery_Cursor.moveToFirst()) {
+            return;
+        }
 
         //Extract values from database columns to prepopulate appropriate Edit Text fields
         //in "Edit this Car" Activity
@@ -191,15 +271,50 @@ public class EditorActivity extends AppCompatActivity {
         String carPlate = returnedQuery_Cursor.getString(returnedQuery_Cursor.getColumnIndex(
                 GarageContract.CarEntry.COLUMN_CAR_PLATE));
 
+        showCar(returnedQuery_Cursor.getLong(returnedQuery_Cursor.getColumnIndex(GarageContract.CarEntry._ID)),
+                carMake, carModel, carYear, carColor, carPlate);
+    }
+
+    /**
+     * Fills the edit text fields with the given car, or with its edit still in the write buffer
+     */
+    private void showCar(long id, String carMake, String carModel, String carYear, int carColor, String carPlate) {
+        //An edit that is still in the write buffer is newer than the database
+        ContentValues pending = CarWriteBuffer.getInstance(this).getPendingValues(id);
+        if (pending != null) {
+            carMake = pending.containsKey(GarageContract.CarEntry.COLUMN_CAR_MAKE)
+                    ? pending.getAsString(GarageContract.CarEntry.COLUMN_CAR_MAKE) : carMake;
+            carModel = pending.containsKey(GarageContract.CarEntry.COLUMN_CAR_MODEL)
+                    ? pending.getAsString(GarageContract.CarEntry.COLUMN_CAR_MODEL) : carModel;
+            carYear = pending.containsKey(GarageContract.CarEntry.COLUMN_CAR_YEAR)
+                    ? pending.getAsString(GarageContract.CarEntry.COLUMN_CAR_YEAR) : carYear;
+            carColor = pending.containsKey(GarageContract.CarEntry.COLUMN_CAR_COLOR)
+                    ? pending.getAsInteger(GarageContract.CarEntry.COLUMN_CAR_COLOR) : carColor;
+            carPlate = pending.containsKey(GarageContract.CarEntry.COLUMN_CAR_PLATE)
+                    ? pending.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE) : carPlate;
+        }
+
         //Assign values to those fields
         mCarMakeView.setText(carMake);
         mCarModelView.setText(carModel);
         mCarYearView.setText(carYear);
         mColor = carColor;
+        if (GarageContract.CarEntry.isValidColor(carColor)) {
+            mCarColorSpinner.setSelection(carColor);
+        }
         mCarPlateView.setText(carPlate);
 
-        returnedQuery_Cursor.close();
+    }
 
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        //The loaded cursor is about to be closed, so clear out the edit text fields
+        mCarMakeView.setText("");
+        mCarModelView.setText("");
+        mCarYearView.setText("");
+        mColor = GarageContract.CarEntry.COLOR_WHITE;
+        mCarColorSpinner.setSelection(GarageContract.CarEntry.COLOR_WHITE);
+        mCarPlateView.setText("");
     }
 
     private void showDeleteConfirmationDialog() {
@@ -235,16 +350,27 @@ public class EditorActivity extends AppCompatActivity {
     private void deleteCar() {
         // Only perform the delete if this is an existing car
         if(currentCarUri != null ){
-            // Call the ContentResolver to delete the car at the given content URI.
-            // Pass in null for the where and where_args because the currentCarUri
-            // content URI already identifies the car that we want.
-            int rowDeleted = getContentResolver().delete(currentCarUri, null, null);
-            //Check if delete was successful or not
-            if (rowDeleted == 0) {
-                Toast.makeText(this, "Error deleting this car", Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, rowDeleted + " Car successfully deleted", Toast.LENGTH_SHORT).show();
-            }
+            //Toasts are shown after this activity has finished, so use the application context
+            final Context appContext = getApplicationContext();
+
+            // Delete the car at the given content URI through the write buffer. The car is
+            // soft deleted right away, so the list can still undo it, and the provider
+            // purges it for good a little later. Any buffered edit of the car is dropped.
+            CarWriteBuffer.getInstance(this).delete(currentCarUri,
+                    new CarWriteExecutor.Callback() {
+                        @Override
+                        public void onWriteComplete(@Nullable Uri uri, int rowDeleted) {
+                            //Success shows as the list's Undo snackbar, only report a failure
+                            if (rowDeleted == 0) {
+                                Toast.makeText(appContext, "Error deleting this car", Toast.LENGTH_SHORT).show();
+                            }
+                        }
+
+                        @Override
+                        public void onWriteFailed(Exception error) {
+                            Toast.makeText(appContext, error.getMessage(), Toast.LENGTH_SHORT).show();
+                        }
+                    });
         }
 
         //Close the this activity and return to home screen
@@ -257,61 +383,23 @@ public class EditorActivity extends AppCompatActivity {
      */
     private void setupSpinner(){
 
-        //Create adapter for the spinner using the String array in (strings.xml) for list options
+        //Create adapter for the spinner using the color names from CarColors for list options
         //along with spinner's default layout
-        ArrayAdapter colorSpinner = ArrayAdapter.createFromResource(this,
-                R.array.colors_array, android.R.layout.simple_spinner_item);
+        ArrayAdapter<String> colorSpinner = new ArrayAdapter<>(this,
+                android.R.layout.simple_spinner_item, CarColors.names());
         //Specify dropdown layout style: simple list view, one item per line
         colorSpinner.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        //Apply the adapter to the spinner
+        //Apply the adapter to the spinner, a new car starts out White
         mCarColorSpinner.setAdapter(colorSpinner);
+        mCarColorSpinner.setSelection(GarageContract.CarEntry.COLOR_WHITE);
 
-        //Set color indicator based on selection
+        //Set color indicator based on selection. The list is in color id order,
+        //so the position of a color is its id
         mCarColorSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener(){
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id){
-                String selection = (String) parent.getItemAtPosition(position);
-
-                if(!TextUtils.isEmpty(selection)){
-                    //Values from GarageContract.java file in table_data folder
-                    if(selection.equals("White")){
-                        mColor = GarageContract.CarEntry.COLOR_WHITE;
-
-                    }else if(selection.equals("Black")){
-                        mColor = GarageContract.CarEntry.COLOR_BLACK;
-
-                    }else if(selection.equals("Gray")){
-                        mColor = GarageContract.CarEntry.COLOR_GRAY;
-
-                    }else if(selection.equals("Silver")){
-                        mColor = GarageContract.CarEntry.COLOR_GRAY;
-
-                    }else if(selection.equals("Brown")){
-                        mColor = GarageContract.CarEntry.COLOR_BROWN;
-
-                    }else if(selection.equals("Red")){
-                        mColor = GarageContract.CarEntry.COLOR_RED;
-
-                    }else if(selection.equals("Blue")){
-                        mColor = GarageContract.CarEntry.COLOR_BLUE;
-
-                    }else if(selection.equals("Green")){
-                        mColor = GarageContract.CarEntry.COLOR_GREEN;
-
-                    }else if(selection.equals("Yellow")){
-                        mColor = GarageContract.CarEntry.COLOR_YELLOW;
-
-                    }else if(selection.equals("Orange")){
-                        mColor = GarageContract.CarEntry.COLOR_ORANGE;
-
-                    }else if(selection.equals("Purple")) {
-                        mColor = GarageContract.CarEntry.COLOR_PURPLE;
-
-                    }else{
-                        mColor = GarageContract.CarEntry.COLOR_WHITE;
-
-                    }
-                }
+                mColor = GarageContract.CarEntry.isValidColor(position)
+                        ? position : GarageContract.CarEntry.COLOR_WHITE;
             }
 
             @Override
@@ -348,8 +436,9 @@ public class EditorActivity extends AppCompatActivity {
         switch (item.getItemId()){
 
             case R.id.action_save:
-                saveCarToDatabase();
-                finish(); //Exit Editor Activity after save
+                if (saveCarToDatabase()) {
+                    finish(); //Exit Editor Activity after save
+                }
                 return true;
 
             case R.id.action_delete:
@@ -1,41 +1,133 @@
 package com.example.android.monstergarage;
 
+import android.app.ProgressDialog;
+import android.content.ActivityNotFoundException;
 import android.content.ContentUris;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
+import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
-import com.example.android.monstergarage.table_data.CarDBHelper;
+import com.example.android.monstergarage.table_data.CarColors;
+import com.example.android.monstergarage.table_data.CarWriteBuffer;
+import com.example.android.monstergarage.table_data.CarWriteExecutor;
 import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
 
+import java.util.Arrays;
+
 
 /**
  * This activity displays a list of current cars in a database and allows users to
  * edit by clicking on them, or delete all from options menu
  *
- * *************** RECOMMENDED UPDATE ****************
- * This class should use Cursor Loader by implementing LoaderManager.LoaderCallbacks<Cursor>
- * to increase efficiency by loading/querying data from the database in a background thread
- * Data should never be loaded on the main thread - slows the app and prevent user interaction
+ * The list is loaded page by page through CarListPager's loaders, so the cars query always
+ * runs on a background thread and is re-run automatically whenever GarageProvider notifies a change.
+ * The cars are shown in a RecyclerView, which only animates and rebinds the rows that changed
+ *
+ * Typing in the search action searches make, model and plate as you type. Searches are debounced
+ * and run through a separate loader, and the list switches back to the pages when the search closes
+ *
+ * Filter and sort narrows the list by make, year range and color and orders it by plate, year or
+ * make and model. Both are applied by GarageProvider's paged queries, backed by indexes, so only
+ * the matching cars are ever read
+ *
+ * Import cars picks a CSV or JSON file, asks whether cars with a plate already in the garage are
+ * skipped, replace the car there or update it, and streams the file into the database in the background,
+ * Export cars shares every car as a CSV or JSON file streamed straight from GarageProvider
+ *
+ * Edits and deletes made in the editor go through the CarWriteBuffer. The list shows buffered
+ * edits over the loaded rows, and an Undo snackbar stays up until the buffer is flushed
  */
-public class MainActivity extends AppCompatActivity {
-
-    //Database helper object that will provide us access to garage database
-    private CarDBHelper carDBHelper;
-    //List view for displaying cars from the database to the users in main UI
-    private ListView carsListView;
+public class MainActivity extends AppCompatActivity implements CarListPager.Listener,
+        LoaderManager.LoaderCallbacks<Cursor>, CarWriteBuffer.Listener {
+
+    //Identifier of the loader for search results
+    private static final int SEARCH_LOADER_ID = 1;
+    //Identifier of the loader for the first page of cars, later pages use the ids above it
+    private static final int CAR_PAGE_LOADER_ID = 100;
+
+    //Wait this long after the last keystroke before searching
+    private static final long SEARCH_DEBOUNCE_MS = 250;
+    //Most cars shown for one search
+    private static final int SEARCH_RESULT_LIMIT = 200;
+    //Bundle key holding the search text for the search loader
+    private static final String ARG_SEARCH_TEXT = "search_text";
+
+    //Request code for picking a file to import
+    private static final int IMPORT_FILE_REQUEST_CODE = 1;
+
+    //Sort spinner entries in the filter dialog, in the same order as SORT_ORDERS
+    private static final String[] SORT_NAMES = {"Date added", "Plate", "Year", "Make and model"};
+    private static final String[] SORT_ORDERS = {CarEntry.SORT_BY_ID, CarEntry.SORT_BY_PLATE,
+            CarEntry.SORT_BY_YEAR, CarEntry.SORT_BY_MAKE_MODEL};
+
+    //Columns the list view needs from the cars table
+    private static final String[] CAR_LIST_COLUMNS = {
+            CarEntry._ID,
+            CarEntry.COLUMN_CAR_MAKE,
+            CarEntry.COLUMN_CAR_MODEL,
+            CarEntry.COLUMN_CAR_YEAR,
+            CarEntry.COLUMN_CAR_COLOR,
+            CarEntry.COLUMN_CAR_PLATE };
+
+    //Recycler view for displaying cars from the database to the users in main UI
+    private RecyclerView carsRecyclerView;
+    private LinearLayoutManager carsLayoutManager;
+    //Prompts the user to add a car while the list is empty
+    private View emptyView;
     CarCursorAdapter carCursorAdapter;
+    //Loads the cars list one page at a time as the user scrolls
+    private CarListPager carListPager;
+    //Latest pages from the pager, kept so they can be shown again when a search closes
+    private CarPage[] carPages = CarPage.NONE;
+
+    //Filter and order applied to the list and to searches
+    private CarFilter carFilter = CarFilter.none();
+
+    //Search text currently shown in the list, or null when showing every car
+    private String searchText;
+    //Arguments for the next debounced search
+    private Bundle searchArgs;
+    private final Handler searchHandler = new Handler();
+    private final Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runSearch();
+        }
+    };
+
+    //Shows the progress of a running import, or null
+    private ProgressDialog importDialog;
+
+    //Holds the editor's changes until they are written, and can undo them until then
+    private CarWriteBuffer carWriteBuffer;
+    //Offers to undo the last buffered change, or null
+    private Snackbar undoSnackbar;
+    private FloatingActionButton fab;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -44,15 +136,20 @@ public class MainActivity extends AppCompatActivity {
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
-        //Find list view to populate with cars in main UI
-        carsListView = (ListView) findViewById(R.id.mainListView);
-        //Find and setup empty view on list view, to prompt user to add
-        //a new car if no cars are currently there to display on screen
-        View emptyView = findViewById(R.id.emptyView);
-        carsListView.setEmptyView(emptyView);
+        //Find recycler view to populate with cars in main UI
+        carsRecyclerView = (RecyclerView) findViewById(R.id.mainRecyclerView);
+        carsLayoutManager = new LinearLayoutManager(this);
+        carsRecyclerView.setLayoutManager(carsLayoutManager);
+        carsRecyclerView.setHasFixedSize(true);
+        //Find empty view, to prompt user to add a new car
+        //if no cars are currently there to display on screen
+        emptyView = findViewById(R.id.emptyView);
+
+        //Created before any activity starts, so it can tell when the whole app goes to the background
+        carWriteBuffer = CarWriteBuffer.getInstance(this);
 
         //Find and setup FAB button which allows user to add a new car to database
-        FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
+        fab = (FloatingActionButton) findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -61,17 +158,10 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-
-        // To access our database, we instantiate our subclass of SQLiteOpenHelper
-        // and pass the context, which is the current activity.
-        carDBHelper = new CarDBHelper(this);
-
-        carCursorAdapter = new CarCursorAdapter(this, null);
-        carsListView.setAdapter(carCursorAdapter);
-
-        carsListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        //Setup a single adapter for the recycler view, the pager swaps new pages into it
+        carCursorAdapter = new CarCursorAdapter(getLayoutInflater(), carWriteBuffer, new CarCursorAdapter.OnCarClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onCarClick(long id) {
                 //Create new intent to got to Editor Activity when car is clicked on from list
                 Intent intent = new Intent(MainActivity.this, EditorActivity.class);
 
@@ -80,36 +170,212 @@ public class MainActivity extends AppCompatActivity {
                 startActivity(intent);
             }
         });
+        carsRecyclerView.setAdapter(carCursorAdapter);
+        carListPager = new CarListPager(this, getSupportLoaderManager(), CAR_PAGE_LOADER_ID,
+                CAR_LIST_COLUMNS, this);
+
+        //Show the empty view whenever the diffed list ends up with no cars
+        carCursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
 
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+
+        //Let the pager know which rows are on screen, so it can load more cars near the end
+        //of the list and drop pages that scrolled far away. This is also called after every
+        //layout that changes the visible rows
+        carsRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                //Search results are a single page, the pager only follows the full list
+                if (searchText == null) {
+                    carListPager.onVisibleRange(carsLayoutManager.findFirstVisibleItemPosition(),
+                            carsLayoutManager.findLastVisibleItemPosition());
+                }
+            }
+        });
+
+        //Kick off the background query of the first page of cars, keeping any filter
+        //that was in place before a configuration change
+        carFilter = CarFilter.readFrom(savedInstanceState);
+        carListPager.readFrom(savedInstanceState);
+        carListPager.setQuery(carFilter.sortBy, carFilter.selection(), carFilter.selectionArgs());
+        carListPager.start();
+
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        carFilter.writeTo(outState);
+        carListPager.writeTo(outState);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        //Catch up with what the editor buffered while this activity was stopped
+        carWriteBuffer.setListener(this);
+        onBufferChanged();
+    }
+
+    @Override
+    protected void onStop() {
+        carWriteBuffer.setListener(null);
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        //Drop any search still waiting for its debounce delay
+        searchHandler.removeCallbacks(searchRunnable);
+        carListPager.stop();
+        //A running import carries on without its dialog
+        if (importDialog != null) {
+            importDialog.dismiss();
+            importDialog = null;
+        }
+        //Let go of the adapter's references on the page cursors
+        carCursorAdapter.close();
+        super.onDestroy();
     }
 
     /**
-     * Loading/Querying data from database onto main thread UI list view
-     * Here is where you should user Cursor Loader methods instead
+     * Called on the main thread whenever a page of cars is loaded, reloaded or dropped.
+     * The pager reloads the page holding a car whenever the provider notifies that car's URI,
+     * so the list updates by itself after the editor inserts, updates or deletes a car
      */
-    private void displayDatabase(){
+    @Override
+    public void onPagesChanged(CarPage[] pages) {
+        carPages = pages;
+        //Swap the pages into the existing adapter, the loaders take care of closing old cursors
+        if (searchText == null) {
+            carCursorAdapter.swapPages(pages);
+        }
+    }
+
+    /**
+     * Called on the main thread when the write buffer takes, undoes or flushes a change.
+     * Rebinds the rows so they show the buffered values, and keeps the Undo snackbar
+     * in step with what can still be undone
+     */
+    @Override
+    public void onBufferChanged() {
+        carCursorAdapter.notifyDataSetChanged();
+
+        String undoDescription = carWriteBuffer.getUndoDescription();
+        if (undoDescription == null) {
+            if (undoSnackbar != null) {
+                undoSnackbar.dismiss();
+                undoSnackbar = null;
+            }
+            return;
+        }
+        if (undoSnackbar != null) {
+            undoSnackbar.setText(undoDescription);
+            return;
+        }
+        //Stays up until the buffer flushes, which is when the change can no longer be undone
+        undoSnackbar = Snackbar.make(fab, undoDescription, Snackbar.LENGTH_INDEFINITE)
+                .setAction("Undo", new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        //The snackbar dismisses itself, a new one shows if there is more to undo
+                        undoSnackbar = null;
+                        carWriteBuffer.undo();
+                    }
+                });
+        undoSnackbar.show();
+    }
+
+    @Override
+    public void onWriteFailed(Exception error) {
+        Toast.makeText(this, error.getMessage(), Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Shows the "Get started" prompt instead of the list while there are no cars to show
+     */
+    private void updateEmptyView() {
+        boolean empty = carCursorAdapter.getItemCount() == 0;
+        ((TextView) emptyView).setText(carFilter.isFiltered() ? "No cars match the filter" : "Get started by adding a car");
+        emptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
+        carsRecyclerView.setVisibility(empty ? View.GONE : View.VISIBLE);
+    }
+
+    /**
+     * Called as the user types in the search view. Restarts the debounce timer so the
+     * search only runs once the user pauses typing
+     */
+    private void onSearchTextChanged(String newText) {
+        searchHandler.removeCallbacks(searchRunnable);
+        if (TextUtils.isEmpty(newText.trim())) {
+            showAllCars();
+        } else {
+            Bundle args = new Bundle();
+            args.putString(ARG_SEARCH_TEXT, newText);
+            searchArgs = args;
+            searchHandler.postDelayed(searchRunnable, SEARCH_DEBOUNCE_MS);
+        }
+    }
 
-        //Bundle list of columns you want returned from the database
-        String[] columns = {
-                CarEntry._ID,
-                CarEntry.COLUMN_CAR_MAKE,
-                CarEntry.COLUMN_CAR_MODEL,
-                CarEntry.COLUMN_CAR_YEAR,
-                CarEntry.COLUMN_CAR_COLOR,
-                CarEntry.COLUMN_CAR_PLATE };
+    /**
+     * Runs the latest search text through the search loader on a background thread
+     */
+    private void runSearch() {
+        searchText = searchArgs.getString(ARG_SEARCH_TEXT);
+        getSupportLoaderManager().restartLoader(SEARCH_LOADER_ID, searchArgs, this);
+    }
 
-        //Safely perform database query using (GarageProvider)content provider's
-        //query method, which checks for appropriate content URI path request such as
-        //"content://com.example.android.monstergarage/cars" first, then executes query
-        Cursor returnedQuery_Cursor = getContentResolver().query(CarEntry.CONTENT_URI,
-                columns, null, null, null);
+    /**
+     * Leaves search mode and shows the paged list of every car again
+     */
+    private void showAllCars() {
+        if (searchText == null) {
+            return;
+        }
+        searchText = null;
+        carCursorAdapter.swapPages(carPages);
+        getSupportLoaderManager().destroyLoader(SEARCH_LOADER_ID);
+    }
 
-        //Setup cursor adapter for displaying the cars in the main list view UI
-        CarCursorAdapter carAdapter = new CarCursorAdapter(this, returnedQuery_Cursor);
-        //Attach cursor adapter to the list view to fill list view with cars
-        carsListView.setAdapter(carAdapter);
+    /**
+     * Called on the main thread to create the loader that searches the cars
+     * on a background thread through the (GarageProvider)content provider
+     */
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        Uri searchUri = CarEntry.buildSearchUri(args.getString(ARG_SEARCH_TEXT), SEARCH_RESULT_LIMIT);
+        return new CarPageLoader(this, searchUri, CAR_LIST_COLUMNS,
+                carFilter.selection(), carFilter.selectionArgs(), true);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        //Show the search results as a single page, unless the search was closed meanwhile
+        if (searchText != null) {
+            carCursorAdapter.swapPages(new CarPage[] {CarPage.of((CarPageCursor) cursor)});
+        }
+    }
 
-    }//End of displayDatabase
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        //The results are about to be closed, so make sure the adapter no longer uses them
+        if (searchText != null) {
+            carCursorAdapter.swapPages(CarPage.NONE);
+        }
+    }
 
     private void showDeleteConfirmationDialog() {
         // Create an AlertDialog.Builder and set the message, and click listeners
@@ -139,35 +405,286 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void deleteAllCars(){
-        int rowsDeleted = getContentResolver().delete(CarEntry.CONTENT_URI, null, null);
-
-        //Check if delete was successful or not
-        if (rowsDeleted == 0) {
-            Toast.makeText(this, "Error deleting cars", Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this, rowsDeleted + " Cars successfully deleted", Toast.LENGTH_SHORT).show();
-        }
+        //Toasts are shown after this activity has finished, so use the application context
+        final Context appContext = getApplicationContext();
+
+        //Delete on the shared write thread rather than blocking the UI. A soft delete only
+        //marks the cars, so the list empties at once and the provider purges them later
+        CarWriteExecutor.getInstance(this).delete(CarEntry.buildSoftDeleteUri(CarEntry.CONTENT_URI), null, null,
+                new CarWriteExecutor.Callback() {
+                    @Override
+                    public void onWriteComplete(@Nullable Uri uri, int rowsDeleted) {
+                        //Check if delete was successful or not
+                        if (rowsDeleted == 0) {
+                            Toast.makeText(appContext, "Error deleting cars", Toast.LENGTH_SHORT).show();
+                        } else {
+                            Toast.makeText(appContext, rowsDeleted + " Cars successfully deleted", Toast.LENGTH_SHORT).show();
+                        }
+                    }
+
+                    @Override
+                    public void onWriteFailed(Exception error) {
+                        Toast.makeText(appContext, error.getMessage(), Toast.LENGTH_SHORT).show();
+                    }
+                });
 
         //Close the this activity and return to home screen
         finish();
     }
 
+    /**
+     * Let the user pick the filter and order of the list, starting from the current ones
+     */
+    private void showFilterDialog() {
+        View dialogView = getLayoutInflater().inflate(R.layout.filter_dialog, null);
+        final EditText makeView = (EditText) dialogView.findViewById(R.id.filterMakeEditText);
+        final EditText minYearView = (EditText) dialogView.findViewById(R.id.filterMinYearEditText);
+        final EditText maxYearView = (EditText) dialogView.findViewById(R.id.filterMaxYearEditText);
+        final Spinner colorSpinner = (Spinner) dialogView.findViewById(R.id.filterColorSpinner);
+        final Spinner sortSpinner = (Spinner) dialogView.findViewById(R.id.filterSortSpinner);
+
+        //"Any color", then every color, so a color sits one past its id
+        String[] carColors = CarColors.names();
+        String[] colorNames = new String[carColors.length + 1];
+        colorNames[0] = "Any color";
+        System.arraycopy(carColors, 0, colorNames, 1, carColors.length);
+        ArrayAdapter<String> colorAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, colorNames);
+        colorAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        colorSpinner.setAdapter(colorAdapter);
+        ArrayAdapter<String> sortAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, SORT_NAMES);
+        sortAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        sortSpinner.setAdapter(sortAdapter);
+
+        makeView.setText(carFilter.make);
+        minYearView.setText(carFilter.minYear == null ? "" : String.valueOf(carFilter.minYear));
+        maxYearView.setText(carFilter.maxYear == null ? "" : String.valueOf(carFilter.maxYear));
+        if (carFilter.color != null && CarEntry.isValidColor(carFilter.color)) {
+            colorSpinner.setSelection(carFilter.color + 1);
+        }
+        sortSpinner.setSelection(Arrays.asList(SORT_ORDERS).indexOf(carFilter.sortBy));
+
+        new AlertDialog.Builder(this)
+                .setTitle("Filter and sort cars")
+                .setView(dialogView)
+                .setPositiveButton("Apply", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String make = makeView.getText().toString().trim();
+                        int colorPosition = colorSpinner.getSelectedItemPosition();
+                        applyFilter(new CarFilter(make.isEmpty() ? null : make,
+                                parseYear(minYearView), parseYear(maxYearView),
+                                colorPosition > 0 ? Integer.valueOf(colorPosition - 1) : null,
+                                SORT_ORDERS[sortSpinner.getSelectedItemPosition()]));
+                    }
+                })
+                .setNeutralButton("Clear", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        applyFilter(CarFilter.none());
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * The year typed in the given view, or null when it is left empty
+     */
+    @Nullable
+    private static Integer parseYear(EditText yearView) {
+        String year = yearView.getText().toString().trim();
+        if (year.isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(year);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reload the list, and any search being shown, with the given filter and order
+     */
+    private void applyFilter(CarFilter filter) {
+        carFilter = filter;
+        carListPager.setQuery(filter.sortBy, filter.selection(), filter.selectionArgs());
+        carListPager.start();
+        if (searchText != null) {
+            getSupportLoaderManager().restartLoader(SEARCH_LOADER_ID, searchArgs, this);
+        }
+        carsRecyclerView.scrollToPosition(0);
+    }
 
     /**
-     * Called when user returns from editor activity
-     * Refreshes Main UI list view to reflect all new updated changes
+     * Ask the user for a CSV or JSON file of cars to import
      */
+    private void pickImportFile() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[] {"text/csv",
+                    "text/comma-separated-values", "application/json", "text/plain"});
+        }
+        try {
+            startActivityForResult(intent, IMPORT_FILE_REQUEST_CODE);
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(this, "No app available to pick a file", Toast.LENGTH_SHORT).show();
+        }
+    }
+
     @Override
-    protected void onStart(){
-        super.onStart();
-        //call method to display a refreshed list of the new changes
-        displayDatabase();
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == IMPORT_FILE_REQUEST_CODE) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                showImportConflictDialog(data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    /**
+     * Ask what to do with imported cars whose plate is already in the garage, then import them
+     */
+    private void showImportConflictDialog(final Uri source) {
+        final String[] policies = {CarEntry.CONFLICT_REJECT, CarEntry.CONFLICT_REPLACE, CarEntry.CONFLICT_MERGE};
+        new AlertDialog.Builder(this)
+                .setTitle("Plates already in the garage")
+                .setItems(new String[] {"Skip the imported car", "Replace the car in the garage",
+                        "Update the car in the garage"}, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        importCars(source, policies[which]);
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Import the cars in the given file in the background, the list picks them up
+     * through the provider's change notifications
+     */
+    private void importCars(Uri source, String conflictPolicy) {
+        importDialog = new ProgressDialog(this);
+        importDialog.setTitle("Importing cars");
+        importDialog.setMessage("Reading file");
+        importDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        importDialog.setIndeterminate(true);
+        importDialog.setMax(100);
+        importDialog.setCancelable(false);
+
+        final CarImportTask importTask = new CarImportTask(this, importDialog, conflictPolicy);
+        importDialog.setButton(DialogInterface.BUTTON_NEGATIVE, "Cancel", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                importTask.cancelImport();
+            }
+        });
+        importDialog.show();
+        importTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, source);
+    }
+
+    /**
+     * Ask which file format to export the cars in, then open the share sheet for it
+     */
+    private void showExportFormatDialog() {
+        final String[] formats = {CarEntry.FORMAT_CSV, CarEntry.FORMAT_JSON};
+        new AlertDialog.Builder(this)
+                .setTitle("Export cars as")
+                .setItems(new String[] {"CSV", "JSON"}, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        shareExport(formats[which]);
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Share the export URI, the receiving app is granted read access to it alone
+     * and the file is written by the provider while that app reads it
+     */
+    private void shareExport(String format) {
+        Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.setType(CarEntry.FORMAT_JSON.equals(format) ? CarEntry.EXPORT_JSON_TYPE : CarEntry.EXPORT_CSV_TYPE);
+        shareIntent.putExtra(Intent.EXTRA_STREAM, CarEntry.buildExportUri(format));
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(shareIntent, "Export cars"));
+    }
+
+    /**
+     * Save every car to the default snapshot in the background
+     */
+    private void saveSnapshot() {
+        final Context appContext = getApplicationContext();
+        CarWriteExecutor.getInstance(this).saveSnapshot(null, new CarWriteExecutor.Callback() {
+            @Override
+            public void onWriteComplete(@Nullable Uri uri, int carsSaved) {
+                Toast.makeText(appContext, carsSaved + " cars backed up", Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onWriteFailed(Exception error) {
+                Toast.makeText(appContext, error.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void showRestoreConfirmationDialog() {
+        new AlertDialog.Builder(this)
+                .setMessage("Replace all cars with the last backup?")
+                .setPositiveButton("Restore", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        restoreSnapshot();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Replace every car with the default snapshot, the list reloads through the
+     * provider's change notification
+     */
+    private void restoreSnapshot() {
+        final Context appContext = getApplicationContext();
+        CarWriteExecutor.getInstance(this).restoreSnapshot(null, new CarWriteExecutor.Callback() {
+            @Override
+            public void onWriteComplete(@Nullable Uri uri, int carsRestored) {
+                Toast.makeText(appContext, carsRestored + " cars restored", Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onWriteFailed(Exception error) {
+                Toast.makeText(appContext, error.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action app bar if it is present.
         getMenuInflater().inflate(R.menu.menu_main, menu);
+
+        //Search as you type, the search view clears its text when it is closed
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setQueryHint("Make, model or plate");
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                onSearchTextChanged(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                onSearchTextChanged(newText);
+                return true;
+            }
+        });
         return true;
     }
 
@@ -184,6 +701,30 @@ public class MainActivity extends AppCompatActivity {
 
             return true;
         }
+        if (id == R.id.action_filter) {
+            showFilterDialog();
+            return true;
+        }
+        if (id == R.id.action_import) {
+            pickImportFile();
+            return true;
+        }
+        if (id == R.id.action_export) {
+            showExportFormatDialog();
+            return true;
+        }
+        if (id == R.id.action_stats) {
+            startActivity(new Intent(this, StatsActivity.class));
+            return true;
+        }
+        if (id == R.id.action_save_snapshot) {
+            saveSnapshot();
+            return true;
+        }
+        if (id == R.id.action_restore_snapshot) {
+            showRestoreConfirmationDialog();
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
@@ -0,0 +1,137 @@
+package com.example.android.monstergarage;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.SimpleCursorAdapter;
+import android.support.v7.app.AppCompatActivity;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.Spinner;
+import android.widget.TextView;
+
+import com.example.android.monstergarage.table_data.GarageContract.StatsEntry;
+
+/**
+ * This activity shows how many cars there are per make, per decade or per color
+ *
+ * The counting is done by GarageProvider's statistics URIs with a GROUP BY, so the
+ * CursorLoader only ever brings back one row per group, on a background thread, and
+ * reloads by itself whenever a car changes
+ */
+public class StatsActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    //Identifier for the loader that queries the statistics
+    private static final int STATS_LOADER_ID = 0;
+    private static final String ARG_GROUPING = "grouping";
+
+    //Spinner entries, in the same order as GROUPING_URIS
+    private static final String[] GROUPING_NAMES = {"By make", "By decade", "By color"};
+    private static final Uri[] GROUPING_URIS = {StatsEntry.BY_MAKE_URI,
+            StatsEntry.buildYearBandUri(10), StatsEntry.BY_COLOR_URI};
+    private static final int GROUPING_BY_MAKE = 0;
+    private static final int GROUPING_BY_COLOR = 2;
+
+    private SimpleCursorAdapter statsAdapter;
+    //The grouping picked in the spinner, and the grouping of the rows on screen
+    private int mGrouping;
+    private int mShownGrouping;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.stats_activity);
+
+        if (savedInstanceState != null) {
+            mGrouping = savedInstanceState.getInt(ARG_GROUPING);
+        }
+
+        //Each row shows the group on the first line and its car count on the second
+        statsAdapter = new SimpleCursorAdapter(this, android.R.layout.simple_list_item_2, null,
+                new String[] {StatsEntry.COLUMN_GROUP, StatsEntry.COLUMN_CAR_COUNT},
+                new int[] {android.R.id.text1, android.R.id.text2}, 0);
+        statsAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (cursor.getColumnName(columnIndex).equals(StatsEntry.COLUMN_GROUP)) {
+                    ((TextView) view).setText(groupLabel(cursor, columnIndex));
+                } else {
+                    int cars = cursor.getInt(columnIndex);
+                    ((TextView) view).setText(cars == 1 ? "1 car" : cars + " cars");
+                }
+                return true;
+            }
+        });
+        ListView statsListView = (ListView) findViewById(R.id.statsListView);
+        statsListView.setAdapter(statsAdapter);
+        statsListView.setEmptyView(findViewById(R.id.statsEmptyView));
+
+        Spinner groupingSpinner = (Spinner) findViewById(R.id.spinnerGrouping);
+        ArrayAdapter<String> groupingAdapter = new ArrayAdapter<>(this,
+                android.R.layout.simple_spinner_item, GROUPING_NAMES);
+        groupingAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        groupingSpinner.setAdapter(groupingAdapter);
+        groupingSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (position != mGrouping) {
+                    mGrouping = position;
+                    getSupportLoaderManager().restartLoader(STATS_LOADER_ID, null, StatsActivity.this);
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        groupingSpinner.setSelection(mGrouping);
+        getSupportLoaderManager().initLoader(STATS_LOADER_ID, null, this);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(ARG_GROUPING, mGrouping);
+    }
+
+    private String groupLabel(Cursor cursor, int columnIndex) {
+        if (mShownGrouping == GROUPING_BY_COLOR) {
+            //Named from the colors table, a color id without a row there has no name
+            String colorName = cursor.getString(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_COLOR_NAME));
+            return colorName != null ? colorName : "Unknown color " + cursor.getInt(columnIndex);
+        }
+        if (mShownGrouping == GROUPING_BY_MAKE) {
+            return cursor.getString(columnIndex);
+        }
+        //Decades read as "1990s"
+        return cursor.getString(columnIndex) + "s";
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(this, GROUPING_URIS[mGrouping], null, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        //Label the rows by the grouping they were loaded with, the spinner may have moved on
+        Uri uri = ((CursorLoader) loader).getUri();
+        for (int i = 0; i < GROUPING_URIS.length; i++) {
+            if (GROUPING_URIS[i].equals(uri)) {
+                mShownGrouping = i;
+            }
+        }
+        statsAdapter.swapCursor(data);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        statsAdapter.swapCursor(null);
+    }
+}
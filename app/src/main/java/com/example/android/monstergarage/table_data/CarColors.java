@@ -0,0 +1,92 @@
+package com.example.android.monstergarage.table_data;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+/**
+ * The colors a car can have. This is the one list of them: the colors table is written from it
+ * by CarDBHelper.writeColors(), and the color spinners list names(). A car stores the id of its
+ * color, one of the CarEntry.COLOR_* values, which is also its index here and its position in
+ * the spinners, so going from an id to a name or an ARGB value is one array read.
+ *
+ * Ids are never renumbered. A new color goes at the end, with a migration that calls
+ * writeColors() again.
+ */
+public final class CarColors {
+
+    //Returned by idOfName() and idOfArgb() when no color matches
+    public static final int NO_COLOR = -1;
+
+    //Names used in imported and exported files, indexed by color id
+    private static final String[] NAMES = {"Other", "White", "Black", "Gray", "Silver", "Brown",
+            "Red", "Blue", "Green", "Yellow", "Orange", "Purple"};
+    //Swatch shown for each color, indexed by color id. Other has White's swatch
+    private static final int[] ARGB = {0xFFFFFFFF, 0xFFFFFFFF, 0xFF000000, 0xFF888888, 0xFFC0C0C0,
+            0xFF795548, 0xFFFF0000, 0xFF0000FF, 0xFF00FF00, 0xFFFFFF00, 0xFFFF9800, 0xFF9C27B0};
+
+    private CarColors() {}
+
+    public static int count() {
+        return NAMES.length;
+    }
+
+    /**
+     * The file names of every color, indexed by color id
+     */
+    public static String[] names() {
+        return NAMES.clone();
+    }
+
+    public static boolean isValid(int id) {
+        return id >= 0 && id < NAMES.length;
+    }
+
+    /**
+     * The file name of the color, such as "Red"
+     * @throws IllegalArgumentException if the id is not a color
+     */
+    public static String name(int id) {
+        checkId(id);
+        return NAMES[id];
+    }
+
+    /**
+     * The opaque ARGB value to draw the color with
+     * @throws IllegalArgumentException if the id is not a color
+     */
+    public static int argb(int id) {
+        checkId(id);
+        return ARGB[id];
+    }
+
+    /**
+     * The color with the given file name in any case, or NO_COLOR
+     */
+    public static int idOfName(String name) {
+        for (int id = 0; id < NAMES.length; id++) {
+            if (NAMES[id].equalsIgnoreCase(name)) {
+                return id;
+            }
+        }
+        return NO_COLOR;
+    }
+
+    /**
+     * The color drawn with the given ARGB value, or NO_COLOR. For files and snapshots from
+     * before cars stored color ids, when a car stored the ARGB value itself. Other and Silver
+     * had White's and Gray's value back then, so those values are White and Gray
+     */
+    public static int idOfArgb(int argb) {
+        for (int id = CarEntry.COLOR_WHITE; id < ARGB.length; id++) {
+            if (ARGB[id] == argb) {
+                return id;
+            }
+        }
+        return NO_COLOR;
+    }
+
+    private static void checkId(int id) {
+        if (!isValid(id)) {
+            throw new IllegalArgumentException("Unknown car color " + id);
+        }
+    }
+}
@@ -1,8 +1,19 @@
 package com.example.android.monstergarage.table_data;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.ArrayList;
 
 /**
  * Created by Jujuan on 11/21/2017.
@@ -11,16 +22,141 @@ import android.database.sqlite.SQLiteOpenHelper;
  * Once a new table is created, the garage.db then returns a
  * (SQLiteDatabase) object to the app, which acts as a middle-man that
  * safely manages database queries
+ *
+ * Schema changes are made as numbered migration steps in migrate(). A brand new database
+ * is created with the version 1 table and then upgraded through every step, so new installs
+ * and upgraded installs always end up with exactly the same schema.
+ *
+ * garage.db runs in write-ahead logging (WAL) mode. Writers append to the log instead of
+ * locking the database file, so queries made through getReadableDatabase() run on the
+ * platform's pool of reader connections while a long bulk write is still in progress.
+ * Durability and checkpointing are set by a Tuning object.
+ *
+ * Space freed by deleted cars is handed back to the file system with incremental auto_vacuum,
+ * a few pages at a time, see enableIncrementalVacuumWhileEmpty() and incrementalVacuum().
  */
 
 public class CarDBHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "garage.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 7;
+
+    //Secondary indexes on the cars table
+    static final String INDEX_CARS_PLATE = "cars_plate_idx";
+    static final String INDEX_CARS_MAKE_MODEL_YEAR = "cars_make_model_year_idx";
+    static final String INDEX_CARS_YEAR = "cars_year_idx";
+    static final String INDEX_CARS_COLOR = "cars_color_idx";
+    static final String INDEX_CARS_DELETED = "cars_deleted_idx";
+    static final String INDEX_CARS_PLATE_KEY = "cars_plate_key_idx";
+
+    //Where clause for cars that are not soft deleted. The unary plus keeps SQLite from
+    //answering it with the deleted index, which would lose the order of the list's own indexes
+    static final String WHERE_NOT_DELETED = "+" + CarEntry.COLUMN_CAR_DELETED + "=0";
+
+    //PRAGMA auto_vacuum mode that only frees pages when asked to with incremental_vacuum
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    //Dictionary of car colors, cars.color holds the _id of a row. Written from CarColors, see writeColors()
+    static final String TABLE_COLORS = "colors";
+
+    //Full-text index over the searchable columns of cars, its docid is the car _id
+    static final String FTS_TABLE_CARS = "cars_fts";
+
+    /**
+     * Durability and checkpoint settings applied to the connection that writes garage.db.
+     * Reader connections never write, so these pragmas have no effect on them.
+     */
+    public static final class Tuning {
+
+        //Values for PRAGMA synchronous. In WAL mode NORMAL can lose the last commits on
+        //power loss but never corrupts the database, FULL syncs the log on every commit
+        public static final int SYNCHRONOUS_OFF = 0;
+        public static final int SYNCHRONOUS_NORMAL = 1;
+        public static final int SYNCHRONOUS_FULL = 2;
+
+        //NORMAL durability, SQLite's default checkpoint after 1000 log pages and a 4MB log file
+        public static final Tuning DEFAULT = new Tuning(SYNCHRONOUS_NORMAL, 1000, 4 * 1024 * 1024);
+
+        final int synchronous;
+        final int walAutoCheckpointPages;
+        final long journalSizeLimitBytes;
+
+        /**
+         * @param synchronous one of the SYNCHRONOUS_* constants
+         * @param walAutoCheckpointPages copy the log back into the database once it holds this many
+         *                               pages, or 0 to never checkpoint automatically
+         * @param journalSizeLimitBytes truncate the log file to this size after a checkpoint,
+         *                              or -1 to let it keep its largest size
+         */
+        public Tuning(int synchronous, int walAutoCheckpointPages, long journalSizeLimitBytes) {
+            if (synchronous < SYNCHRONOUS_OFF || synchronous > SYNCHRONOUS_FULL) {
+                throw new IllegalArgumentException("Unknown synchronous mode " + synchronous);
+            }
+            if (walAutoCheckpointPages < 0) {
+                throw new IllegalArgumentException("Checkpoint page count cannot be negative");
+            }
+            if (journalSizeLimitBytes < -1) {
+                throw new IllegalArgumentException("Journal size limit must be -1 or more");
+            }
+            this.synchronous = synchronous;
+            this.walAutoCheckpointPages = walAutoCheckpointPages;
+            this.journalSizeLimitBytes = journalSizeLimitBytes;
+        }
+    }
+
+    private final Tuning mTuning;
 
     //Constructs a new instance of this database helper object
     public CarDBHelper(Context context){
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, Tuning.DEFAULT);
+    }
+
+    //Constructs a helper for a differently named database file, used by tests
+    CarDBHelper(Context context, String databaseName){
+        this(context, databaseName, Tuning.DEFAULT);
+    }
+
+    //Constructs a helper with its own durability and checkpoint settings
+    CarDBHelper(Context context, String databaseName, Tuning tuning){
+        super(context, databaseName, null, DATABASE_VERSION);
+        mTuning = tuning;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            //Opens the database straight into WAL mode with the platform's reader connection pool
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Called once when the helper opens its database, before it is created or upgraded
+     * (API 16 and up). The pragmas are per connection, so they reach the primary connection
+     * only, not the pooled readers opened later. That is the one connection that commits,
+     * checkpoints and truncates the WAL, which is all these three settings govern
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        applyTuning(db);
+    }
+
+    /**
+     * Before API 16 there is no onConfigure(), so WAL and the tuning are switched on here
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+            applyTuning(db);
+        }
+        if (!db.isReadOnly()) {
+            enableIncrementalVacuumWhileEmpty(db);
+        }
+    }
+
+    private void applyTuning(SQLiteDatabase db) {
+        db.execSQL("PRAGMA synchronous=" + mTuning.synchronous);
+        //These two pragmas report their new value back as a row, so they cannot go through execSQL()
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + mTuning.walAutoCheckpointPages, null);
+        DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit=" + mTuning.journalSizeLimitBytes, null);
     }
 
     /**
@@ -41,10 +177,384 @@ public class CarDBHelper extends SQLiteOpenHelper {
         //Execute the above SQL statement using the Helper's execSQL method
         db.execSQL(SQL_CREATE_CARS_TABLE);
 
+        //Bring the version 1 table up to date through the same steps an upgrade would take
+        onUpgrade(db, 1, DATABASE_VERSION);
+
     }
 
+    /**
+     * Runs every migration step between the old and new version in order.
+     * SQLiteOpenHelper already wraps this call in a transaction, so a failed step
+     * leaves the database at its old version.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            migrate(db, version);
+        }
+    }
+
+    /**
+     * Upgrades the database from version (toVersion - 1) to toVersion.
+     * Steps must never be edited once released, add a new version instead.
+     */
+    private static void migrate(SQLiteDatabase db, int toVersion) {
+        switch (toVersion) {
+            case 2:
+                migrateToVersion2(db);
+                break;
+            case 3:
+                migrateToVersion3(db);
+                break;
+            case 4:
+                migrateToVersion4(db);
+                break;
+            case 5:
+                migrateToVersion5(db);
+                break;
+            case 6:
+                migrateToVersion6(db);
+                break;
+            case 7:
+                migrateToVersion7(db);
+                break;
+            default:
+                throw new IllegalStateException("No migration to database version " + toVersion);
+        }
+    }
+
+    //Years version 2 keeps as they are. Fixed, unlike CarValidator.MAX_YEAR, so the step gives
+    //the same result whatever day it runs on. The validator's range only grows past it
+    private static final int VERSION_2_MIN_YEAR = 1886;
+    private static final int VERSION_2_MAX_YEAR = 2026;
+
+    /**
+     * Version 2: store year as an INTEGER and add indexes for plate lookups
+     * and make/model/year filtering.
+     * SQLite cannot change a column type in place, so the table is rebuilt and the
+     * old rows are copied across with their year converted to a number. A year that is no
+     * number, or outside VERSION_2_MIN_YEAR to VERSION_2_MAX_YEAR, becomes VERSION_2_MIN_YEAR
+     * so the car can still be saved from the editor.
+     */
+    private static void migrateToVersion2(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE cars_v2 ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "make TEXT NOT NULL, "
+                + "model TEXT NOT NULL, "
+                + "year INTEGER NOT NULL, "
+                + "color INTEGER NOT NULL, "
+                + "plate TEXT NOT NULL);");
+
+        db.execSQL("INSERT INTO cars_v2 (_id, make, model, year, color, plate) "
+                + "SELECT _id, make, model, CASE WHEN CAST(TRIM(year) AS INTEGER) BETWEEN ? AND ? "
+                + "THEN CAST(TRIM(year) AS INTEGER) ELSE ? END, color, plate FROM cars;",
+                new Object[] {VERSION_2_MIN_YEAR, VERSION_2_MAX_YEAR, VERSION_2_MIN_YEAR});
+
+        //Plates are about to become unique. Older databases allowed the same plate twice,
+        //so keep the first car's plate as is and give later duplicates a free one.
+        //Read them all first, the renames change the rows the query walks
+        ArrayList<Long> duplicateIds = new ArrayList<>();
+        ArrayList<String> duplicatePlates = new ArrayList<>();
+        Cursor duplicates = db.rawQuery("SELECT _id, plate FROM cars_v2 "
+                + "WHERE _id NOT IN (SELECT MIN(_id) FROM cars_v2 GROUP BY plate) ORDER BY _id;", null);
+        try {
+            while (duplicates.moveToNext()) {
+                duplicateIds.add(duplicates.getLong(0));
+                duplicatePlates.add(duplicates.getString(1));
+            }
+        } finally {
+            duplicates.close();
+        }
+        for (int i = 0; i < duplicateIds.size(); i++) {
+            long id = duplicateIds.get(i);
+            db.execSQL("UPDATE cars_v2 SET plate = ? WHERE _id = ?;",
+                    new Object[] {freeDuplicatePlate(db, duplicatePlates.get(i), id), id});
+        }
+
+        db.execSQL("DROP TABLE cars;");
+        db.execSQL("ALTER TABLE cars_v2 RENAME TO cars;");
+
+        db.execSQL("CREATE UNIQUE INDEX " + INDEX_CARS_PLATE + " ON cars (plate);");
+        db.execSQL("CREATE INDEX " + INDEX_CARS_MAKE_MODEL_YEAR + " ON cars (make, model, year);");
+    }
+
+    /**
+     * A plate for a duplicate that no car in cars_v2 holds yet: the plate tagged with "-" and
+     * the car's id, cut short where the tag would not fit in a valid plate. When another car
+     * already has that, such as "AB-2" next to two cars with plate "AB", a counter is added
+     * to the tag until the plate is free
+     */
+    private static String freeDuplicatePlate(SQLiteDatabase db, String plate, long id) {
+        String tag = "-" + id;
+        for (int attempt = 2; ; attempt++) {
+            int keep = Math.max(0, Math.min(plate.length(), CarValidator.MAX_PLATE_LENGTH - tag.length()));
+            String candidate = trimSeparators(plate.substring(0, keep)) + tag;
+            if (DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM cars_v2 WHERE plate = ?);",
+                    new String[] {candidate}) == 0) {
+                return candidate;
+            }
+            tag = "-" + id + "-" + attempt;
+        }
+    }
+
+    //The text without the spaces and hyphens at its end, so a tag never follows a separator
+    private static String trimSeparators(String text) {
+        int end = text.length();
+        while (end > 0 && (text.charAt(end - 1) == ' ' || text.charAt(end - 1) == '-')) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    /**
+     * Refills the search table from the cars table, for bulk loads that ran with the
+     * search triggers dropped
+     */
+    static void rebuildSearchIndex(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + FTS_TABLE_CARS + ";");
+        db.execSQL("INSERT INTO " + FTS_TABLE_CARS + " (docid, make, model, plate) "
+                + "SELECT _id, make, model, plate FROM cars;");
+    }
+
+    /**
+     * Version 3: full-text search over make, model and plate.
+     * An FTS4 table holds a copy of the searchable columns, keyed by the car _id, and
+     * triggers on the cars table keep it in step with every insert, update and delete.
+     */
+    private static void migrateToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE cars_fts USING fts4(make, model, plate);");
+
+        db.execSQL("INSERT INTO cars_fts (docid, make, model, plate) "
+                + "SELECT _id, make, model, plate FROM cars;");
+
+        db.execSQL("CREATE TRIGGER cars_fts_insert AFTER INSERT ON cars BEGIN "
+                + "INSERT INTO cars_fts (docid, make, model, plate) "
+                + "VALUES (new._id, new.make, new.model, new.plate); END;");
+        db.execSQL("CREATE TRIGGER cars_fts_update AFTER UPDATE OF make, model, plate ON cars BEGIN "
+                + "UPDATE cars_fts SET make = new.make, model = new.model, plate = new.plate "
+                + "WHERE docid = old._id; END;");
+        db.execSQL("CREATE TRIGGER cars_fts_delete AFTER DELETE ON cars BEGIN "
+                + "DELETE FROM cars_fts WHERE docid = old._id; END;");
+    }
+
+    /**
+     * Version 4: indexes for the list's year range and color filters, and for sorting by year.
+     * Each index also holds the _id, so year order ties break by _id straight from the index.
+     * Sorting by plate and by make and model already walks the version 2 indexes.
+     */
+    private static void migrateToVersion4(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INDEX_CARS_YEAR + " ON cars (year);");
+        db.execSQL("CREATE INDEX " + INDEX_CARS_COLOR + " ON cars (color);");
+    }
+
+    /**
+     * Version 5: soft deletes. A deleted column holds the time a car was deleted at, 0 while it
+     * is still in the garage, and an index on it lets the purge find deleted cars without a scan.
+     * Incremental auto_vacuum is switched on later by enableIncrementalVacuumWhileEmpty(), as
+     * the full VACUUM that takes cannot run inside the upgrade's transaction.
+     */
+    private static void migrateToVersion5(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE cars ADD COLUMN deleted INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("CREATE INDEX " + INDEX_CARS_DELETED + " ON cars (deleted);");
+    }
+
+    /**
+     * Version 6: plates are unique by CarEntry.plateKey(), so "ab 123" can no longer be added next
+     * to "AB-123". A plate_key column holds the key of each plate, filled in here from Java as
+     * SQLite's upper() only knows ASCII letters. The plate index stays for sorting by plate.
+     * Plates used to be unique only as typed, so an older database may hold cars sharing a key.
+     * Then the key index starts out plain, and CarMaintenance merges the duplicates in the
+     * background before making it unique.
+     */
+    private static void migrateToVersion6(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE cars ADD COLUMN plate_key TEXT NOT NULL DEFAULT '';");
+
+        SQLiteStatement setPlateKey = db.compileStatement("UPDATE cars SET plate_key=? WHERE _id=?");
+        Cursor cursor = db.rawQuery("SELECT _id, plate FROM cars", null);
+        try {
+            while (cursor.moveToNext()) {
+                setPlateKey.bindString(1, CarEntry.plateKey(cursor.getString(1)));
+                setPlateKey.bindLong(2, cursor.getLong(0));
+                setPlateKey.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            setPlateKey.close();
+        }
+
+        createPlateKeyIndex(db, !hasDuplicatePlateKeys(db));
+    }
+
+    /**
+     * Version 7: colors become a dictionary. A colors table holds the name and ARGB value of each
+     * color under a small _id, and cars.color changes from the ARGB value to that _id, so the
+     * color index holds tiny keys and Other and Silver no longer share White's and Gray's value.
+     * Those two could not be told apart before, so their cars become White and Gray, and a value
+     * that is no color at all becomes Other.
+     * The column keeps its name and type, adding a REFERENCES clause would mean rebuilding the
+     * table. Android leaves foreign keys unchecked anyway, CarValidator checks every color id.
+     */
+    private static void migrateToVersion7(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_COLORS + " (_id INTEGER PRIMARY KEY, name TEXT NOT NULL UNIQUE, "
+                + "argb INTEGER NOT NULL);");
+        writeColors(db);
+
+        //Other and Silver are left out of the match, their old values were White's and Gray's
+        db.execSQL("UPDATE cars SET color = coalesce((SELECT _id FROM " + TABLE_COLORS
+                + " WHERE " + TABLE_COLORS + ".argb = cars.color AND " + TABLE_COLORS + "._id NOT IN (?, ?)), ?);",
+                new Object[] {CarEntry.COLOR_OTHER, CarEntry.COLOR_SILVER, CarEntry.COLOR_OTHER});
+    }
+
+    /**
+     * Writes every color of CarColors into the colors table, one row per statement for
+     * API 15's SQLite. Ids are never renumbered, so rewriting a row that is already there
+     * changes nothing, and a migration that adds a color to CarColors only calls this again.
+     */
+    static void writeColors(SQLiteDatabase db) {
+        SQLiteStatement insertColor = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_COLORS
+                + " (_id, name, argb) VALUES (?, ?, ?)");
+        try {
+            for (int id = 0; id < CarColors.count(); id++) {
+                insertColor.bindLong(1, id);
+                insertColor.bindString(2, CarColors.name(id));
+                insertColor.bindLong(3, CarColors.argb(id));
+                insertColor.executeInsert();
+            }
+        } finally {
+            insertColor.close();
+        }
+    }
+
+    /**
+     * Creates the plate key index, replacing the one there is. Creating it unique fails while
+     * two cars share a key, so check hasDuplicatePlateKeys() in the same transaction first
+     */
+    static void createPlateKeyIndex(SQLiteDatabase db, boolean unique) {
+        db.execSQL("DROP INDEX IF EXISTS " + INDEX_CARS_PLATE_KEY + ";");
+        db.execSQL("CREATE " + (unique ? "UNIQUE " : "") + "INDEX " + INDEX_CARS_PLATE_KEY
+                + " ON cars (plate_key);");
+    }
+
+    /**
+     * True when at least two cars, live or soft deleted, share a plate key. A single walk of
+     * the plate key index, which stops at the first duplicate
+     */
+    static boolean hasDuplicatePlateKeys(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM cars "
+                + "GROUP BY plate_key HAVING count(*) > 1)", null) != 0;
+    }
+
+    /**
+     * True once the plate key index is unique, false while duplicates are still to be merged
+     */
+    static boolean isPlateKeyIndexUnique(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA index_list(cars)", null);
+        try {
+            int nameColumn = cursor.getColumnIndexOrThrow("name");
+            int uniqueColumn = cursor.getColumnIndexOrThrow("unique");
+            while (cursor.moveToNext()) {
+                if (INDEX_CARS_PLATE_KEY.equals(cursor.getString(nameColumn))) {
+                    return cursor.getInt(uniqueColumn) != 0;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Deletes the cars matching the where clause, at most chunkSize cars per statement. Each
+     * statement is its own short transaction, so deleting the whole table never holds the write
+     * lock for long and other writes get in between chunks.
+     * @param where must stop matching a car once it is deleted, so soft deletes must include
+     *              WHERE_NOT_DELETED
+     * @param deletedAt time to soft delete the cars at, or 0 to remove them for good
+     * @return the number of cars deleted
+     */
+    static int deleteCarsInChunks(SQLiteDatabase db, String where, @Nullable String[] where_args,
+                                  int chunkSize, long deletedAt) {
+        String chunkWhere = CarEntry._ID + " IN (SELECT " + CarEntry._ID + " FROM " + CarEntry.TABLE_NAME
+                + " WHERE " + where + " LIMIT " + chunkSize + ")";
+        ContentValues tombstone = null;
+        if (deletedAt != 0) {
+            tombstone = new ContentValues(1);
+            tombstone.put(CarEntry.COLUMN_CAR_DELETED, deletedAt);
+        }
+        int rowsDeleted = 0;
+        int chunkRows;
+        do {
+            chunkRows = tombstone != null
+                    ? db.update(CarEntry.TABLE_NAME, tombstone, chunkWhere, where_args)
+                    : db.delete(CarEntry.TABLE_NAME, chunkWhere, where_args);
+            rowsDeleted += chunkRows;
+        } while (chunkRows == chunkSize);
+        return rowsDeleted;
+    }
+
+    /**
+     * Removes any soft deleted car holding the given plate, or one with the same plate key, for
+     * good so another car can take the plate. Returns true if there was one
+     */
+    static boolean purgeDeletedPlate(SQLiteDatabase db, @Nullable String plate) {
+        return plate != null && db.delete(CarEntry.TABLE_NAME, CarEntry.COLUMN_CAR_PLATE_KEY + "=? AND "
+                + CarEntry.COLUMN_CAR_DELETED + "!=0", new String[] {CarEntry.plateKey(plate)}) > 0;
+    }
+
+    /**
+     * The _id of the live car whose plate has the same plate key as the given one, or -1 if
+     * there is none. The oldest one while duplicates are still to be merged
+     */
+    static long findLiveCarByPlate(SQLiteDatabase db, String plate) {
+        Cursor cursor = db.rawQuery("SELECT " + CarEntry._ID + " FROM " + CarEntry.TABLE_NAME
+                + " WHERE " + CarEntry.COLUMN_CAR_PLATE_KEY + "=? AND " + WHERE_NOT_DELETED
+                + " ORDER BY " + CarEntry._ID + " LIMIT 1", new String[] {CarEntry.plateKey(plate)});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Switches the database to incremental auto_vacuum, so free pages can be handed back to the
+     * file system a few at a time with incrementalVacuum(). Once WAL is on, which the platform
+     * does before onConfigure() and onCreate() run, the mode only changes through a full VACUUM
+     * that rewrites the file under an exclusive lock. So it is switched only while there are no
+     * cars and the file is a few pages of schema, on a new install or when an emptied garage is
+     * opened again. An upgraded database that holds cars keeps its mode instead of stalling the
+     * app for a rewrite. SQLite still reuses its free pages for new cars, it just never hands
+     * them back to the file system.
+     */
+    private static void enableIncrementalVacuumWhileEmpty(SQLiteDatabase db) {
+        if (isIncrementalVacuum(db)
+                || DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM cars)", null) != 0) {
+            return;
+        }
+        db.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+        db.execSQL("VACUUM");
+    }
+
+    static boolean isIncrementalVacuum(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL;
+    }
+
+    /**
+     * Hands at most the given number of free pages back to the file system in one short write
+     * transaction. Returns the number of free pages left
+     */
+    static long incrementalVacuum(SQLiteDatabase db, int pages) {
+        //Every step of the pragma frees one page, so it is run as a query and read to the end
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        return freePages(db);
+    }
 
+    static long freePages(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
     }
 }
@@ -0,0 +1,181 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the whole cars table as CSV or JSON into the write end of a pipe opened by
+ * GarageProvider.openPipeHelper(), for GarageContract.CarEntry.EXPORT_URI.
+ *
+ * The table is read in windows of EXPORT_WINDOW cars in _id order, each window starting after
+ * the last _id written, so only one small cursor is open at a time and memory use is the same
+ * for ten cars as for a hundred thousand. Nothing is written to a temporary file.
+ *
+ * The output uses the same columns and color format CarImporter reads, so an export
+ * can be imported again.
+ */
+final class CarExporter implements ContentProvider.PipeDataWriter<String> {
+
+    private static final String LOG_TAG = CarExporter.class.getSimpleName();
+
+    //Cars read from the database per query
+    private static final int EXPORT_WINDOW = 500;
+
+    private static final String[] EXPORT_COLUMNS = {
+            CarEntry._ID,
+            CarEntry.COLUMN_CAR_MAKE,
+            CarEntry.COLUMN_CAR_MODEL,
+            CarEntry.COLUMN_CAR_YEAR,
+            CarEntry.COLUMN_CAR_COLOR,
+            CarEntry.COLUMN_CAR_PLATE };
+
+    private final CarDBHelper mDbHelper;
+
+    CarExporter(CarDBHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Runs on the pipe's own background thread. The reader closing its end early, e.g. a
+     * share target that gave up, shows up as an IOException and simply ends the export.
+     * Nothing may escape this thread, an exception here would kill the app, so a database
+     * error is logged and the pipe closed, leaving the reader with a cut off file.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, String format) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output.getFileDescriptor()), Charset.forName("UTF-8")));
+        try {
+            if (CarEntry.FORMAT_JSON.equals(format)) {
+                writeJson(writer);
+            } else {
+                writeCsv(writer);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Export of " + uri + " stopped early", e);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Export of " + uri + " failed", e);
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                //The reader is already gone
+            }
+        }
+    }
+
+    private void writeCsv(Writer writer) throws IOException {
+        writer.write("make,model,year,color,plate\r\n");
+        long lastId = 0;
+        Cursor window;
+        while ((window = queryWindow(lastId)) != null) {
+            try {
+                while (window.moveToNext()) {
+                    writeCsvField(writer, window.getString(1));
+                    writer.write(',');
+                    writeCsvField(writer, window.getString(2));
+                    writer.write(',');
+                    writer.write(String.valueOf(window.getInt(3)));
+                    writer.write(',');
+                    writer.write(formatColor(window.getInt(4)));
+                    writer.write(',');
+                    writeCsvField(writer, window.getString(5));
+                    writer.write("\r\n");
+                    lastId = window.getLong(0);
+                }
+            } finally {
+                window.close();
+            }
+        }
+    }
+
+    private void writeJson(Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.beginArray();
+        long lastId = 0;
+        Cursor window;
+        while ((window = queryWindow(lastId)) != null) {
+            try {
+                while (window.moveToNext()) {
+                    json.beginObject();
+                    json.name(CarEntry.COLUMN_CAR_MAKE).value(window.getString(1));
+                    json.name(CarEntry.COLUMN_CAR_MODEL).value(window.getString(2));
+                    json.name(CarEntry.COLUMN_CAR_YEAR).value(window.getInt(3));
+                    json.name(CarEntry.COLUMN_CAR_COLOR).value(formatColor(window.getInt(4)));
+                    json.name(CarEntry.COLUMN_CAR_PLATE).value(window.getString(5));
+                    json.endObject();
+                    lastId = window.getLong(0);
+                }
+            } finally {
+                window.close();
+            }
+        }
+        json.endArray();
+        json.flush();
+    }
+
+    /**
+     * The next window of cars after the given _id, or null when there are none left.
+     * Soft deleted cars are not exported
+     */
+    private Cursor queryWindow(long afterId) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(CarEntry.TABLE_NAME, EXPORT_COLUMNS,
+                CarEntry._ID + ">? AND " + CarDBHelper.WHERE_NOT_DELETED, new String[] {String.valueOf(afterId)},
+                null, null, CarEntry._ID + " ASC", String.valueOf(EXPORT_WINDOW));
+        if (cursor.getCount() == 0) {
+            cursor.close();
+            return null;
+        }
+        return cursor;
+    }
+
+    /**
+     * Quotes a field if it holds a comma, quote or line break, doubling any quotes inside
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            char c = value.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!needsQuotes) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    //Colors are written by name, which CarImporter reads back as the same color id
+    private static String formatColor(int color) {
+        return CarColors.name(CarColors.isValid(color) ? color : CarEntry.COLOR_OTHER);
+    }
+}
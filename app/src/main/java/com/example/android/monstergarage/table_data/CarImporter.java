@@ -0,0 +1,502 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.graphics.Color;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+import android.support.annotation.Nullable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Imports cars from a CSV or JSON file at a content URI into GarageProvider.
+ *
+ * The file is streamed through a fixed size buffer and parsed one car at a time, so memory use
+ * does not grow with the file. Every car is checked with the same rules as a single insert,
+ * cars that fail are skipped and counted, and the rest are written with bulkInsert() in chunks
+ * of CHUNK_SIZE cars, one transaction per chunk. A car whose plate is already in the garage is
+ * rejected, replaces the car there or is merged into it, as the CONFLICT_* policy given says.
+ *
+ * CSV files need a header row naming the make, model, year, color and plate columns, in any
+ * order. Fields may be quoted, with "" for a quote inside a quoted field.
+ * JSON files hold an array of car objects with the same names, optionally wrapped in an object
+ * under a "cars" key.
+ * A color is a name from the editor's color list (e.g. "Red"), or for files written before colors
+ * were exported by name, a #RRGGBB value or an ARGB int, see CarColors.idOfArgb().
+ *
+ * Call importCars() on a background thread.
+ */
+public final class CarImporter {
+
+    private static final String LOG_TAG = CarImporter.class.getSimpleName();
+
+    //Cars written per bulkInsert() transaction
+    static final int CHUNK_SIZE = 500;
+    //Characters read from the file at a time
+    private static final int BUFFER_SIZE = 16 * 1024;
+    //Rejected rows whose reason is kept for the result, the rest are only counted
+    private static final int MAX_REPORTED_ERRORS = 20;
+
+    //Columns a file must provide for every car
+    private static final String[] IMPORT_COLUMNS = {
+            CarEntry.COLUMN_CAR_MAKE,
+            CarEntry.COLUMN_CAR_MODEL,
+            CarEntry.COLUMN_CAR_YEAR,
+            CarEntry.COLUMN_CAR_COLOR,
+            CarEntry.COLUMN_CAR_PLATE };
+
+    /**
+     * Told about the import's progress after every chunk, on the importing thread
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytesRead bytes of the file read so far
+         * @param totalBytes size of the file, or -1 if the provider of the file does not say
+         * @param carsImported cars written to the database so far
+         */
+        void onProgress(long bytesRead, long totalBytes, int carsImported);
+    }
+
+    /**
+     * Counts of what happened to the cars in the file
+     */
+    public static final class Result {
+        public final int carsRead;
+        public final int carsImported;
+        public final int carsRejected;
+        //Reasons for the first MAX_REPORTED_ERRORS rejected rows, e.g. "Row 12: Must enter car model"
+        public final ArrayList<String> errors;
+        public final boolean cancelled;
+
+        Result(int carsRead, int carsImported, ArrayList<String> errors, boolean cancelled) {
+            this.carsRead = carsRead;
+            this.carsImported = carsImported;
+            this.carsRejected = carsRead - carsImported;
+            this.errors = errors;
+            this.cancelled = cancelled;
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    //CONTENT_URI with the conflict policy of this import
+    private final Uri mInsertUri;
+    private volatile boolean mCancelled;
+
+    public CarImporter(ContentResolver contentResolver) {
+        this(contentResolver, CarEntry.CONFLICT_REJECT);
+    }
+
+    /**
+     * @param conflictPolicy one of the CarEntry.CONFLICT_* policies, for cars whose plate is taken
+     */
+    public CarImporter(ContentResolver contentResolver, String conflictPolicy) {
+        mContentResolver = contentResolver;
+        mInsertUri = CarEntry.buildConflictUri(conflictPolicy);
+    }
+
+    /**
+     * Stops a running import after its current chunk. Chunks already written stay imported.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Imports every car in the file at the given URI
+     * @throws IOException if the file cannot be read, or is not valid CSV or JSON
+     */
+    public Result importCars(Uri source, @Nullable ProgressListener listener) throws IOException {
+        InputStream stream = mContentResolver.openInputStream(source);
+        if (stream == null) {
+            throw new FileNotFoundException("Cannot open " + source);
+        }
+        CountingInputStream countingStream = new CountingInputStream(stream);
+        PushbackReader reader = new PushbackReader(
+                new InputStreamReader(countingStream, "UTF-8"), BUFFER_SIZE);
+        try {
+            Batch batch = new Batch(countingStream, fileSize(source), listener);
+            if (startsWithJson(reader)) {
+                readJson(reader, batch);
+            } else {
+                readCsv(reader, batch);
+            }
+            batch.flush();
+            return new Result(batch.carsRead, batch.carsImported, batch.errors, mCancelled);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Collects parsed cars and writes them a chunk at a time
+     */
+    private final class Batch {
+        private final CountingInputStream mStream;
+        private final long mTotalBytes;
+        private final ProgressListener mListener;
+        private final ContentValues[] mChunk = new ContentValues[CHUNK_SIZE];
+        private int mChunkSize;
+
+        int carsRead;
+        int carsImported;
+        final ArrayList<String> errors = new ArrayList<>();
+
+        Batch(CountingInputStream stream, long totalBytes, @Nullable ProgressListener listener) {
+            mStream = stream;
+            mTotalBytes = totalBytes;
+            mListener = listener;
+        }
+
+        /**
+         * Validates one parsed car and queues it for writing. Returns false once cancelled.
+         */
+        boolean add(ContentValues car) {
+            carsRead++;
+            String badValue = car.getAsString(BAD_VALUE_KEY);
+            if (badValue != null) {
+                //putValue() could not read one of the car's values
+                reject(badValue);
+            } else {
+                try {
+                    CarValidator.validateNewCar(car);
+                    mChunk[mChunkSize++] = car;
+                } catch (IllegalArgumentException e) {
+                    reject(e.getMessage());
+                }
+            }
+            if (mChunkSize == CHUNK_SIZE) {
+                flush();
+            }
+            return !mCancelled;
+        }
+
+        void reject(String reason) {
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add("Row " + carsRead + ": " + reason);
+            }
+        }
+
+        void flush() {
+            if (mChunkSize == 0) {
+                return;
+            }
+            ContentValues[] chunk = mChunk;
+            if (mChunkSize < CHUNK_SIZE) {
+                chunk = new ContentValues[mChunkSize];
+                System.arraycopy(mChunk, 0, chunk, 0, mChunkSize);
+            }
+            //Cars the database refuses, such as a plate that is already taken under
+            //CONFLICT_REJECT, are skipped by bulkInsert() and show up as rejected
+            carsImported += mContentResolver.bulkInsert(mInsertUri, chunk);
+            Arrays.fill(mChunk, null);
+            mChunkSize = 0;
+            if (mListener != null) {
+                mListener.onProgress(mStream.bytesRead, mTotalBytes, carsImported);
+            }
+        }
+    }
+
+    /**
+     * Skips leading whitespace and a byte order mark, and peeks at the first character
+     */
+    private static boolean startsWithJson(PushbackReader reader) throws IOException {
+        int c;
+        do {
+            c = reader.read();
+        } while (c == '\uFEFF' || (c != -1 && Character.isWhitespace(c)));
+        if (c == -1) {
+            return false;
+        }
+        reader.unread(c);
+        return c == '[' || c == '{';
+    }
+
+    private void readCsv(Reader reader, Batch batch) throws IOException {
+        CsvParser parser = new CsvParser(reader);
+        ArrayList<String> header = parser.nextRecord();
+        if (header == null) {
+            return;
+        }
+        int[] columnIndexes = new int[IMPORT_COLUMNS.length];
+        for (int column = 0; column < IMPORT_COLUMNS.length; column++) {
+            columnIndexes[column] = -1;
+            for (int field = 0; field < header.size(); field++) {
+                if (IMPORT_COLUMNS[column].equalsIgnoreCase(header.get(field).trim())) {
+                    columnIndexes[column] = field;
+                }
+            }
+            if (columnIndexes[column] < 0) {
+                throw new IOException("CSV header has no " + IMPORT_COLUMNS[column] + " column");
+            }
+        }
+
+        ArrayList<String> record;
+        while ((record = parser.nextRecord()) != null) {
+            if (record.size() == 1 && record.get(0).trim().isEmpty()) {
+                //Blank line
+                continue;
+            }
+            ContentValues car = new ContentValues(IMPORT_COLUMNS.length);
+            for (int column = 0; column < IMPORT_COLUMNS.length; column++) {
+                int field = columnIndexes[column];
+                putValue(car, IMPORT_COLUMNS[column], field < record.size() ? record.get(field) : null);
+            }
+            if (!batch.add(car)) {
+                return;
+            }
+        }
+    }
+
+    private void readJson(Reader reader, Batch batch) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        try {
+            if (json.peek() == JsonToken.BEGIN_OBJECT) {
+                //Find the "cars" array in a wrapping object
+                json.beginObject();
+                while (json.hasNext()) {
+                    if ("cars".equals(json.nextName()) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                        readJsonCars(json, batch);
+                        return;
+                    }
+                    json.skipValue();
+                }
+                throw new IOException("JSON object has no \"cars\" array");
+            }
+            readJsonCars(json, batch);
+        } catch (IllegalStateException e) {
+            //JsonReader reports unexpected tokens this way
+            throw new IOException("Malformed JSON: " + e.getMessage(), e);
+        }
+    }
+
+    private void readJsonCars(JsonReader json, Batch batch) throws IOException {
+        json.beginArray();
+        while (json.hasNext()) {
+            ContentValues car = new ContentValues(IMPORT_COLUMNS.length);
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                String column = importColumn(name);
+                if (column == null || json.peek() == JsonToken.NULL) {
+                    json.skipValue();
+                } else {
+                    //Numbers and booleans come back as their text too
+                    putValue(car, column, json.nextString());
+                }
+            }
+            json.endObject();
+            if (!batch.add(car)) {
+                return;
+            }
+        }
+        json.endArray();
+    }
+
+    private static String importColumn(String name) {
+        for (String column : IMPORT_COLUMNS) {
+            if (column.equalsIgnoreCase(name)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    //Set on a parsed car whose year or color could not be read, holding the reason
+    private static final String BAD_VALUE_KEY = "import_error";
+
+    /**
+     * Puts a value read from the file into the car, converting year and color to numbers.
+     * Missing values are left out so validation rejects the car.
+     */
+    private static void putValue(ContentValues car, String column, @Nullable String value) {
+        if (value == null) {
+            return;
+        }
+        value = value.trim();
+        if (value.isEmpty()) {
+            return;
+        }
+        try {
+            if (CarEntry.COLUMN_CAR_YEAR.equals(column)) {
+                car.put(column, Integer.parseInt(value));
+            } else if (CarEntry.COLUMN_CAR_COLOR.equals(column)) {
+                car.put(column, parseColor(value));
+            } else {
+                car.put(column, value);
+            }
+        } catch (IllegalArgumentException e) {
+            car.put(BAD_VALUE_KEY, "Cannot read " + column + " \"" + value + "\"");
+        }
+    }
+
+    /**
+     * The color id of a color name, #RRGGBB value or ARGB int
+     * @throws IllegalArgumentException if it is none of those, or a value no color has
+     */
+    private static int parseColor(String value) {
+        int color = CarColors.idOfName(value);
+        if (color != CarColors.NO_COLOR) {
+            return color;
+        }
+        if (value.startsWith("#")) {
+            color = CarColors.idOfArgb(Color.parseColor(value));
+        } else {
+            color = CarColors.idOfArgb((int) Long.parseLong(value));
+        }
+        if (color == CarColors.NO_COLOR) {
+            throw new IllegalArgumentException("Unknown car color " + value);
+        }
+        return color;
+    }
+
+    /**
+     * Size of the file as reported by its provider, or -1
+     */
+    private long fileSize(Uri source) {
+        Cursor cursor = null;
+        try {
+            cursor = mContentResolver.query(source, new String[] {OpenableColumns.SIZE}, null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            //Not every provider of files answers queries, e.g. file:// URIs
+            Log.w(LOG_TAG, "No size for " + source, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads CSV records one at a time, keeping only the current record in memory
+     */
+    private static final class CsvParser {
+        private final Reader mReader;
+        private final char[] mBuffer = new char[BUFFER_SIZE];
+        private int mPosition;
+        private int mLimit;
+        private final StringBuilder mField = new StringBuilder();
+
+        CsvParser(Reader reader) {
+            mReader = reader;
+        }
+
+        private int read() throws IOException {
+            if (mPosition == mLimit) {
+                mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+                mPosition = 0;
+                if (mLimit <= 0) {
+                    mLimit = 0;
+                    return -1;
+                }
+            }
+            return mBuffer[mPosition++];
+        }
+
+        private int peek() throws IOException {
+            int c = read();
+            if (c != -1) {
+                mPosition--;
+            }
+            return c;
+        }
+
+        /**
+         * Returns the fields of the next record, or null at the end of the file
+         */
+        @Nullable
+        ArrayList<String> nextRecord() throws IOException {
+            int c = read();
+            if (c == -1) {
+                return null;
+            }
+            ArrayList<String> fields = new ArrayList<>(IMPORT_COLUMNS.length);
+            mField.setLength(0);
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("CSV file ends inside a quoted field");
+                    } else if (c == '"') {
+                        if (peek() == '"') {
+                            read();
+                            mField.append('"');
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        mField.append((char) c);
+                    }
+                } else if (c == '"' && mField.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(mField.toString());
+                    mField.setLength(0);
+                } else if (c == '\r' || c == '\n' || c == -1) {
+                    if (c == '\r' && peek() == '\n') {
+                        read();
+                    }
+                    fields.add(mField.toString());
+                    return fields;
+                } else {
+                    mField.append((char) c);
+                }
+                c = read();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from the file, for progress reporting
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        volatile long bytesRead;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                bytesRead += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            bytesRead += skipped;
+            return skipped;
+        }
+    }
+}
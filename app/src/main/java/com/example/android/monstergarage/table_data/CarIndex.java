@@ -0,0 +1,469 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of every live car, so the editor and checks such as "is this plate taken"
+ * can look a car up by id or plate without a trip through the ContentResolver, Binder,
+ * SQLite and a Cursor.
+ *
+ * The cars are kept in parallel arrays, one row per car, found through a LongIntMap from _id
+ * to row and an open addressing table from plate key to row, so "ab 123" finds the car with
+ * plate "AB-123" like the provider's unique plate key index would. A lookup is a couple of
+ * array reads and copies the car into a Car the caller keeps, so it allocates nothing for a
+ * plate that is already in key form.
+ *
+ * Nothing is loaded until the index is first asked for, which the editor does when it opens,
+ * so an app that never edits a car never holds its cars in memory. The first getInstance()
+ * loads every car on a background thread, and the index then follows GarageProvider's change
+ * notifications: a changed car URI reloads that car alone, a table wide change, or a burst of
+ * more than MAX_CAR_RELOADS cars, reloads everything. Bulk inserts and imports send a table
+ * wide change per chunk, so that reload waits until no table wide change has come for
+ * RELOAD_DELAY_MS, and a long import is loaded once instead of once per chunk.
+ * Soft deleted cars are left out like in every other query. Until the first load is done,
+ * and for a moment after each change, lookups may miss or be stale, so callers treat a miss
+ * as "not known" and the provider stays the one that enforces anything.
+ */
+public final class CarIndex {
+
+    private static final String LOG_TAG = CarIndex.class.getSimpleName();
+
+    //Returned by findIdByPlate() when no car has the plate key
+    public static final long NO_ID = -1;
+    //Changed cars reloaded one at a time, more than this and every car is reloaded instead
+    static final int MAX_CAR_RELOADS = 64;
+    //Quiet time after a table wide change before every car is reloaded
+    static final long RELOAD_DELAY_MS = 1000;
+
+    //Columns read for each car, in the order putCar() reads them
+    static final String[] COLUMNS = {CarEntry._ID, CarEntry.COLUMN_CAR_MAKE, CarEntry.COLUMN_CAR_MODEL,
+            CarEntry.COLUMN_CAR_YEAR, CarEntry.COLUMN_CAR_COLOR, CarEntry.COLUMN_CAR_PLATE};
+
+    /**
+     * A car copied out of the index. Reuse one for every lookup, the strings are shared
+     * with the index and never change
+     */
+    public static final class Car {
+        public long id;
+        public String make;
+        public String model;
+        public int year;
+        public int color;
+        public String plate;
+    }
+
+    /**
+     * The cars themselves, and the id and plate tables pointing into them. Not thread safe,
+     * CarIndex only touches it while holding its lock
+     */
+    static final class Table {
+        private final LongIntMap mRowsById;
+        private long[] mIds;
+        private String[] mMakes;
+        private String[] mModels;
+        private int[] mYears;
+        private int[] mColors;
+        private String[] mPlates;
+        //CarEntry.plateKey() of each plate, the same string when the plate already is one
+        private String[] mPlateKeys;
+        //Rows handed out so far, and rows given back by removed cars
+        private int mRowCount;
+        private int[] mFreeRows = new int[0];
+        private int mFreeCount;
+
+        //row + 1 per slot, 0 for an empty slot
+        private int[] mPlateSlots;
+        private int mPlateCount;
+
+        Table(int expectedCars) {
+            int rows = Math.max(expectedCars, 16);
+            mRowsById = new LongIntMap(rows);
+            mIds = new long[rows];
+            mMakes = new String[rows];
+            mModels = new String[rows];
+            mYears = new int[rows];
+            mColors = new int[rows];
+            mPlates = new String[rows];
+            mPlateKeys = new String[rows];
+            mPlateSlots = new int[Integer.highestOneBit(rows * 2 - 1) << 1];
+        }
+
+        int size() {
+            return mRowsById.size();
+        }
+
+        /**
+         * Adds the car, or replaces what was known about it
+         */
+        void put(long id, String make, String model, int year, int color, String plate) {
+            int row = mRowsById.get(id);
+            if (row != LongIntMap.NO_VALUE) {
+                removePlate(row);
+            } else {
+                row = newRow();
+                mRowsById.put(id, row);
+            }
+            mIds[row] = id;
+            mMakes[row] = make;
+            mModels[row] = model;
+            mYears[row] = year;
+            mColors[row] = color;
+            mPlates[row] = plate;
+            mPlateKeys[row] = CarEntry.plateKey(plate);
+            addPlate(row);
+        }
+
+        void remove(long id) {
+            int row = mRowsById.remove(id);
+            if (row == LongIntMap.NO_VALUE) {
+                return;
+            }
+            removePlate(row);
+            mMakes[row] = null;
+            mModels[row] = null;
+            mPlates[row] = null;
+            mPlateKeys[row] = null;
+            if (mFreeCount == mFreeRows.length) {
+                mFreeRows = Arrays.copyOf(mFreeRows, Math.max(16, mFreeCount * 2));
+            }
+            mFreeRows[mFreeCount++] = row;
+        }
+
+        boolean find(long id, Car out) {
+            int row = mRowsById.get(id);
+            if (row == LongIntMap.NO_VALUE) {
+                return false;
+            }
+            out.id = id;
+            out.make = mMakes[row];
+            out.model = mModels[row];
+            out.year = mYears[row];
+            out.color = mColors[row];
+            out.plate = mPlates[row];
+            return true;
+        }
+
+        long findIdByPlate(String plate) {
+            String plateKey = CarEntry.plateKey(plate);
+            for (int slot = plateSlotOf(plateKey); mPlateSlots[slot] != 0; slot = nextPlateSlot(slot)) {
+                int row = mPlateSlots[slot] - 1;
+                if (plateKey.equals(mPlateKeys[row])) {
+                    return mIds[row];
+                }
+            }
+            return NO_ID;
+        }
+
+        private int newRow() {
+            if (mFreeCount > 0) {
+                return mFreeRows[--mFreeCount];
+            }
+            if (mRowCount == mIds.length) {
+                int rows = mRowCount * 2;
+                mIds = Arrays.copyOf(mIds, rows);
+                mMakes = Arrays.copyOf(mMakes, rows);
+                mModels = Arrays.copyOf(mModels, rows);
+                mYears = Arrays.copyOf(mYears, rows);
+                mColors = Arrays.copyOf(mColors, rows);
+                mPlates = Arrays.copyOf(mPlates, rows);
+                mPlateKeys = Arrays.copyOf(mPlateKeys, rows);
+            }
+            return mRowCount++;
+        }
+
+        /**
+         * Points the row's plate key at the row. Plate keys are unique among live cars, but while
+         * a swap of plates is only half followed the newest car to claim a key wins
+         */
+        private void addPlate(int row) {
+            String plateKey = mPlateKeys[row];
+            int slot = plateSlotOf(plateKey);
+            while (mPlateSlots[slot] != 0) {
+                if (plateKey.equals(mPlateKeys[mPlateSlots[slot] - 1])) {
+                    mPlateSlots[slot] = row + 1;
+                    return;
+                }
+                slot = nextPlateSlot(slot);
+            }
+            mPlateSlots[slot] = row + 1;
+            mPlateCount++;
+            if (mPlateCount * 4 > mPlateSlots.length * 3) {
+                growPlates();
+            }
+        }
+
+        /**
+         * Removes the row's plate if it still points at the row, shifting back the
+         * plates probed after it like LongIntMap.remove()
+         */
+        private void removePlate(int row) {
+            int hole = plateSlotOf(mPlateKeys[row]);
+            while (mPlateSlots[hole] != row + 1) {
+                if (mPlateSlots[hole] == 0) {
+                    return;
+                }
+                hole = nextPlateSlot(hole);
+            }
+            int mask = mPlateSlots.length - 1;
+            for (int next = nextPlateSlot(hole); mPlateSlots[next] != 0; next = nextPlateSlot(next)) {
+                int home = plateSlotOf(mPlateKeys[mPlateSlots[next] - 1]);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    mPlateSlots[hole] = mPlateSlots[next];
+                    hole = next;
+                }
+            }
+            mPlateSlots[hole] = 0;
+            mPlateCount--;
+        }
+
+        private void growPlates() {
+            int[] slots = mPlateSlots;
+            mPlateSlots = new int[slots.length * 2];
+            mPlateCount = 0;
+            for (int entry : slots) {
+                if (entry != 0) {
+                    addPlate(entry - 1);
+                }
+            }
+        }
+
+        /**
+         * String caches its hash, spread it so plate keys that differ only at the end spread out
+         */
+        private int plateSlotOf(String plateKey) {
+            int hash = plateKey.hashCode() * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & (mPlateSlots.length - 1);
+        }
+
+        private int nextPlateSlot(int slot) {
+            return (slot + 1) & (mPlateSlots.length - 1);
+        }
+    }
+
+    private static CarIndex sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "car-index");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    //Called on the thread sending the notification, only records what changed
+    private final ContentObserver mCarsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            //Before API 16 the changed URI is not passed on
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onCarsChanged(uri);
+        }
+    };
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    //Everything below is guarded by this
+    @Nullable
+    private Table mTable;
+    //Changes seen since the last sync, and the sync queued to pick them up, if any
+    private boolean mReloadAll = true;
+    private final HashSet<Long> mChangedIds = new HashSet<>();
+    @Nullable
+    private ScheduledFuture<?> mQueuedSync;
+
+    private CarIndex(Context context) {
+        mContentResolver = context.getContentResolver();
+        //Listen before the first load, so nothing that changes while it runs is missed
+        mContentResolver.registerContentObserver(CarEntry.CONTENT_URI, true, mCarsObserver);
+        synchronized (this) {
+            queueSync(0);
+        }
+    }
+
+    /**
+     * Returns the app wide index, creating it and starting its first load on first use.
+     * Only the editor asks for it, see the class comment
+     */
+    public static synchronized CarIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CarIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * True once every car has been loaded
+     */
+    public synchronized boolean isLoaded() {
+        return mTable != null;
+    }
+
+    /**
+     * Copies the car with the given id into out.
+     * Returns false when the car is not known, or the index is not loaded yet
+     */
+    public synchronized boolean findCar(long id, Car out) {
+        return mTable != null && mTable.find(id, out);
+    }
+
+    /**
+     * The id of the live car whose plate has the same CarEntry.plateKey() as this one, or NO_ID
+     * when no known car has it
+     */
+    public synchronized long findIdByPlate(String plate) {
+        return mTable != null ? mTable.findIdByPlate(plate) : NO_ID;
+    }
+
+    private synchronized void onCarsChanged(@Nullable Uri uri) {
+        if (isCarUri(uri)) {
+            mChangedIds.add(ContentUris.parseId(uri));
+            //A reload already waiting picks this car up as well
+            if (mQueuedSync == null) {
+                queueSync(0);
+            }
+        } else {
+            mReloadAll = true;
+            //Start the wait over, more chunks of the same import are likely on the way
+            if (mQueuedSync != null) {
+                mQueuedSync.cancel(false);
+            }
+            queueSync(RELOAD_DELAY_MS);
+        }
+    }
+
+    //Called holding the lock
+    private void queueSync(long delayMs) {
+        mQueuedSync = mExecutor.schedule(mSyncRunnable, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Picks up every change recorded so far. Queries run without the lock held, so lookups
+     * keep being answered from the current cars meanwhile
+     */
+    private void sync() {
+        boolean reloadAll;
+        long[] changedIds;
+        synchronized (this) {
+            //Changes recorded from here on queue another sync. A sync still waiting is a later
+            //one, queued after this one was too far along to be cancelled
+            if (mQueuedSync != null && mQueuedSync.getDelay(TimeUnit.MILLISECONDS) <= 0) {
+                mQueuedSync = null;
+            }
+            reloadAll = mReloadAll || mTable == null || mChangedIds.size() > MAX_CAR_RELOADS;
+            changedIds = new long[reloadAll ? 0 : mChangedIds.size()];
+            if (!reloadAll) {
+                int i = 0;
+                for (Long id : mChangedIds) {
+                    changedIds[i++] = id;
+                }
+            }
+            mReloadAll = false;
+            mChangedIds.clear();
+        }
+
+        try {
+            if (reloadAll) {
+                Table table = loadAll();
+                synchronized (this) {
+                    mTable = table;
+                }
+                return;
+            }
+            for (long id : changedIds) {
+                reloadCar(id);
+            }
+        } catch (RuntimeException e) {
+            //Lookups keep answering from what was loaded before, the next change tries again
+            Log.e(LOG_TAG, "Loading cars into the index failed", e);
+            synchronized (this) {
+                mReloadAll = true;
+            }
+        }
+    }
+
+    private Table loadAll() {
+        Cursor cursor = mContentResolver.query(CarEntry.CONTENT_URI, COLUMNS, null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("No cars cursor");
+        }
+        try {
+            Table table = new Table(cursor.getCount());
+            while (cursor.moveToNext()) {
+                putCar(table, cursor);
+            }
+            return table;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void reloadCar(long id) {
+        Cursor cursor = mContentResolver.query(ContentUris.withAppendedId(CarEntry.CONTENT_URI, id),
+                COLUMNS, null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("No cursor for car " + id);
+        }
+        try {
+            //Read the row before taking the lock, lookups should not wait on SQLite
+            boolean found = cursor.moveToFirst();
+            synchronized (this) {
+                if (mTable == null) {
+                    return;
+                }
+                //No row means the car was deleted, soft deleted or never made it in
+                if (found) {
+                    putCar(mTable, cursor);
+                } else {
+                    mTable.remove(id);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Adds the car at the cursor's position, the cursor holds COLUMNS in order
+     */
+    static void putCar(Table table, Cursor cursor) {
+        table.put(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                cursor.getInt(3), cursor.getInt(4), cursor.getString(5));
+    }
+
+    /**
+     * True for "cars/#", the URI GarageProvider notifies for a single changed car
+     */
+    private static boolean isCarUri(@Nullable Uri uri) {
+        return uri != null && uri.getPathSegments().size() == 2
+                && GarageContract.PATH_CARS_TABLE.equals(uri.getPathSegments().get(0))
+                && TextUtils.isDigitsOnly(uri.getLastPathSegment());
+    }
+}
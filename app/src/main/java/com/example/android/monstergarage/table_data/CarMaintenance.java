@@ -0,0 +1,328 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background upkeep of garage.db for GarageProvider, on a low priority thread of its own.
+ *
+ * Soft deleted cars are purged once they are TOMBSTONE_LIFETIME_MS old, after which the free
+ * pages they leave behind are handed back to the file system with incremental auto_vacuum.
+ * Both happen in small steps that are each their own short transaction, so the app's own
+ * writes get in between and never wait long for the write lock.
+ *
+ * Cars sharing a plate key, left behind by databases from before plate keys were unique, are
+ * merged first, see dedupePlates(). Each group of duplicates becomes the oldest car of the
+ * group with the values of the newest, as if the newer cars had been inserted with
+ * CONFLICT_MERGE, and the plate key index is made unique once none are left.
+ */
+final class CarMaintenance {
+
+    private static final String LOG_TAG = CarMaintenance.class.getSimpleName();
+
+    //How long a soft deleted car is kept before it is purged for good
+    static final long TOMBSTONE_LIFETIME_MS = 30 * 1000;
+    //Delay after the provider starts before cars left soft deleted by an earlier run are purged
+    static final long STARTUP_DELAY_MS = 10 * 1000;
+    //Cars purged per statement
+    private static final int PURGE_CHUNK_SIZE = 500;
+    //Free pages handed back per incremental vacuum step, and how many free pages are worth it
+    private static final int VACUUM_STEP_PAGES = 128;
+    private static final int MIN_VACUUM_PAGES = 256;
+    //Cars removed per transaction when merging duplicate plates
+    private static final int DEDUPE_CHUNK_SIZE = 500;
+
+    /**
+     * Told when maintenance changed cars that queries can see, from the maintenance thread
+     */
+    interface Listener {
+        void onCarsChanged();
+    }
+
+    private final CarDBHelper mDbHelper;
+    @Nullable
+    private final Listener mListener;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "garage-maintenance");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    //The next scheduled run and the uptime it is due at
+    private ScheduledFuture<?> mPendingRun;
+    private long mPendingRunAt;
+
+    CarMaintenance(CarDBHelper dbHelper, @Nullable Listener listener) {
+        mDbHelper = dbHelper;
+        mListener = listener;
+    }
+
+    /**
+     * Makes sure a run happens within the given delay. An earlier run that is already
+     * scheduled is kept, a later one is moved up
+     */
+    synchronized void schedule(long delayMillis) {
+        long runAt = SystemClock.uptimeMillis() + delayMillis;
+        if (mPendingRun != null && !mPendingRun.isDone() && mPendingRunAt <= runAt) {
+            return;
+        }
+        if (mPendingRun != null) {
+            mPendingRun.cancel(false);
+        }
+        mPendingRunAt = runAt;
+        mPendingRun = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runMaintenance();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Purges every soft deleted car on the calling thread, whatever its age, and schedules
+     * the vacuum that follows. Returns the number of cars purged
+     */
+    int purgeAllNow() {
+        int purged = purgeDeleted(mDbHelper.getWritableDatabase(), Long.MAX_VALUE);
+        if (purged > 0) {
+            schedule(0);
+        }
+        return purged;
+    }
+
+    /**
+     * Merges every group of cars sharing a plate key on the calling thread, and makes the plate
+     * key index unique once there are none left. Returns the number of duplicate cars removed
+     */
+    int dedupePlatesNow() {
+        int removed = dedupePlates(mDbHelper.getWritableDatabase());
+        if (removed > 0 && mListener != null) {
+            mListener.onCarsChanged();
+        }
+        return removed;
+    }
+
+    /**
+     * Stops the maintenance thread, a run in progress finishes its current step
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void runMaintenance() {
+        synchronized (this) {
+            //This is the pending run, unless a later one was scheduled after it started
+            if (mPendingRunAt <= SystemClock.uptimeMillis()) {
+                mPendingRun = null;
+            }
+        }
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            if (!CarDBHelper.isPlateKeyIndexUnique(db)) {
+                int removed = dedupePlatesNow();
+                if (removed > 0) {
+                    Log.i(LOG_TAG, "Removed " + removed + " cars with duplicate plates");
+                }
+            }
+            int purged = purgeDeleted(db, System.currentTimeMillis() - TOMBSTONE_LIFETIME_MS);
+            if (purged > 0) {
+                Log.i(LOG_TAG, "Purged " + purged + " deleted cars");
+            }
+            vacuum(db);
+
+            //Come back when the oldest car still soft deleted is due
+            long oldestDeletedAt = oldestDeletedAt(db);
+            if (oldestDeletedAt > 0) {
+                long dueIn = oldestDeletedAt + TOMBSTONE_LIFETIME_MS - System.currentTimeMillis();
+                schedule(Math.max(dueIn, 0));
+            }
+        } catch (RuntimeException e) {
+            //Nothing is lost, the next soft delete or app start tries again
+            Log.e(LOG_TAG, "Maintenance of the garage database failed", e);
+        }
+    }
+
+    /**
+     * Removes the cars soft deleted before the given time for good, in chunks
+     */
+    private static int purgeDeleted(SQLiteDatabase db, long deletedBefore) {
+        return CarDBHelper.deleteCarsInChunks(db,
+                CarEntry.COLUMN_CAR_DELETED + ">0 AND " + CarEntry.COLUMN_CAR_DELETED + "<?",
+                new String[] {String.valueOf(deletedBefore)}, PURGE_CHUNK_SIZE, 0);
+    }
+
+    /**
+     * Finds every car sharing its plate key with another in one walk of the plate key index,
+     * grouping the keys and returning only those held more than once in key order, so equal
+     * keys come out next to each other. Each group then keeps its oldest live car with the
+     * values of its newest live car, the rest of the group is removed for good. Groups are
+     * written DEDUPE_CHUNK_SIZE cars per transaction, and the index is made unique in a last
+     * one that checks no new duplicate slipped in meanwhile. Returns the number of cars removed
+     */
+    private static int dedupePlates(SQLiteDatabase db) {
+        long[] ids = new long[16];
+        boolean[] live = new boolean[16];
+        String[] plateKeys = new String[16];
+        int count = 0;
+        Cursor cursor = db.rawQuery("SELECT " + CarEntry._ID + ", " + CarEntry.COLUMN_CAR_PLATE_KEY + ", "
+                + CarEntry.COLUMN_CAR_DELETED + " FROM " + CarEntry.TABLE_NAME
+                + " WHERE " + CarEntry.COLUMN_CAR_PLATE_KEY + " IN (SELECT " + CarEntry.COLUMN_CAR_PLATE_KEY
+                + " FROM " + CarEntry.TABLE_NAME + " GROUP BY " + CarEntry.COLUMN_CAR_PLATE_KEY
+                + " HAVING count(*) > 1) ORDER BY " + CarEntry.COLUMN_CAR_PLATE_KEY + ", " + CarEntry._ID, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    live = Arrays.copyOf(live, count * 2);
+                    plateKeys = Arrays.copyOf(plateKeys, count * 2);
+                }
+                ids[count] = cursor.getLong(0);
+                plateKeys[count] = cursor.getString(1);
+                live[count] = cursor.getLong(2) == 0;
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int removed = 0;
+        int groupStart = 0;
+        while (groupStart < count && !Thread.currentThread().isInterrupted()) {
+            db.beginTransactionNonExclusive();
+            try {
+                int chunkRemoved = 0;
+                while (groupStart < count && chunkRemoved < DEDUPE_CHUNK_SIZE) {
+                    int groupEnd = groupStart + 1;
+                    while (groupEnd < count && plateKeys[groupEnd].equals(plateKeys[groupStart])) {
+                        groupEnd++;
+                    }
+                    chunkRemoved += mergeDuplicates(db, ids, live, groupStart, groupEnd);
+                    groupStart = groupEnd;
+                }
+                db.setTransactionSuccessful();
+                removed += chunkRemoved;
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            if (!CarDBHelper.hasDuplicatePlateKeys(db)) {
+                CarDBHelper.createPlateKeyIndex(db, true);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return removed;
+    }
+
+    /**
+     * Merges one group of cars sharing a plate key, between start and end in the arrays, which
+     * are in _id order. A group of only soft deleted cars keeps the oldest of them, which the
+     * purge takes care of. Returns the number of cars removed
+     */
+    private static int mergeDuplicates(SQLiteDatabase db, long[] ids, boolean[] live, int start, int end) {
+        int keep = start;
+        int newest = -1;
+        for (int i = end - 1; i >= start; i--) {
+            if (live[i]) {
+                if (newest == -1) {
+                    newest = i;
+                }
+                keep = i;
+            }
+        }
+
+        ContentValues newestValues = null;
+        if (newest != -1 && newest != keep) {
+            newestValues = readCar(db, ids[newest]);
+        }
+        int removed = 0;
+        for (int i = start; i < end; i++) {
+            if (i != keep) {
+                removed += db.delete(CarEntry.TABLE_NAME, CarEntry._ID + "=?",
+                        new String[] {String.valueOf(ids[i])});
+            }
+        }
+        //Only once the newest car is gone, its plate is unique as typed
+        if (newestValues != null) {
+            db.update(CarEntry.TABLE_NAME, newestValues, CarEntry._ID + "=?",
+                    new String[] {String.valueOf(ids[keep])});
+        }
+        return removed;
+    }
+
+    /**
+     * The columns of a car that a merge copies, or null if the car is gone
+     */
+    @Nullable
+    private static ContentValues readCar(SQLiteDatabase db, long id) {
+        Cursor cursor = db.query(CarEntry.TABLE_NAME, new String[] {CarEntry.COLUMN_CAR_MAKE,
+                        CarEntry.COLUMN_CAR_MODEL, CarEntry.COLUMN_CAR_YEAR, CarEntry.COLUMN_CAR_COLOR,
+                        CarEntry.COLUMN_CAR_PLATE, CarEntry.COLUMN_CAR_PLATE_KEY},
+                CarEntry._ID + "=?", new String[] {String.valueOf(id)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            ContentValues values = new ContentValues(cursor.getColumnCount());
+            DatabaseUtils.cursorRowToContentValues(cursor, values);
+            return values;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Hands free pages back to the file system once there are enough of them to matter.
+     * Databases upgraded with cars in them never got incremental auto_vacuum, see CarDBHelper,
+     * and keep their free pages for SQLite to reuse
+     */
+    private static void vacuum(SQLiteDatabase db) {
+        long freePages = CarDBHelper.freePages(db);
+        if (freePages < MIN_VACUUM_PAGES || !CarDBHelper.isIncrementalVacuum(db)) {
+            return;
+        }
+        while (freePages > 0 && !Thread.currentThread().isInterrupted()) {
+            long left = CarDBHelper.incrementalVacuum(db, VACUUM_STEP_PAGES);
+            if (left >= freePages) {
+                //New writes are using up the free pages as fast as they are freed
+                return;
+            }
+            freePages = left;
+        }
+    }
+
+    /**
+     * The time the oldest soft deleted car was deleted at, or 0 if there are none
+     */
+    private static long oldestDeletedAt(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT min(" + CarEntry.COLUMN_CAR_DELETED + ") FROM "
+                + CarEntry.TABLE_NAME + " WHERE " + CarEntry.COLUMN_CAR_DELETED + ">0", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
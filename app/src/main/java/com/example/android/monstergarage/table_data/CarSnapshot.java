@@ -0,0 +1,398 @@
+package com.example.android.monstergarage.table_data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Writes the cars table to a compact binary snapshot file and restores it again.
+ *
+ * The file is columnar: every column of every car is stored together, which lets each column
+ * use the encoding that suits it.
+ * <pre>
+ * header   "GSNP", int version, int car count, int offset of each of the 6 columns
+ * _id      varint difference from the previous car's _id, cars are in _id order
+ * make     dictionary of distinct strings, then a varint dictionary index per car
+ * model    dictionary of distinct strings, then a varint dictionary index per car
+ * year     zigzag varint per car
+ * color    dictionary of distinct color ids, then a varint dictionary index per car
+ * plate    varint UTF-8 length and bytes per car
+ * </pre>
+ * Version 1 files stored ARGB values as colors, from before cars stored color ids, and are
+ * restored with each value turned into its color id.
+ * Ints in the header are big endian, varints are unsigned LEB128. Because ids are dense and
+ * makes, models and colors repeat a lot, a car usually takes a dozen or so bytes.
+ *
+ * A snapshot is built column by column in memory, then each column is streamed to the file
+ * as it is. The cars are read in one transaction, which keeps every window of the scan to the
+ * same state of the table. Before API 35 the framework only begins BEGIN IMMEDIATE or EXCLUSIVE
+ * transactions, so the scan holds the write lock: queries carry on against the WAL meanwhile,
+ * but writes from other threads, such as imports and CarMaintenance's purges, wait for it.
+ * Snapshots are taken on the CarWriteExecutor thread, so the CarWriteBuffer flushes queued
+ * there wait for them in any case.
+ *
+ * Files are read back through a memory mapped FileChannel, and every length and count in them
+ * is checked against the bytes that are left, so a damaged file is reported as an IOException
+ * and never allocates more than its own size. A restore replaces every car inside one
+ * transaction: the indexes and triggers on the cars table are dropped, the cars are
+ * loaded with one compiled insert statement, then the search index and the dropped indexes and
+ * triggers are rebuilt from their original SQL.
+ */
+final class CarSnapshot {
+
+    private static final int MAGIC = ('G' << 24) | ('S' << 16) | ('N' << 8) | 'P';
+    private static final int VERSION = 2;
+    //Oldest version restore() reads, its colors are ARGB values
+    private static final int VERSION_ARGB_COLORS = 1;
+    private static final int COLUMN_COUNT = 6;
+    private static final int HEADER_SIZE = 12 + 4 * COLUMN_COUNT;
+
+    //Cars read from the database per query while writing a snapshot
+    private static final int READ_WINDOW = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private CarSnapshot() {}
+
+    /**
+     * Writes every car to the given file, replacing it only once the new snapshot is complete.
+     * Soft deleted cars are left out. Returns the number of cars written.
+     */
+    static int write(SQLiteDatabase db, File file) throws IOException {
+        ByteArrayOutputStream ids = new ByteArrayOutputStream();
+        DictionaryColumn makes = new DictionaryColumn();
+        DictionaryColumn models = new DictionaryColumn();
+        ByteArrayOutputStream years = new ByteArrayOutputStream();
+        DictionaryColumn colors = new DictionaryColumn();
+        ByteArrayOutputStream plates = new ByteArrayOutputStream();
+
+        //Read the cars in keyset windows inside one transaction, so the snapshot is consistent.
+        //Before API 35 the framework only begins IMMEDIATE or EXCLUSIVE transactions, so this
+        //holds the write lock until the last window is read, see the class comment
+        int count = 0;
+        long lastId = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            while (true) {
+                Cursor cursor = db.query(CarEntry.TABLE_NAME,
+                        new String[] {CarEntry._ID, CarEntry.COLUMN_CAR_MAKE, CarEntry.COLUMN_CAR_MODEL,
+                                CarEntry.COLUMN_CAR_YEAR, CarEntry.COLUMN_CAR_COLOR, CarEntry.COLUMN_CAR_PLATE},
+                        CarEntry._ID + ">? AND " + CarDBHelper.WHERE_NOT_DELETED, new String[] {String.valueOf(lastId)},
+                        null, null, CarEntry._ID + " ASC", String.valueOf(READ_WINDOW));
+                try {
+                    if (cursor.getCount() == 0) {
+                        break;
+                    }
+                    while (cursor.moveToNext()) {
+                        long id = cursor.getLong(0);
+                        writeVarint(ids, id - lastId);
+                        lastId = id;
+                        makes.add(cursor.getString(1));
+                        models.add(cursor.getString(2));
+                        writeVarint(years, zigzag(cursor.getInt(3)));
+                        colors.add(cursor.getInt(4));
+                        writeString(plates, cursor.getString(5));
+                        count++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        int[] columnSizes = {ids.size(), makes.size(), models.size(), years.size(), colors.size(), plates.size()};
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(count);
+            int offset = HEADER_SIZE;
+            for (int columnSize : columnSizes) {
+                output.writeInt(offset);
+                offset += columnSize;
+            }
+            //Each column goes out straight from the buffer it was collected in
+            ids.writeTo(output);
+            makes.writeTo(output);
+            models.writeTo(output);
+            years.writeTo(output);
+            colors.writeTo(output);
+            plates.writeTo(output);
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        return count;
+    }
+
+    /**
+     * Replaces every car in the database with the cars in the given snapshot file.
+     * Nothing changes if the file is not a valid snapshot or the restore fails part way.
+     * Returns the number of cars restored.
+     */
+    static int restore(SQLiteDatabase db, File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            try {
+                return restore(db, buffer);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+                    | SQLiteConstraintException e) {
+                //A constraint fails on values no snapshot written by write() holds, such as two
+                //cars with the same plate key, which only turns up once the indexes are rebuilt
+                throw new IOException("Corrupt car snapshot " + file, e);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static int restore(SQLiteDatabase db, ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a car snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION && version != VERSION_ARGB_COLORS) {
+            throw new IOException("Unsupported car snapshot version " + version);
+        }
+        int count = buffer.getInt();
+        //Every car takes at least one byte of each column
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad car count " + count);
+        }
+
+        //One read position per column, all moving forward one car at a time
+        ByteBuffer[] columns = new ByteBuffer[COLUMN_COUNT];
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            columns[column] = buffer.duplicate();
+            columns[column].position(buffer.getInt());
+        }
+        ByteBuffer ids = columns[0];
+        String[] makes = readStringDictionary(columns[1]);
+        String[] models = readStringDictionary(columns[2]);
+        ByteBuffer years = columns[3];
+        int[] colors = readIntDictionary(columns[4]);
+        for (int i = 0; i < colors.length; i++) {
+            if (version == VERSION_ARGB_COLORS) {
+                int color = CarColors.idOfArgb(colors[i]);
+                colors[i] = color != CarColors.NO_COLOR ? color : CarEntry.COLOR_OTHER;
+            } else if (!CarColors.isValid(colors[i])) {
+                throw new IllegalArgumentException("Unknown car color " + colors[i]);
+            }
+        }
+        ByteBuffer plates = columns[5];
+
+        //Index and trigger SQL is read back from the schema, so the restore keeps
+        //working whatever later migrations add to the cars table
+        ArrayList<String> schemaSql = new ArrayList<>();
+        ArrayList<String> dropSql = new ArrayList<>();
+
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + CarEntry.TABLE_NAME + " ("
+                + CarEntry._ID + ", " + CarEntry.COLUMN_CAR_MAKE + ", " + CarEntry.COLUMN_CAR_MODEL + ", "
+                + CarEntry.COLUMN_CAR_YEAR + ", " + CarEntry.COLUMN_CAR_COLOR + ", "
+                + CarEntry.COLUMN_CAR_PLATE + ", " + CarEntry.COLUMN_CAR_PLATE_KEY + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        //Exclusive, nothing else may write while the table is emptied and refilled
+        db.beginTransaction();
+        try {
+            Cursor schema = db.rawQuery("SELECT type, name, sql FROM sqlite_master WHERE tbl_name = ? "
+                    + "AND type IN ('index', 'trigger') AND sql IS NOT NULL", new String[] {CarEntry.TABLE_NAME});
+            try {
+                while (schema.moveToNext()) {
+                    dropSql.add("DROP " + schema.getString(0) + " " + schema.getString(1));
+                    schemaSql.add(schema.getString(2));
+                }
+            } finally {
+                schema.close();
+            }
+            for (String sql : dropSql) {
+                db.execSQL(sql);
+            }
+
+            db.execSQL("DELETE FROM " + CarEntry.TABLE_NAME);
+            long id = 0;
+            for (int car = 0; car < count; car++) {
+                //Ids are written in ascending order, a difference of 0 would repeat an _id
+                long idDelta = readVarint(ids);
+                id += idDelta;
+                if (idDelta <= 0 || id <= 0) {
+                    throw new IllegalArgumentException("Car ids out of order at car " + car);
+                }
+                insert.bindLong(1, id);
+                insert.bindString(2, makes[(int) readVarint(columns[1])]);
+                insert.bindString(3, models[(int) readVarint(columns[2])]);
+                insert.bindLong(4, unzigzag(readVarint(years)));
+                insert.bindLong(5, colors[(int) readVarint(columns[4])]);
+                String plate = readString(plates);
+                insert.bindString(6, plate);
+                //The key is not stored, it always follows from the plate
+                insert.bindString(7, CarEntry.plateKey(plate));
+                insert.executeInsert();
+            }
+
+            CarDBHelper.rebuildSearchIndex(db);
+            for (String sql : schemaSql) {
+                db.execSQL(sql);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        return count;
+    }
+
+    /**
+     * Collects a column as dictionary indexes, adding each distinct value to the dictionary
+     * the first time it is seen
+     */
+    private static final class DictionaryColumn {
+        private final HashMap<Object, Integer> mIndexes = new HashMap<>();
+        private final ByteArrayOutputStream mDictionary = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream mValues = new ByteArrayOutputStream();
+
+        void add(String value) {
+            Integer index = mIndexes.get(value);
+            if (index == null) {
+                index = mIndexes.size();
+                mIndexes.put(value, index);
+                writeString(mDictionary, value);
+            }
+            writeVarint(mValues, index);
+        }
+
+        void add(int value) {
+            Integer index = mIndexes.get(value);
+            if (index == null) {
+                index = mIndexes.size();
+                mIndexes.put(value, index);
+                mDictionary.write(value >>> 24);
+                mDictionary.write(value >>> 16);
+                mDictionary.write(value >>> 8);
+                mDictionary.write(value);
+            }
+            writeVarint(mValues, index);
+        }
+
+        //Bytes writeTo() writes: the dictionary size, the dictionary, then the indexes
+        int size() {
+            return varintSize(mIndexes.size()) + mDictionary.size() + mValues.size();
+        }
+
+        void writeTo(OutputStream output) throws IOException {
+            ByteArrayOutputStream dictionarySize = new ByteArrayOutputStream(5);
+            writeVarint(dictionarySize, mIndexes.size());
+            dictionarySize.writeTo(output);
+            mDictionary.writeTo(output);
+            mValues.writeTo(output);
+        }
+    }
+
+    private static String[] readStringDictionary(ByteBuffer buffer) {
+        //Every string takes at least the byte of its length
+        String[] dictionary = new String[readCount(buffer, 1)];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readString(buffer);
+        }
+        return dictionary;
+    }
+
+    private static int[] readIntDictionary(ByteBuffer buffer) {
+        int[] dictionary = new int[readCount(buffer, 4)];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = buffer.getInt();
+        }
+        return dictionary;
+    }
+
+    private static void writeString(ByteArrayOutputStream output, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(output, bytes.length);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readCount(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Reads a varint count of items that each take at least the given number of bytes,
+     * checking that the items can fit in what is left of the buffer
+     */
+    private static int readCount(ByteBuffer buffer, int minItemBytes) {
+        long count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining() / minItemBytes) {
+            throw new IllegalArgumentException("Bad length " + count + " with " + buffer.remaining() + " bytes left");
+        }
+        return (int) count;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint is too long");
+    }
+
+    //Maps small negative and positive numbers to small unsigned ones
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentValues;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.Calendar;
+
+/**
+ * Sanity checks for car values, shared by insert, update, bulkInsert and import so that
+ * harmful data or format never reaches the database.
+ *
+ * The checks are a table with one rule per car column. A new car must hold every column,
+ * an update only has the columns it changes checked. Each value is read straight from the
+ * ContentValues and checked in place, so a good car is validated in one pass without
+ * allocating anything, and a bad one is rejected before any database work is done.
+ */
+final class CarValidator {
+
+    //The first car was built in 1886, and next year's models are on sale before New Year
+    static final int MIN_YEAR = 1886;
+    static final int MAX_YEAR = Calendar.getInstance().get(Calendar.YEAR) + 1;
+    static final int MAX_PLATE_LENGTH = 16;
+
+    //Kinds of value a column holds
+    private static final int TEXT = 0;
+    private static final int YEAR = 1;
+    private static final int COLOR = 2;
+    private static final int PLATE = 3;
+
+    //One rule per column: the column, the kind of value it holds, and the message when it is missing
+    private static final String[] COLUMNS = {CarEntry.COLUMN_CAR_MAKE, CarEntry.COLUMN_CAR_MODEL,
+            CarEntry.COLUMN_CAR_YEAR, CarEntry.COLUMN_CAR_COLOR, CarEntry.COLUMN_CAR_PLATE};
+    private static final int[] KINDS = {TEXT, TEXT, YEAR, COLOR, PLATE};
+    private static final String[] MISSING_MESSAGES = {"Must enter car make", "Must enter car model",
+            "Must enter car year", "Must enter car color", "Must enter car license plate"};
+
+    //Marks a number that could not be read, no year or color can have it
+    private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+    private CarValidator() {}
+
+    /**
+     * Checks a car about to be inserted, every column must be present and valid
+     * @throws IllegalArgumentException naming the first bad value
+     */
+    static void validateNewCar(ContentValues values) {
+        validate(values, true);
+    }
+
+    /**
+     * Checks the values of an update, only the columns present are checked
+     * @throws IllegalArgumentException naming the first bad value
+     */
+    static void validateChanges(ContentValues values) {
+        validate(values, false);
+    }
+
+    private static void validate(ContentValues values, boolean requireAll) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (!values.containsKey(COLUMNS[i])) {
+                if (requireAll) {
+                    throw new IllegalArgumentException(MISSING_MESSAGES[i]);
+                }
+                continue;
+            }
+            //A key that is present with a null value would write a null into a NOT NULL column
+            Object value = values.get(COLUMNS[i]);
+            if (value == null) {
+                throw new IllegalArgumentException(MISSING_MESSAGES[i]);
+            }
+            switch (KINDS[i]) {
+                case TEXT:
+                    if (!(value instanceof String) || isBlank((String) value)) {
+                        throw new IllegalArgumentException(MISSING_MESSAGES[i]);
+                    }
+                    break;
+                case YEAR:
+                    long year = toLong(value);
+                    if (year < MIN_YEAR || year > MAX_YEAR) {
+                        throw new IllegalArgumentException("Car year must be between "
+                                + MIN_YEAR + " and " + MAX_YEAR + ", not " + value);
+                    }
+                    break;
+                case COLOR:
+                    long color = toLong(value);
+                    if (color < Integer.MIN_VALUE || color > Integer.MAX_VALUE
+                            || !CarEntry.isValidColor((int) color)) {
+                        throw new IllegalArgumentException("Unknown car color " + value);
+                    }
+                    break;
+                case PLATE:
+                    if (!(value instanceof String) || !isValidPlate((String) value)) {
+                        throw new IllegalArgumentException("Invalid license plate " + value);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Reads a whole number stored as a number or as decimal digits, without boxing or
+     * parsing into a new object. Returns NOT_A_NUMBER for anything else
+     */
+    private static long toLong(Object value) {
+        if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (!(value instanceof String)) {
+            return NOT_A_NUMBER;
+        }
+        String text = (String) value;
+        int start = text.startsWith("-") ? 1 : 0;
+        //More digits than an int holds cannot be a year or a color
+        if (text.length() == start || text.length() - start > 10) {
+            return NOT_A_NUMBER;
+        }
+        long number = 0;
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_A_NUMBER;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return start == 1 ? -number : number;
+    }
+
+    private static boolean isBlank(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A plate is letters and digits, optionally split by single spaces or hyphens
+     */
+    private static boolean isValidPlate(String plate) {
+        int length = plate.length();
+        if (length == 0 || length > MAX_PLATE_LENGTH) {
+            return false;
+        }
+        boolean afterSeparator = true;
+        for (int i = 0; i < length; i++) {
+            char c = plate.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                afterSeparator = false;
+            } else if ((c == ' ' || c == '-') && !afterSeparator) {
+                afterSeparator = true;
+            } else {
+                return false;
+            }
+        }
+        //Must not end with a separator either
+        return !afterSeparator;
+    }
+}
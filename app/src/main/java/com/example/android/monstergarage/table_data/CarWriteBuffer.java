@@ -0,0 +1,407 @@
+package com.example.android.monstergarage.table_data;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-behind buffer in front of GarageProvider for edits to single cars, so a user tweaking
+ * the same car again and again costs one write instead of one per save, and can take the last
+ * few changes back.
+ *
+ * Updates to a "cars/#" URI are held in memory and merged per car. They are written in a single
+ * applyBatch() transaction on the CarWriteExecutor thread FLUSH_DELAY_MS after the last change,
+ * as soon as MAX_PENDING_CARS cars are waiting, when the app goes to the background, or when
+ * flush() is called. Until then
+ * getPendingValues() has the values the car is going to have, so the list and the editor show
+ * the edit right away.
+ *
+ * Deletes are soft deletes written straight away, so the car leaves the list at once, and any
+ * update still waiting for that car is dropped.
+ *
+ * The last MAX_UNDO edits and deletes can be undone until the next flush: an undone update goes
+ * back to what was waiting before it without ever reaching the database, an undone delete
+ * restores the car from its tombstone through GarageContract.METHOD_RESTORE_DELETED.
+ * Every change restarts the flush delay, but the flush comes UNDO_LIFETIME_MS after the first
+ * change since the last one at the latest, so a delete is never undoable after CarMaintenance
+ * purged its tombstone.
+ *
+ * Everything here runs on the main thread, like the CarWriteExecutor callbacks.
+ */
+public final class CarWriteBuffer {
+
+    //Quiet time after the last change before the buffered updates are written
+    public static final long FLUSH_DELAY_MS = 4 * 1000;
+    //Cars waiting for a write that start a flush without waiting for the delay
+    static final int MAX_PENDING_CARS = 20;
+    //Most recent changes that can be undone
+    static final int MAX_UNDO = 10;
+    //Longest time a change can be undone, well inside the tombstone lifetime so the restore
+    //of an undone delete is written before the car can be purged
+    static final long UNDO_LIFETIME_MS = CarMaintenance.TOMBSTONE_LIFETIME_MS * 2 / 3;
+
+    /**
+     * Receives changes of the buffer on the main thread
+     */
+    public interface Listener {
+        /**
+         * Called after a change was buffered, undone or flushed, the undo state or the
+         * pending values of some cars may be different
+         */
+        void onBufferChanged();
+
+        /**
+         * Called when buffered updates or undoing a delete could not be written
+         */
+        void onWriteFailed(Exception error);
+    }
+
+    /**
+     * One change that can be undone, with what the buffer held for the car before it
+     */
+    private static final class Change {
+        final long carId;
+        final boolean delete;
+        @Nullable final ContentValues previousValues;
+
+        Change(long carId, boolean delete, @Nullable ContentValues previousValues) {
+            this.carId = carId;
+            this.delete = delete;
+            this.previousValues = previousValues;
+        }
+    }
+
+    private static CarWriteBuffer sInstance;
+
+    private final CarWriteExecutor mWriteExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    //Updates waiting to be written, merged per car id. The values of a car are never changed
+    //in place, a new change replaces them, so undo can keep the values it goes back to
+    private final LinkedHashMap<Long, ContentValues> mPendingValues = new LinkedHashMap<>();
+    //Updates handed to the executor whose write has not finished yet
+    private final HashMap<Long, ContentValues> mFlushingValues = new HashMap<>();
+    //Changes that can be undone, the newest first
+    private final ArrayDeque<Change> mUndoStack = new ArrayDeque<>();
+    //SystemClock.elapsedRealtime() by which the changes since the last flush are flushed,
+    //or 0 when nothing is waiting. Unlike the handler's clock it runs on while the device sleeps
+    private long mFlushDeadline;
+    @Nullable
+    private Listener mListener;
+
+    private CarWriteBuffer(Context context) {
+        this(CarWriteExecutor.getInstance(context));
+        if (context instanceof Application) {
+            ((Application) context).registerActivityLifecycleCallbacks(new BackgroundFlusher());
+        }
+    }
+
+    /**
+     * A buffer writing through the given executor and never flushed by the app going to the
+     * background, getInstance() is the one the app uses
+     */
+    CarWriteBuffer(CarWriteExecutor writeExecutor) {
+        mWriteExecutor = writeExecutor;
+    }
+
+    /**
+     * Flushes once the last started activity stops, the process may be killed at any time
+     * after that and the buffer goes with it
+     */
+    private final class BackgroundFlusher implements Application.ActivityLifecycleCallbacks {
+        private int mStartedActivities;
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            mStartedActivities++;
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            //Activities started before the buffer was created were never counted, at worst
+            //that flushes a little early
+            if (mStartedActivities > 0) {
+                mStartedActivities--;
+            }
+            //An activity being recreated after a rotation is started again right away
+            if (mStartedActivities == 0 && !activity.isChangingConfigurations()) {
+                flush();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+        @Override
+        public void onActivityResumed(Activity activity) {}
+
+        @Override
+        public void onActivityPaused(Activity activity) {}
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {}
+    }
+
+    /**
+     * Returns the app wide write buffer, creating it on first use
+     */
+    public static synchronized CarWriteBuffer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CarWriteBuffer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Set the listener told about changes to the buffer, or null to stop listening
+     */
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Buffer an update of the car at the given "cars/#" URI, merged with any update
+     * still waiting for that car
+     * @throws IllegalArgumentException if a value is invalid, so a bad edit is reported
+     * to the caller instead of failing the whole batch later
+     */
+    public void update(Uri carUri, ContentValues values) {
+        long id = ContentUris.parseId(carUri);
+        CarValidator.validateChanges(values);
+
+        ContentValues previousValues = mPendingValues.get(id);
+        //Start from what is being written, so the pending values are always the whole overlay
+        ContentValues base = previousValues != null ? previousValues : mFlushingValues.get(id);
+        ContentValues merged = base != null ? new ContentValues(base) : new ContentValues();
+        merged.putAll(values);
+        mPendingValues.put(id, merged);
+        pushUndo(new Change(id, false, previousValues));
+
+        if (mPendingValues.size() >= MAX_PENDING_CARS) {
+            flush();
+        } else {
+            scheduleFlush();
+            notifyChanged();
+        }
+    }
+
+    /**
+     * Soft delete the car at the given "cars/#" URI right away, dropping any update still
+     * waiting for it. The callback gets the outcome of the delete
+     */
+    public void delete(Uri carUri, @Nullable CarWriteExecutor.Callback callback) {
+        long id = ContentUris.parseId(carUri);
+        pushUndo(new Change(id, true, mPendingValues.remove(id)));
+        mWriteExecutor.delete(CarEntry.buildSoftDeleteUri(carUri), null, null, callback);
+        scheduleFlush();
+        notifyChanged();
+    }
+
+    /**
+     * The values the car with the given id is about to be written with, to be shown
+     * over the ones read from the provider, or null when nothing is waiting for it
+     */
+    @Nullable
+    public ContentValues getPendingValues(long id) {
+        if (mPendingValues.isEmpty() && mFlushingValues.isEmpty()) {
+            return null;
+        }
+        ContentValues values = mPendingValues.get(id);
+        return values != null ? values : mFlushingValues.get(id);
+    }
+
+    /**
+     * True when there are changes that undo() can take back
+     */
+    public boolean canUndo() {
+        return !mUndoStack.isEmpty() && !isUndoExpired();
+    }
+
+    /**
+     * Describes the change undo() takes back, or null when there is none
+     */
+    @Nullable
+    public String getUndoDescription() {
+        Change change = mUndoStack.peekFirst();
+        if (change == null || isUndoExpired()) {
+            return null;
+        }
+        return change.delete ? "Car deleted" : "Car updated";
+    }
+
+    /**
+     * Take back the newest change that was not flushed yet
+     */
+    public void undo() {
+        if (isUndoExpired()) {
+            //The flush is overdue, the device slept through it
+            flush();
+            return;
+        }
+        Change change = mUndoStack.pollFirst();
+        if (change == null) {
+            return;
+        }
+        if (change.previousValues != null) {
+            mPendingValues.put(change.carId, change.previousValues);
+        } else {
+            mPendingValues.remove(change.carId);
+        }
+
+        if (change.delete) {
+            //Queued behind the delete, and in front of the flush of any update put back above
+            mWriteExecutor.restoreDeleted(change.carId, new CarWriteExecutor.Callback() {
+                @Override
+                public void onWriteComplete(@Nullable Uri uri, int rowsRestored) {
+                    if (rowsRestored == 0) {
+                        reportFailure(new IllegalStateException("The car can no longer be restored"));
+                    }
+                }
+
+                @Override
+                public void onWriteFailed(Exception error) {
+                    reportFailure(error);
+                }
+            });
+        }
+        scheduleFlush();
+        notifyChanged();
+    }
+
+    /**
+     * Write every buffered update now, in one transaction. Changes up to here can no longer
+     * be undone
+     */
+    public void flush() {
+        mMainHandler.removeCallbacks(mFlushRunnable);
+        mUndoStack.clear();
+        mFlushDeadline = 0;
+        if (mPendingValues.isEmpty()) {
+            notifyChanged();
+            return;
+        }
+
+        final LinkedHashMap<Long, ContentValues> batch = new LinkedHashMap<>(mPendingValues);
+        mPendingValues.clear();
+        mFlushingValues.putAll(batch);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(batch.size());
+        for (Map.Entry<Long, ContentValues> car : batch.entrySet()) {
+            operations.add(ContentProviderOperation.newUpdate(carUri(car.getKey()))
+                    .withValues(car.getValue())
+                    .build());
+        }
+        mWriteExecutor.applyBatch(operations, new CarWriteExecutor.Callback() {
+            @Override
+            public void onWriteComplete(@Nullable Uri uri, int rowsUpdated) {
+                for (Map.Entry<Long, ContentValues> car : batch.entrySet()) {
+                    finishFlush(car.getKey(), car.getValue());
+                }
+            }
+
+            @Override
+            public void onWriteFailed(Exception error) {
+                //The whole batch rolled back, so one bad car, such as a plate taken in the meantime,
+                //does not cost the others their edits. Write them one by one instead
+                for (Map.Entry<Long, ContentValues> car : batch.entrySet()) {
+                    flushSingle(car.getKey(), car.getValue());
+                }
+            }
+        });
+        notifyChanged();
+    }
+
+    private void flushSingle(final long id, final ContentValues values) {
+        mWriteExecutor.update(carUri(id), values, null, null, new CarWriteExecutor.Callback() {
+            @Override
+            public void onWriteComplete(@Nullable Uri uri, int rowsUpdated) {
+                finishFlush(id, values);
+            }
+
+            @Override
+            public void onWriteFailed(Exception error) {
+                finishFlush(id, values);
+                reportFailure(error);
+            }
+        });
+    }
+
+    /**
+     * Stop showing the written values over the provider's, unless a later flush replaced them
+     */
+    private void finishFlush(long id, ContentValues values) {
+        if (mFlushingValues.get(id) == values) {
+            mFlushingValues.remove(id);
+        }
+    }
+
+    /**
+     * Restart the flush delay, which is also how long the last change can be undone, cut short
+     * to UNDO_LIFETIME_MS after the first change since the last flush
+     */
+    private void scheduleFlush() {
+        mMainHandler.removeCallbacks(mFlushRunnable);
+        if (mPendingValues.isEmpty() && mUndoStack.isEmpty()) {
+            mFlushDeadline = 0;
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mFlushDeadline == 0) {
+            mFlushDeadline = now + UNDO_LIFETIME_MS;
+        }
+        mMainHandler.postDelayed(mFlushRunnable, Math.max(0, Math.min(FLUSH_DELAY_MS, mFlushDeadline - now)));
+    }
+
+    private boolean isUndoExpired() {
+        return mFlushDeadline != 0 && SystemClock.elapsedRealtime() >= mFlushDeadline;
+    }
+
+    private void pushUndo(Change change) {
+        mUndoStack.addFirst(change);
+        if (mUndoStack.size() > MAX_UNDO) {
+            mUndoStack.removeLast();
+        }
+    }
+
+    private static Uri carUri(long id) {
+        return ContentUris.withAppendedId(CarEntry.CONTENT_URI, id);
+    }
+
+    private void notifyChanged() {
+        if (mListener != null) {
+            mListener.onBufferChanged();
+        }
+    }
+
+    private void reportFailure(Exception error) {
+        if (mListener != null) {
+            mListener.onWriteFailed(error);
+        }
+    }
+}
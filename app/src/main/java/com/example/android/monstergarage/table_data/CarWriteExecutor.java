@@ -0,0 +1,219 @@
+package com.example.android.monstergarage.table_data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class runs insert, update, delete, batch and snapshot calls against the (GarageProvider)content provider
+ * on a single background thread, so the UI never waits on a database write.
+ * Writes are executed one at a time in the order they were submitted, and the result of each
+ * write is handed back to a callback on the main thread.
+ *
+ * A single executor is shared by the whole app, which lets a write keep running after the
+ * activity that submitted it has finished.
+ */
+public final class CarWriteExecutor {
+
+    private static final String LOG_TAG = CarWriteExecutor.class.getSimpleName();
+
+    /**
+     * Receives the outcome of a write on the main thread
+     */
+    public interface Callback {
+        /**
+         * @param uri the new car URI for an insert, or the URI that was written to otherwise
+         * @param rowsAffected number of rows inserted, updated or deleted, or cars in a snapshot
+         */
+        void onWriteComplete(@Nullable Uri uri, int rowsAffected);
+
+        /**
+         * Called instead of onWriteComplete when the provider rejected the write
+         */
+        void onWriteFailed(Exception error);
+    }
+
+    private static CarWriteExecutor sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * An executor writing through the given resolver, getInstance() is the one the app uses
+     */
+    CarWriteExecutor(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CarWriteExecutor");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the app wide write executor, creating it on first use
+     */
+    public static synchronized CarWriteExecutor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CarWriteExecutor(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Insert a new car into the table at the given URI
+     */
+    public void insert(final Uri uri, final ContentValues values, @Nullable final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Uri newUri = mContentResolver.insert(uri, values);
+                    postComplete(callback, newUri, newUri == null ? 0 : 1);
+                } catch (Exception e) {
+                    postFailed(callback, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Update the cars at the given URI that match the where clause
+     */
+    public void update(final Uri uri, final ContentValues values, @Nullable final String where,
+                       @Nullable final String[] where_args, @Nullable final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int rowsUpdated = mContentResolver.update(uri, values, where, where_args);
+                    postComplete(callback, uri, rowsUpdated);
+                } catch (Exception e) {
+                    postFailed(callback, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the cars at the given URI that match the where clause
+     */
+    public void delete(final Uri uri, @Nullable final String where, @Nullable final String[] where_args,
+                       @Nullable final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int rowsDeleted = mContentResolver.delete(uri, where, where_args);
+                    postComplete(callback, uri, rowsDeleted);
+                } catch (Exception e) {
+                    postFailed(callback, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Apply the operations in one provider transaction, see GarageProvider.applyBatch().
+     * rowsAffected is the total of every operation's count, the URI is the cars table
+     */
+    public void applyBatch(final ArrayList<ContentProviderOperation> operations, @Nullable final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int rowsAffected = 0;
+                    for (ContentProviderResult result : mContentResolver.applyBatch(
+                            GarageContract.CONTENT_AUTHORITY, operations)) {
+                        rowsAffected += result.count != null ? result.count : 1;
+                    }
+                    postComplete(callback, GarageContract.CarEntry.CONTENT_URI, rowsAffected);
+                } catch (Exception e) {
+                    postFailed(callback, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Bring back a soft deleted car, see GarageContract.METHOD_RESTORE_DELETED.
+     * rowsAffected is 0 when the car was already purged
+     */
+    public void restoreDeleted(long id, @Nullable Callback callback) {
+        callProvider(GarageContract.METHOD_RESTORE_DELETED, String.valueOf(id),
+                GarageContract.RESTORED_CARS, callback);
+    }
+
+    /**
+     * Save every car to the named snapshot, see GarageContract.METHOD_SAVE_SNAPSHOT.
+     * Queued behind earlier writes, so the snapshot includes them
+     */
+    public void saveSnapshot(@Nullable String name, @Nullable Callback callback) {
+        callProvider(GarageContract.METHOD_SAVE_SNAPSHOT, name, GarageContract.SNAPSHOT_CARS, callback);
+    }
+
+    /**
+     * Replace every car with the ones in the named snapshot, see GarageContract.METHOD_RESTORE_SNAPSHOT
+     */
+    public void restoreSnapshot(@Nullable String name, @Nullable Callback callback) {
+        callProvider(GarageContract.METHOD_RESTORE_SNAPSHOT, name, GarageContract.SNAPSHOT_CARS, callback);
+    }
+
+    private void callProvider(final String method, @Nullable final String arg, final String countKey,
+                              @Nullable final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Bundle result = mContentResolver.call(GarageContract.BASE_CONTENT_URI, method, arg, null);
+                    postComplete(callback, GarageContract.CarEntry.CONTENT_URI,
+                            result == null ? 0 : result.getInt(countKey));
+                } catch (Exception e) {
+                    postFailed(callback, e);
+                }
+            }
+        });
+    }
+
+    private void postComplete(@Nullable final Callback callback, @Nullable final Uri uri, final int rowsAffected) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onWriteComplete(uri, rowsAffected);
+            }
+        });
+    }
+
+    private void postFailed(@Nullable final Callback callback, final Exception error) {
+        Log.e(LOG_TAG, "Background write failed", error);
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onWriteFailed(error);
+            }
+        });
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.monstergarage.table_data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.monstergarage.table_data.GarageContract.CarEntry;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Compiled statements for GarageProvider's two most common writes: inserting a car, and
+ * updating every column of one car by _id. SQLiteDatabase.insert() and update() build and
+ * compile new SQL from a ContentValues map on every call, these bind the values straight
+ * into a statement compiled once.
+ *
+ * A statement holds its bound values, so two threads must never use one at the same time.
+ * Rather than holding a lock while a statement runs, which could deadlock against a thread
+ * inside a transaction, each write takes a statement out of a small pool and puts it back
+ * afterwards. A thread that finds the pool empty compiles its own, which joins the pool when
+ * there is room for it.
+ */
+final class CarWriteStatements {
+
+    static final String INSERT_SQL = "INSERT INTO " + CarEntry.TABLE_NAME + " ("
+            + CarEntry.COLUMN_CAR_MAKE + ", "
+            + CarEntry.COLUMN_CAR_MODEL + ", "
+            + CarEntry.COLUMN_CAR_YEAR + ", "
+            + CarEntry.COLUMN_CAR_COLOR + ", "
+            + CarEntry.COLUMN_CAR_PLATE + ", "
+            + CarEntry.COLUMN_CAR_PLATE_KEY + ") VALUES (?, ?, ?, ?, ?, ?)";
+    static final String UPDATE_BY_ID_SQL = "UPDATE " + CarEntry.TABLE_NAME + " SET "
+            + CarEntry.COLUMN_CAR_MAKE + "=?, "
+            + CarEntry.COLUMN_CAR_MODEL + "=?, "
+            + CarEntry.COLUMN_CAR_YEAR + "=?, "
+            + CarEntry.COLUMN_CAR_COLOR + "=?, "
+            + CarEntry.COLUMN_CAR_PLATE + "=?, "
+            + CarEntry.COLUMN_CAR_PLATE_KEY + "=? WHERE " + CarEntry._ID + "=? AND " + CarDBHelper.WHERE_NOT_DELETED;
+
+    //Statements of each kind kept for reuse, about the number of threads that write at once
+    private static final int MAX_POOLED = 4;
+
+    private final CarDBHelper mDbHelper;
+    //The database the pooled statements were compiled against
+    private SQLiteDatabase mDatabase;
+    private final ArrayDeque<SQLiteStatement> mInserts = new ArrayDeque<>();
+    private final ArrayDeque<SQLiteStatement> mUpdates = new ArrayDeque<>();
+    //Every statement compiled against mDatabase, pooled or in use
+    private final Set<SQLiteStatement> mCompiled =
+            Collections.newSetFromMap(new IdentityHashMap<SQLiteStatement, Boolean>());
+
+    CarWriteStatements(CarDBHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Inserts one car, returning its new _id
+     * @throws android.database.sqlite.SQLiteConstraintException if a constraint stopped the
+     * insert, such as a taken plate key. Unlike SQLiteDatabase.insert() it never returns -1
+     */
+    long insert(String make, String model, int year, int color, String plate) {
+        SQLiteStatement insert = acquireInsert();
+        try {
+            bindCar(insert, make, model, year, color, plate);
+            return insert.executeInsert();
+        } finally {
+            releaseInsert(insert);
+        }
+    }
+
+    /**
+     * Overwrites every column of the car with the given _id unless it is soft deleted,
+     * returning the number of rows changed
+     * @throws android.database.sqlite.SQLiteConstraintException if a constraint stopped the update
+     */
+    int updateById(long id, String make, String model, int year, int color, String plate) {
+        SQLiteStatement update = acquire(mUpdates, UPDATE_BY_ID_SQL);
+        try {
+            bindCar(update, make, model, year, color, plate);
+            update.bindLong(7, id);
+            return update.executeUpdateDelete();
+        } finally {
+            release(mUpdates, update);
+        }
+    }
+
+    /**
+     * Takes an insert statement for a caller that binds it with bindCar() many times,
+     * such as bulkInsert(). Must be handed back with releaseInsert()
+     */
+    SQLiteStatement acquireInsert() {
+        return acquire(mInserts, INSERT_SQL);
+    }
+
+    void releaseInsert(SQLiteStatement insert) {
+        release(mInserts, insert);
+    }
+
+    /**
+     * Binds a car to an INSERT_SQL or UPDATE_BY_ID_SQL statement, the columns are in the same order.
+     * The plate key is worked out from the plate, so callers never bind one of their own
+     */
+    static void bindCar(SQLiteStatement statement, String make, String model, int year, int color, String plate) {
+        //SQLite statement bind indexes start at 1
+        statement.bindString(1, make);
+        statement.bindString(2, model);
+        statement.bindLong(3, year);
+        statement.bindLong(4, color);
+        statement.bindString(5, plate);
+        statement.bindString(6, CarEntry.plateKey(plate));
+    }
+
+    /**
+     * Closes every pooled statement, statements still in use are closed when they are released
+     */
+    synchronized void close() {
+        closeAll(mInserts);
+        closeAll(mUpdates);
+        mCompiled.clear();
+        mDatabase = null;
+    }
+
+    private SQLiteStatement acquire(ArrayDeque<SQLiteStatement> pool, String sql) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        synchronized (this) {
+            if (database != mDatabase) {
+                //The helper was closed and reopened, the old statements belong to the old database
+                closeAll(mInserts);
+                closeAll(mUpdates);
+                mCompiled.clear();
+                mDatabase = database;
+            }
+            SQLiteStatement statement = pool.pollFirst();
+            if (statement != null) {
+                return statement;
+            }
+        }
+        SQLiteStatement statement = database.compileStatement(sql);
+        synchronized (this) {
+            if (database == mDatabase) {
+                mCompiled.add(statement);
+            }
+        }
+        return statement;
+    }
+
+    private void release(ArrayDeque<SQLiteStatement> pool, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (this) {
+            if (pool.size() < MAX_POOLED && mCompiled.contains(statement)) {
+                pool.addFirst(statement);
+                return;
+            }
+            mCompiled.remove(statement);
+        }
+        statement.close();
+    }
+
+    private static void closeAll(ArrayDeque<SQLiteStatement> pool) {
+        SQLiteStatement statement;
+        while ((statement = pool.pollFirst()) != null) {
+            statement.close();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.example.android.monstergarage.table_data;
 
 import android.content.ContentResolver;
-import android.graphics.Color;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -21,6 +20,52 @@ public final class GarageContract {
     public static final String CONTENT_AUTHORITY = "com.example.android.monstergarage";
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_CARS_TABLE = "cars";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_METRICS = "_metrics";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_STATS = "stats";
+
+    //ContentResolver.call() method on BASE_CONTENT_URI that returns the provider's query cache
+    //counters in a Bundle under the QUERY_CACHE_* keys below
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+    public static final String QUERY_CACHE_HITS = "hits";
+    public static final String QUERY_CACHE_MISSES = "misses";
+    //Results dropped to make room for newer ones. Results dropped by a write are invalidations
+    public static final String QUERY_CACHE_EVICTIONS = "evictions";
+    public static final String QUERY_CACHE_ENTRIES = "entries";
+    public static final String QUERY_CACHE_CELLS = "cells";
+    public static final String QUERY_CACHE_INVALIDATIONS = "invalidations";
+    //Results not stored because a write committed while they were being queried
+    public static final String QUERY_CACHE_STALE_PUTS = "stale_puts";
+    //Results not stored because they had more rows than the cache takes
+    public static final String QUERY_CACHE_TOO_LARGE = "too_large";
+
+    //ContentResolver.call() methods on BASE_CONTENT_URI that save every car to a binary snapshot,
+    //or replace every car with the ones in a snapshot. The arg is the snapshot name, null for
+    //DEFAULT_SNAPSHOT, and the returned Bundle holds the number of cars under SNAPSHOT_CARS.
+    //Both throw IllegalStateException if the snapshot could not be written or read
+    public static final String METHOD_SAVE_SNAPSHOT = "save_snapshot";
+    public static final String METHOD_RESTORE_SNAPSHOT = "restore_snapshot";
+    public static final String DEFAULT_SNAPSHOT = "garage";
+    public static final String SNAPSHOT_CARS = "cars";
+
+    //ContentResolver.call() method on BASE_CONTENT_URI that purges every soft deleted car right away
+    //instead of waiting for the background purge. The returned Bundle holds the number of cars
+    //purged under PURGED_CARS
+    public static final String METHOD_PURGE_DELETED = "purge_deleted";
+    public static final String PURGED_CARS = "purged";
+
+    //ContentResolver.call() method on BASE_CONTENT_URI that brings back a soft deleted car before it
+    //is purged, arg is the car's id. The returned Bundle holds 1 under RESTORED_CARS when the car was
+    //restored, or 0 when it is not soft deleted or already purged
+    public static final String METHOD_RESTORE_DELETED = "restore_deleted";
+    public static final String RESTORED_CARS = "restored";
+
+    //ContentResolver.call() method on BASE_CONTENT_URI that merges cars sharing a plate key right
+    //away instead of waiting for the background dedupe. The returned Bundle holds the number of
+    //duplicate cars removed under DEDUPED_CARS
+    public static final String METHOD_DEDUPE_PLATES = "dedupe_plates";
+    public static final String DEDUPED_CARS = "deduped";
 
 
     /**
@@ -32,6 +77,10 @@ public final class GarageContract {
 
         //The content Uri to access the car data table from the content provider
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_CARS_TABLE);
+        //The content Uri to search cars by make, model and plate, the search text goes in the q parameter
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+        //The content Uri to read every car as one CSV or JSON file, the format goes in the format parameter
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
         //The MIME type for a list of cars
         public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
                 CONTENT_AUTHORITY + "/" + PATH_CARS_TABLE;
@@ -44,23 +93,282 @@ public final class GarageContract {
         public static final String COLUMN_CAR_MAKE = "make";
         public static final String COLUMN_CAR_MODEL = "model";
         public static final String COLUMN_CAR_YEAR = "year";
+        //Id of the car's color in the colors table, one of the COLOR_* values, see CarColors
         public static final String COLUMN_CAR_COLOR = "color";
         public static final String COLUMN_CAR_PLATE = "plate";
+        //0 for a car in the garage, or the time in milliseconds it was soft deleted at.
+        //Soft deleted cars are left out of every query and update until they are purged
+        public static final String COLUMN_CAR_DELETED = "deleted";
+        //plateKey() of the plate, which is unique. Written by the provider from the plate,
+        //any value a caller puts in is ignored
+        public static final String COLUMN_CAR_PLATE_KEY = "plate_key";
+
+        //Query parameters for deletes. With soft_delete=true the cars are only marked deleted,
+        //which hides them at once, and a background purge removes them for good a little later.
+        //Deletes on CONTENT_URI remove at most chunk_size cars per transaction
+        public static final String QUERY_PARAMETER_SOFT_DELETE = "soft_delete";
+        public static final String QUERY_PARAMETER_CHUNK_SIZE = "chunk_size";
+        public static final int DEFAULT_DELETE_CHUNK_SIZE = 500;
+
+        //Query parameter for inserts and bulk inserts on CONTENT_URI, picking what happens to a new
+        //car whose plate key already belongs to a car in the garage. CONFLICT_REJECT, the default,
+        //refuses the new car. CONFLICT_REPLACE deletes the old car and inserts the new one.
+        //CONFLICT_MERGE writes the new car's values over the old car, which keeps its _id
+        public static final String QUERY_PARAMETER_CONFLICT = "conflict";
+        public static final String CONFLICT_REJECT = "reject";
+        public static final String CONFLICT_REPLACE = "replace";
+        public static final String CONFLICT_MERGE = "merge";
+
+        //Query parameters for keyset pagination of CONTENT_URI. A paged query returns the cars
+        //with after_id < _id <= until_id in _id order, at most limit rows. Each parameter is optional.
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+        public static final String QUERY_PARAMETER_UNTIL_ID = "until_id";
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+        //Query parameter picking the order of a paged query, one of the SORT_BY_* values.
+        //For any order but SORT_BY_ID the page bounds are the sort key of a car followed by
+        //its _id, with the key columns given as repeated after_key and until_key parameters
+        public static final String QUERY_PARAMETER_SORT = "sort";
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+        public static final String QUERY_PARAMETER_UNTIL_KEY = "until_key";
+        public static final String SORT_BY_ID = "id";
+        public static final String SORT_BY_PLATE = "plate";
+        public static final String SORT_BY_YEAR = "year";
+        public static final String SORT_BY_MAKE_MODEL = "make_model";
+        //Query parameter holding the search text for SEARCH_URI
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+        //Query parameter holding the file format for EXPORT_URI, FORMAT_CSV when left out
+        public static final String QUERY_PARAMETER_FORMAT = "format";
+        public static final String FORMAT_CSV = "csv";
+        public static final String FORMAT_JSON = "json";
+        //MIME types of the two export formats
+        public static final String EXPORT_CSV_TYPE = "text/csv";
+        public static final String EXPORT_JSON_TYPE = "application/json";
+
+        //Possible color ids. CarColors turns them into names and ARGB values
+        public static final int COLOR_OTHER = 0;
+        public static final int COLOR_WHITE = 1;
+        public static final int COLOR_BLACK = 2;
+        public static final int COLOR_GRAY = 3;
+        public static final int COLOR_SILVER = 4;
+        public static final int COLOR_BROWN = 5;
+        public static final int COLOR_RED = 6;
+        public static final int COLOR_BLUE = 7;
+        public static final int COLOR_GREEN = 8;
+        public static final int COLOR_YELLOW = 9;
+        public static final int COLOR_ORANGE = 10;
+        public static final int COLOR_PURPLE = 11;
+
+        /**
+         * Returns whether or not the given color is one of the possible color ids above
+         */
+        public static boolean isValidColor(int color) {
+            return CarColors.isValid(color);
+        }
+
+        /**
+         * The form of a plate that uniqueness is checked on: the spaces and hyphens between its
+         * parts left out and every letter upper case, so "ab 123" and "AB-123" are the same plate.
+         * Returns the plate itself when it already is in that form
+         */
+        public static String plateKey(String plate) {
+            int length = plate.length();
+            int keyLength = 0;
+            while (keyLength < length) {
+                char c = plate.charAt(keyLength);
+                if (c == ' ' || c == '-' || Character.toUpperCase(c) != c) {
+                    break;
+                }
+                keyLength++;
+            }
+            if (keyLength == length) {
+                return plate;
+            }
+            StringBuilder key = new StringBuilder(length).append(plate, 0, keyLength);
+            for (int i = keyLength; i < length; i++) {
+                char c = plate.charAt(i);
+                if (c != ' ' && c != '-') {
+                    key.append(Character.toUpperCase(c));
+                }
+            }
+            return key.toString();
+        }
+
+        /**
+         * Builds the URI to insert cars into CONTENT_URI with one of the CONFLICT_* policies
+         */
+        public static Uri buildConflictUri(String policy) {
+            return CONTENT_URI.buildUpon().appendQueryParameter(QUERY_PARAMETER_CONFLICT, policy).build();
+        }
+
+        /**
+         * Builds the URI to soft delete the cars of CONTENT_URI or of a single car's URI
+         */
+        public static Uri buildSoftDeleteUri(Uri uri) {
+            return uri.buildUpon().appendQueryParameter(QUERY_PARAMETER_SOFT_DELETE, "true").build();
+        }
+
+        /**
+         * Builds the content URI for one page of cars that come after the given id
+         * @param afterId only cars with a greater id are returned, 0 starts at the first car
+         * @param untilId only cars with this id or lower are returned, or -1 for no upper bound
+         * @param limit maximum number of cars in the page, or -1 for no limit
+         */
+        public static Uri buildPageUri(long afterId, long untilId, int limit) {
+            return buildPageUri(SORT_BY_ID, null, afterId, null, untilId, limit);
+        }
+
+        /**
+         * Builds the content URI for one page of cars in the given order
+         * @param sortBy one of the SORT_BY_* values
+         * @param afterKey sort key values of the car the page starts after, ignored when afterId is 0
+         * @param afterId only cars after this one in sort order are returned, 0 starts at the first car
+         * @param untilKey sort key values of the last car in the page, ignored when untilId is -1
+         * @param untilId only cars up to and including this one are returned, or -1 for no upper bound
+         * @param limit maximum number of cars in the page, or -1 for no limit
+         */
+        public static Uri buildPageUri(String sortBy, String[] afterKey, long afterId,
+                                       String[] untilKey, long untilId, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon();
+            if (!SORT_BY_ID.equals(sortBy)) {
+                builder.appendQueryParameter(QUERY_PARAMETER_SORT, sortBy);
+                if (afterId > 0) {
+                    for (String value : afterKey) {
+                        builder.appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, value);
+                    }
+                }
+            }
+            //The first page of an ordered list starts before every key, an after_id of 0 is only
+            //a lower bound in _id order
+            if (afterId > 0 || SORT_BY_ID.equals(sortBy)) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+            }
+            if (untilId >= 0) {
+                if (!SORT_BY_ID.equals(sortBy)) {
+                    for (String value : untilKey) {
+                        builder.appendQueryParameter(QUERY_PARAMETER_UNTIL_KEY, value);
+                    }
+                }
+                builder.appendQueryParameter(QUERY_PARAMETER_UNTIL_ID, String.valueOf(untilId));
+            }
+            if (limit >= 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the columns a paged query is ordered by before _id, for one of the SORT_BY_* values.
+         * Each order is served by an index, make and model ties are broken by year to match
+         * the make, model and year index
+         */
+        public static String[] getSortColumns(String sortBy) {
+            if (SORT_BY_ID.equals(sortBy)) {
+                return new String[0];
+            } else if (SORT_BY_PLATE.equals(sortBy)) {
+                return new String[] {COLUMN_CAR_PLATE};
+            } else if (SORT_BY_YEAR.equals(sortBy)) {
+                return new String[] {COLUMN_CAR_YEAR};
+            } else if (SORT_BY_MAKE_MODEL.equals(sortBy)) {
+                return new String[] {COLUMN_CAR_MAKE, COLUMN_CAR_MODEL, COLUMN_CAR_YEAR};
+            }
+            throw new IllegalArgumentException("Unknown sort order " + sortBy);
+        }
+
+        /**
+         * Builds the content URI that finds cars whose make, model or plate contain
+         * words starting with the words of the given search text
+         * @param limit maximum number of cars returned, or -1 for no limit
+         */
+        public static Uri buildSearchUri(String searchText, int limit) {
+            Uri.Builder builder = SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SEARCH, searchText);
+            if (limit >= 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Builds the content URI that reads every car as one file
+         * @param format FORMAT_CSV or FORMAT_JSON
+         */
+        public static Uri buildExportUri(String format) {
+            return EXPORT_URI.buildUpon().appendQueryParameter(QUERY_PARAMETER_FORMAT, format).build();
+        }
+
+    }
+
+    /**
+     * Timing and row counts of GarageProvider calls, one row per operation and URI match code.
+     * Only debug builds answer queries on CONTENT_URI, release builds reject it as unknown.
+     */
+    public static abstract class MetricsEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(CarEntry.CONTENT_URI, PATH_METRICS);
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_METRICS;
+
+        //query, insert, update, delete or bulk_insert
+        public static final String COLUMN_OPERATION = "operation";
+        //The provider's URI match code, or -1 for URIs it did not recognise
+        public static final String COLUMN_MATCH_CODE = "match_code";
+        public static final String COLUMN_CALLS = "calls";
+        public static final String COLUMN_ERRORS = "errors";
+        //Rows returned, inserted, updated or deleted in total
+        public static final String COLUMN_ROWS = "rows";
+        //Latencies in microseconds. Percentiles are the upper bound of their histogram bucket
+        public static final String COLUMN_TOTAL_MICROS = "total_us";
+        public static final String COLUMN_MAX_MICROS = "max_us";
+        public static final String COLUMN_P50_MICROS = "p50_us";
+        public static final String COLUMN_P90_MICROS = "p90_us";
+        public static final String COLUMN_P99_MICROS = "p99_us";
+
+        static final String[] COLUMNS = {COLUMN_OPERATION, COLUMN_MATCH_CODE, COLUMN_CALLS,
+                COLUMN_ERRORS, COLUMN_ROWS, COLUMN_TOTAL_MICROS, COLUMN_MAX_MICROS,
+                COLUMN_P50_MICROS, COLUMN_P90_MICROS, COLUMN_P99_MICROS};
+    }
+
+
+    /**
+     * Car counts grouped by make, by band of years or by color, one row per group.
+     * The grouping runs in SQLite, so only the groups are returned however many cars there are.
+     * Results change with every car written and are notified on CarEntry.CONTENT_URI.
+     */
+    public static abstract class StatsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(CarEntry.CONTENT_URI, PATH_STATS);
+        public static final String GROUP_BY_MAKE = "by_make";
+        public static final String GROUP_BY_YEAR = "by_year";
+        public static final String GROUP_BY_COLOR = "by_color";
+        //Counts per make, biggest first
+        public static final Uri BY_MAKE_URI = Uri.withAppendedPath(CONTENT_URI, GROUP_BY_MAKE);
+        //Counts per band of years, oldest band first
+        public static final Uri BY_YEAR_URI = Uri.withAppendedPath(CONTENT_URI, GROUP_BY_YEAR);
+        //Counts per color id, biggest first
+        public static final Uri BY_COLOR_URI = Uri.withAppendedPath(CONTENT_URI, GROUP_BY_COLOR);
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_STATS;
+
+        //Query parameter for BY_YEAR_URI holding how many years each band covers, DEFAULT_YEAR_BAND when left out
+        public static final String QUERY_PARAMETER_BAND = "band";
+        public static final int DEFAULT_YEAR_BAND = 10;
 
-        //Possible color values
-        public static final int COLOR_OTHER = Color.WHITE;
-        public static final int COLOR_WHITE = Color.WHITE;
-        public static final int COLOR_BLACK = Color.BLACK;
-        public static final int COLOR_GRAY = Color.GRAY;
-        public static final int COLOR_SILVER = Color.GRAY;
-        public static final int COLOR_BROWN = Color.parseColor("#795548");
-        public static final int COLOR_RED = Color.RED;
-        public static final int COLOR_BLUE = Color.BLUE;
-        public static final int COLOR_GREEN = Color.GREEN;
-        public static final int COLOR_YELLOW = Color.YELLOW;
-        public static final int COLOR_ORANGE = Color.parseColor("#FF9800");
-        public static final int COLOR_PURPLE = Color.parseColor("#9C27B0");
+        //_ID is the lowest car _id in the group, so it is unique per row
+        //The make, the first year of the band, or the color id the row counts
+        public static final String COLUMN_GROUP = "group_value";
+        public static final String COLUMN_CAR_COUNT = "car_count";
+        public static final String COLUMN_OLDEST_YEAR = "oldest_year";
+        public static final String COLUMN_NEWEST_YEAR = "newest_year";
+        //Name of the color a BY_COLOR_URI row counts, from the colors table. Only by color
+        public static final String COLUMN_COLOR_NAME = "color_name";
 
+        /**
+         * Builds the content URI for car counts per band of the given number of years
+         */
+        public static Uri buildYearBandUri(int yearsPerBand) {
+            return BY_YEAR_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_BAND, String.valueOf(yearsPerBand)).build();
+        }
     }
 
 
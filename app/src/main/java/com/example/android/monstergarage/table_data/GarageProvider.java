@@ -1,16 +1,40 @@
 package com.example.android.monstergarage.table_data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ClipDescription;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.example.android.monstergarage.BuildConfig;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
 /**
  * Created by Jujuan on 11/22/2017.
  */
@@ -19,13 +43,54 @@ public class GarageProvider extends ContentProvider {
 
     private static final String LOG_TAG = GarageProvider.class.getSimpleName();
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
-    private static final int CARS_TABLE_CODE = 100;
-    private static final int CARS_ID_CODE = 101;
+    //URI match codes, which also tell the rows of GarageContract.MetricsEntry apart
+    static final int CARS_TABLE_CODE = 100;
+    static final int CARS_ID_CODE = 101;
+    static final int CARS_SEARCH_CODE = 102;
+    static final int CARS_METRICS_CODE = 103;
+    static final int CARS_EXPORT_CODE = 104;
+    static final int CARS_STATS_CODE = 105;
     private CarDBHelper carDBHelper;
+    //Streams the cars table into export pipes
+    private CarExporter carExporter;
+    //Compiled insert and update statements reused across calls
+    private CarWriteStatements carWriteStatements;
+    //Purges soft deleted cars and vacuums garage.db in the background
+    private CarMaintenance carMaintenance;
+    //Recent small query results, so repeated reads of the same rows skip SQLite
+    private final QueryCache mQueryCache = new QueryCache();
+    //Latency, row and error counts of every provider call
+    private final ProviderMetrics mMetrics = new ProviderMetrics();
+
+    //Columns written by CarWriteStatements' insert and update statements, in bind order
+    private static final String[] INSERT_CAR_COLUMNS = {
+            GarageContract.CarEntry.COLUMN_CAR_MAKE,
+            GarageContract.CarEntry.COLUMN_CAR_MODEL,
+            GarageContract.CarEntry.COLUMN_CAR_YEAR,
+            GarageContract.CarEntry.COLUMN_CAR_COLOR,
+            GarageContract.CarEntry.COLUMN_CAR_PLATE };
+
+    //Writes touching more rows than this send one table level notification instead of one per row
+    private static final int MAX_ROW_NOTIFICATIONS = 20;
+
+    //CarSnapshot files are stored as files/snapshots/<name>.snapshot
+    private static final String SNAPSHOT_DIRECTORY = "snapshots";
+    private static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+    //Returned by resolvePlateConflict() when the plate key is free again and the insert can be retried
+    private static final long RETRY_INSERT = 0;
+
+    //Set while applyBatch() is running on a thread, so the individual operations
+    //record their changes instead of each broadcasting a notification
+    private final ThreadLocal<boolean[]> mBatchChanged = new ThreadLocal<>();
 
     static {
         sUriMatcher.addURI(GarageContract.CONTENT_AUTHORITY, "cars", CARS_TABLE_CODE);
         sUriMatcher.addURI(GarageContract.CONTENT_AUTHORITY, "cars/#", CARS_ID_CODE);
+        sUriMatcher.addURI(GarageContract.CONTENT_AUTHORITY, "cars/search", CARS_SEARCH_CODE);
+        sUriMatcher.addURI(GarageContract.CONTENT_AUTHORITY, "cars/_metrics", CARS_METRICS_CODE);
+        sUriMatcher.addURI(GarageContract.CONTENT_AUTHORITY, "cars/export", CARS_EXPORT_CODE);
+        sUriMatcher.addURI(GarageContract.CONTENT_AUTHORITY, "cars/stats/*", CARS_STATS_CODE);
     }
 
 
@@ -33,29 +98,307 @@ public class GarageProvider extends ContentProvider {
     public boolean onCreate() {
 
         carDBHelper = new CarDBHelper(getContext());
+        carExporter = new CarExporter(carDBHelper);
+        carWriteStatements = new CarWriteStatements(carDBHelper);
+        carMaintenance = new CarMaintenance(carDBHelper, new CarMaintenance.Listener() {
+            @Override
+            public void onCarsChanged() {
+                notifyChange(GarageContract.CarEntry.CONTENT_URI);
+            }
+        });
+        //Finish purging cars soft deleted by an earlier run, and merging cars with duplicate
+        //plates left by an older database, once the app has settled
+        carMaintenance.schedule(CarMaintenance.STARTUP_DELAY_MS);
 
         return true;
     }
 
+    /**
+     * Only called by tests, which expect the provider to let go of its compiled statements
+     * and stop its maintenance thread
+     */
+    @Override
+    public void shutdown() {
+        carMaintenance.shutdown();
+        carWriteStatements.close();
+        super.shutdown();
+    }
+
+    /*
+     * The public query, insert, bulkInsert, update and delete entry points below only time the
+     * call and record it in mMetrics, the actual work is done by the private methods they call.
+     */
+
     @Nullable
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] columns, @Nullable String where, @Nullable String[] where_args, @Nullable String sortOrder) {
 
+        // Figure out if the URI matcher can match the URI to a specific path code
+        int match = sUriMatcher.match(uri);
+        if (match == CARS_METRICS_CODE) {
+            return queryMetrics(uri);
+        }
+        if (match == CARS_EXPORT_CODE) {
+            return queryExportFile(uri, columns);
+        }
+
+        long start = System.nanoTime();
+        try {
+            Cursor cursor = queryCars(uri, match, columns, where, where_args, sortOrder);
+            //Counting the rows runs the query, so the recorded time includes reading the first rows
+            mMetrics.record(ProviderMetrics.QUERY, match, start, cursor.getCount());
+            return cursor;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.QUERY, match, start);
+            throw e;
+        }
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        try {
+            Uri newCarUri = insertCar(uri, match, values);
+            if (newCarUri == null) {
+                mMetrics.recordError(ProviderMetrics.INSERT, match, start);
+            } else {
+                mMetrics.record(ProviderMetrics.INSERT, match, start, 1);
+            }
+            return newCarUri;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.INSERT, match, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] valuesArray) {
+        int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        try {
+            int rowsInserted = bulkInsertCars(uri, match, valuesArray);
+            mMetrics.record(ProviderMetrics.BULK_INSERT, match, start, rowsInserted);
+            return rowsInserted;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.BULK_INSERT, match, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String where, @Nullable String[] where_args) {
+        int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        try {
+            int rowsUpdated = updateCars(uri, match, values, where, where_args);
+            mMetrics.record(ProviderMetrics.UPDATE, match, start, rowsUpdated);
+            return rowsUpdated;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.UPDATE, match, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String where, @Nullable String[] where_args) {
+        int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        try {
+            int rowsDeleted = deleteCars(uri, match, where, where_args);
+            mMetrics.record(ProviderMetrics.DELETE, match, start, rowsDeleted);
+            return rowsDeleted;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.DELETE, match, start);
+            throw e;
+        }
+    }
+
+    /**
+     * The provider metrics as a cursor, only available in debug builds
+     */
+    private Cursor queryMetrics(Uri uri) {
+        if (!BuildConfig.DEBUG) {
+            throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+        }
+        return mMetrics.toCursor();
+    }
+
+    /**
+     * Prints the provider metrics, e.g. with
+     * adb shell dumpsys activity provider com.example.android.monstergarage/.table_data.GarageProvider
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+    }
+
+    /**
+     * Name and size of an export file, which apps receiving a shared file commonly ask for.
+     * The size is unknown because the file is written as it is read.
+     */
+    private Cursor queryExportFile(Uri uri, @Nullable String[] columns) {
+        if (columns == null) {
+            columns = new String[] {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        }
+        String displayName = "cars." + exportFormat(uri);
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(columns[i])) {
+                row[i] = displayName;
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    /**
+     * The export format asked for in the URI, FORMAT_CSV by default
+     */
+    private static String exportFormat(Uri uri) {
+        String format = uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_FORMAT);
+        if (format == null || GarageContract.CarEntry.FORMAT_CSV.equals(format)) {
+            return GarageContract.CarEntry.FORMAT_CSV;
+        }
+        if (GarageContract.CarEntry.FORMAT_JSON.equals(format)) {
+            return GarageContract.CarEntry.FORMAT_JSON;
+        }
+        throw new IllegalArgumentException("Unknown export format " + format + " in " + uri);
+    }
+
+    private static String exportMimeType(String format) {
+        return GarageContract.CarEntry.FORMAT_JSON.equals(format)
+                ? GarageContract.CarEntry.EXPORT_JSON_TYPE : GarageContract.CarEntry.EXPORT_CSV_TYPE;
+    }
+
+    /**
+     * Opens the export URI for reading. The other end of the returned pipe is filled by
+     * CarExporter on a background thread while the caller reads.
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != CARS_EXPORT_CODE || !"r".equals(mode)) {
+            throw new FileNotFoundException("Cannot open " + uri + " in mode " + mode);
+        }
+        String format = exportFormat(uri);
+        return openPipeHelper(uri, exportMimeType(format), null, format, carExporter);
+    }
+
+    /**
+     * Export formats whose MIME type matches the filter, for apps that ask by type
+     */
+    @Nullable
+    @Override
+    public String[] getStreamTypes(@NonNull Uri uri, @NonNull String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) != CARS_EXPORT_CODE) {
+            return null;
+        }
+        ArrayList<String> types = new ArrayList<>(2);
+        for (String type : new String[] {GarageContract.CarEntry.EXPORT_CSV_TYPE,
+                GarageContract.CarEntry.EXPORT_JSON_TYPE}) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                types.add(type);
+            }
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    /**
+     * Opens the export in whichever format matches the requested MIME type filter,
+     * preferring the format named in the URI
+     */
+    @Nullable
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri, @NonNull String mimeTypeFilter,
+                                                  @Nullable Bundle opts) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != CARS_EXPORT_CODE) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        String format = exportFormat(uri);
+        if (!ClipDescription.compareMimeTypes(exportMimeType(format), mimeTypeFilter)) {
+            format = GarageContract.CarEntry.FORMAT_JSON.equals(format)
+                    ? GarageContract.CarEntry.FORMAT_CSV : GarageContract.CarEntry.FORMAT_JSON;
+            if (!ClipDescription.compareMimeTypes(exportMimeType(format), mimeTypeFilter)) {
+                throw new FileNotFoundException("Cars cannot be exported as " + mimeTypeFilter);
+            }
+        }
+        ParcelFileDescriptor pipe = openPipeHelper(uri, exportMimeType(format), opts, format, carExporter);
+        return new AssetFileDescriptor(pipe, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    private Cursor queryCars(Uri uri, int match, @Nullable String[] columns, @Nullable String where, @Nullable String[] where_args, @Nullable String sortOrder) {
+
+        //Search results and statistics can cover any car, so they watch the whole table and every row below it
+        Uri notificationUri = match == CARS_SEARCH_CODE || match == CARS_STATS_CODE
+                ? GarageContract.CarEntry.CONTENT_URI : uri;
+
+        //Answer from the cache when the exact same query was run since the last write.
+        //Queries made from inside applyBatch() may see uncommitted rows, so they bypass it
+        QueryCache.Key cacheKey = null;
+        long cacheGeneration = 0;
+        if (match != UriMatcher.NO_MATCH && mBatchChanged.get() == null) {
+            cacheKey = new QueryCache.Key(uri.toString(), columns, where, where_args, sortOrder,
+                    match == CARS_ID_CODE ? ContentUris.parseId(uri) : -1);
+            Cursor cachedCursor = mQueryCache.get(cacheKey);
+            if (cachedCursor != null) {
+                cachedCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+                return cachedCursor;
+            }
+            //Read before querying, so a write committing during the query keeps its result out
+            cacheGeneration = mQueryCache.generation();
+        }
+
         //Open/get readable database
         SQLiteDatabase garageDb = carDBHelper.getReadableDatabase();
 
         // This cursor will hold the result of the query
         Cursor returnedTable_cursor = null;
 
-        // Figure out if the URI matcher can match the URI to a specific path code
-        int match = sUriMatcher.match(uri);
         switch (match){
             //Query request that operates on the whole cars table
             case CARS_TABLE_CODE:
 
-                //Returns the entire Cars table as a cursor object
+                //Soft deleted cars are gone as far as anyone reading is concerned
+                where = appendWhere(where, CarDBHelper.WHERE_NOT_DELETED);
+
+                //Keyset pagination: narrow the query to the requested key range and page size
+                String limit = null;
+                if (isPagedQuery(uri)) {
+                    String sortBy = uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_SORT);
+                    String[] sortColumns = GarageContract.CarEntry.getSortColumns(
+                            sortBy != null ? sortBy : GarageContract.CarEntry.SORT_BY_ID);
+                    String afterId = uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_AFTER_ID);
+                    String untilId = uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_UNTIL_ID);
+                    if (afterId != null) {
+                        where = appendWhere(where, keysetClause(sortColumns, ">", ">"));
+                        where_args = appendKeysetArgs(where_args, uri, sortColumns,
+                                uri.getQueryParameters(GarageContract.CarEntry.QUERY_PARAMETER_AFTER_KEY),
+                                parseNumberParameter(uri, afterId));
+                    }
+                    if (untilId != null) {
+                        where = appendWhere(where, keysetClause(sortColumns, "<", "<="));
+                        where_args = appendKeysetArgs(where_args, uri, sortColumns,
+                                uri.getQueryParameters(GarageContract.CarEntry.QUERY_PARAMETER_UNTIL_KEY),
+                                parseNumberParameter(uri, untilId));
+                    }
+                    limit = uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_LIMIT);
+                    if (limit != null) {
+                        limit = parseNumberParameter(uri, limit);
+                    }
+                    //Pages are only stable when walked in a total order, so _id breaks any ties
+                    sortOrder = "";
+                    for (String column : sortColumns) {
+                        sortOrder += column + " ASC, ";
+                    }
+                    sortOrder += GarageContract.CarEntry._ID + " ASC";
+                }
+
+                //Returns the Cars table, or one page of it, as a cursor object
                 returnedTable_cursor = garageDb.query(GarageContract.CarEntry.TABLE_NAME,
-                        columns, where, where_args, null, null, sortOrder);
+                        columns, where, where_args, null, null, sortOrder, limit);
                 break;
             //Query request that operates on one individual row/car in table
             case CARS_ID_CODE:
@@ -74,7 +417,7 @@ public class GarageProvider extends ContentProvider {
                 // For every "?" in the where clause, we need to have a searchable element in the where_ars
                 // that will fill in the "?". Since we have 1 question mark in the
                 // where, we have 1 String in the where_ars String array.
-                where = GarageContract.CarEntry._ID + "=?";
+                where = GarageContract.CarEntry._ID + "=? AND " + CarDBHelper.WHERE_NOT_DELETED;
                 where_args = new String[] {String.valueOf(ContentUris.parseId(uri))};
 
                 //Query that returns a specific row from the Cars table, based on the
@@ -82,17 +425,175 @@ public class GarageProvider extends ContentProvider {
                 returnedTable_cursor = garageDb.query(GarageContract.CarEntry.TABLE_NAME,
                         columns, where, where_args, null, null, sortOrder);
                 break;
+            //Query request that searches make, model and plate through the full-text index
+            case CARS_SEARCH_CODE:
+                where = appendWhere(where, CarDBHelper.WHERE_NOT_DELETED);
+                String matchQuery = buildMatchQuery(
+                        uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_SEARCH));
+                if (matchQuery == null) {
+                    //Nothing to search for, so nothing matches
+                    where = appendWhere(where, "0");
+                } else {
+                    //The FTS index finds the matching ids, the cars rows are then read by primary key
+                    where = appendWhere(where, GarageContract.CarEntry._ID + " IN (SELECT docid FROM "
+                            + CarDBHelper.FTS_TABLE_CARS + " WHERE " + CarDBHelper.FTS_TABLE_CARS + " MATCH ?)");
+                    where_args = appendWhereArg(where_args, matchQuery);
+                }
+                String searchLimit = uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_LIMIT);
+                if (searchLimit != null) {
+                    searchLimit = parseNumberParameter(uri, searchLimit);
+                }
+
+                returnedTable_cursor = garageDb.query(GarageContract.CarEntry.TABLE_NAME,
+                        columns, where, where_args, null, null, sortOrder, searchLimit);
+                break;
+            //Query request that counts cars per make, year band or color
+            case CARS_STATS_CODE:
+                returnedTable_cursor = queryStats(garageDb, uri, columns, where, where_args, sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
 
+        if (cacheKey != null) {
+            mQueryCache.put(cacheKey, returnedTable_cursor, cacheGeneration);
+        }
+
         //Set notification URI on the cursor so we know what content URI the cursor
         //was created for. If the data at the URI changes, then we update the cursor
-        returnedTable_cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        returnedTable_cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
         return returnedTable_cursor;
     }
 
+    /**
+     * Turns free search text into an FTS MATCH expression where every word is a prefix search,
+     * e.g. "ford fo" becomes "ford* fo*". Anything that is not a letter or digit only separates
+     * words, so user input can never inject FTS query syntax.
+     * Returns null if the text holds no words at all.
+     */
+    private static String buildMatchQuery(@Nullable String searchText) {
+        if (searchText == null) {
+            return null;
+        }
+        StringBuilder matchQuery = new StringBuilder(searchText.length() + 8);
+        boolean inWord = false;
+        for (int i = 0; i < searchText.length(); i++) {
+            char c = searchText.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (!inWord && matchQuery.length() > 0) {
+                    matchQuery.append(' ');
+                }
+                matchQuery.append(c);
+                inWord = true;
+            } else if (inWord) {
+                matchQuery.append('*');
+                inWord = false;
+            }
+        }
+        if (inWord) {
+            matchQuery.append('*');
+        }
+        return matchQuery.length() == 0 ? null : matchQuery.toString();
+    }
+
+    /**
+     * Returns true if the URI carries any of the keyset pagination query parameters
+     */
+    private static boolean isPagedQuery(Uri uri) {
+        return uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_SORT) != null
+                || uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_AFTER_ID) != null
+                || uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_UNTIL_ID) != null
+                || uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_LIMIT) != null;
+    }
+
+    /**
+     * Builds the where clause for one end of a keyset page: rows whose (sort columns..., _id)
+     * come after, or up to, the bound in sort order. Older SQLite versions cannot compare
+     * row values, so the comparison is spelled out one column at a time, e.g. for year:
+     * year >= ? AND (year > ? OR (year = ? AND _id > ?)).
+     * The leading range on the first column is redundant, but lets SQLite seek the index to it.
+     * @param keyOperator "&gt;" or "&lt;" for the sort columns
+     * @param idOperator the operator for the final _id comparison
+     */
+    private static String keysetClause(String[] sortColumns, String keyOperator, String idOperator) {
+        if (sortColumns.length == 0) {
+            return GarageContract.CarEntry._ID + idOperator + "?";
+        }
+        StringBuilder clause = new StringBuilder();
+        clause.append(sortColumns[0]).append(keyOperator).append("=? AND (");
+        for (int i = 0; i <= sortColumns.length; i++) {
+            if (i > 0) {
+                clause.append(" OR ");
+            }
+            clause.append('(');
+            for (int j = 0; j < i; j++) {
+                clause.append(sortColumns[j]).append("=? AND ");
+            }
+            if (i < sortColumns.length) {
+                clause.append(sortColumns[i]).append(keyOperator).append('?');
+            } else {
+                clause.append(GarageContract.CarEntry._ID).append(idOperator).append('?');
+            }
+            clause.append(')');
+        }
+        return clause.append(')').toString();
+    }
+
+    /**
+     * Appends the arguments for a keysetClause() in the order its placeholders appear
+     */
+    private static String[] appendKeysetArgs(@Nullable String[] where_args, Uri uri, String[] sortColumns,
+                                             List<String> key, String id) {
+        if (key.size() != sortColumns.length) {
+            throw new IllegalArgumentException("Expected " + sortColumns.length + " key values in " + uri);
+        }
+        if (sortColumns.length > 0) {
+            where_args = appendWhereArg(where_args, key.get(0));
+        }
+        for (int i = 0; i <= sortColumns.length; i++) {
+            for (int j = 0; j < i; j++) {
+                where_args = appendWhereArg(where_args, key.get(j));
+            }
+            where_args = appendWhereArg(where_args, i < sortColumns.length ? key.get(i) : id);
+        }
+        return where_args;
+    }
+
+    /**
+     * Checks that a query parameter is a whole number before it is used in the query
+     */
+    private static String parseNumberParameter(Uri uri, String value) {
+        try {
+            return String.valueOf(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid query parameter " + value + " in " + uri);
+        }
+    }
+
+    /**
+     * Adds a clause to an optional where clause with AND
+     */
+    private static String appendWhere(@Nullable String where, String clause) {
+        if (where == null || where.isEmpty()) {
+            return clause;
+        }
+        return "(" + where + ") AND " + clause;
+    }
+
+    /**
+     * Adds an argument to the end of an optional where_args array
+     */
+    private static String[] appendWhereArg(@Nullable String[] where_args, String arg) {
+        if (where_args == null) {
+            return new String[] {arg};
+        }
+        String[] newArgs = new String[where_args.length + 1];
+        System.arraycopy(where_args, 0, newArgs, 0, where_args.length);
+        newArgs[where_args.length] = arg;
+        return newArgs;
+    }
+
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
@@ -100,19 +601,24 @@ public class GarageProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match){
             case CARS_TABLE_CODE:
+            case CARS_SEARCH_CODE:
                 return GarageContract.CarEntry.CONTENT_LIST_TYPE;
             case CARS_ID_CODE:
                 return GarageContract.CarEntry.CONTENT_ITEM_TYPE;
+            case CARS_METRICS_CODE:
+                return GarageContract.MetricsEntry.CONTENT_LIST_TYPE;
+            case CARS_EXPORT_CODE:
+                return exportMimeType(exportFormat(uri));
+            case CARS_STATS_CODE:
+                return GarageContract.StatsEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI "+ uri + " with match " + match);
         }
     }
 
     @Nullable
-    @Override
-    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+    private Uri insertCar(Uri uri, int match, @Nullable ContentValues values) {
 
-        final int match = sUriMatcher.match(uri);
         switch (match){
             //Only one case because a new car is always inserted to the whole table
             case CARS_TABLE_CODE:
@@ -126,97 +632,587 @@ public class GarageProvider extends ContentProvider {
 
     /**
      * Insert a car into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * for that specific row in the database, or of the car it was merged into.
+     * A plate key that is already taken is settled by the conflict policy of the URI.
      */
     private Uri insertCarHelper(Uri uri, ContentValues values){
 
-        //Sanity checks to ensure that the user inputs all data correctly
-        //Before inputting harmful data or format into database
-        String make = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MAKE);
-        String model = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MODEL);
-        String year = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_YEAR);
-        String plate = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE);
+        CarValidator.validateNewCar(values);
+        String policy = conflictPolicy(uri);
+
+        long id = insertValues(values);
+        boolean replaced = false;
+        if (id == -1) {
+            //Settled in one transaction, so a replaced car is back if its replacement still fails
+            SQLiteDatabase garageDb = carDBHelper.getWritableDatabase();
+            garageDb.beginTransactionNonExclusive();
+            try {
+                id = resolvePlateConflict(garageDb, values, policy);
+                if (id == RETRY_INSERT) {
+                    replaced = GarageContract.CarEntry.CONFLICT_REPLACE.equals(policy);
+                    id = insertValues(values);
+                }
+                if (id != -1) {
+                    garageDb.setTransactionSuccessful();
+                }
+            } finally {
+                garageDb.endTransaction();
+            }
+        }
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // Once we know the ID of the new row in the table,
+        // build the new URI with the ID appended to the end of it
+        Uri newCarUri = ContentUris.withAppendedId(GarageContract.CarEntry.CONTENT_URI, id);
+
+        //Notify all listeners that the data has changed for the new car's content URI
+        //such as "content://com.example.android.monstergarage/cars/42". Observers of the
+        //whole table still hear about it as long as they watch descendant URIs.
+        //Replacing removed other cars too, so then the whole table has changed
+        notifyChange(replaced ? GarageContract.CarEntry.CONTENT_URI : newCarUri);
 
-        if(make == null){
-            throw new IllegalArgumentException("Must enter car make");
+        return newCarUri;
+    }
+
+    /**
+     * The CONFLICT_* policy asked for by an insert URI, CONFLICT_REJECT when there is none
+     */
+    private static String conflictPolicy(Uri uri) {
+        String policy = uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_CONFLICT);
+        if (policy == null) {
+            return GarageContract.CarEntry.CONFLICT_REJECT;
         }
-        if(model == null){
-            throw new IllegalArgumentException("Must enter car model");
+        if (!policy.equals(GarageContract.CarEntry.CONFLICT_REJECT)
+                && !policy.equals(GarageContract.CarEntry.CONFLICT_REPLACE)
+                && !policy.equals(GarageContract.CarEntry.CONFLICT_MERGE)) {
+            throw new IllegalArgumentException("Unknown conflict policy " + policy);
         }
-        if(year == null){
-            throw new IllegalArgumentException("Must enter car year");
+        return policy;
+    }
+
+    /**
+     * Settles an insert the database refused, which for a valid car means its plate key is taken.
+     * A soft deleted car holding the key is purged. A live one is handled by the policy:
+     * CONFLICT_REJECT gives up, CONFLICT_REPLACE deletes it for good and CONFLICT_MERGE writes the
+     * new values over it. Callers run this in a transaction, so a replaced car comes back if the
+     * insert still fails.
+     * Returns RETRY_INSERT when the key is free again, the _id of the car the values were merged
+     * into, or -1 when the car is rejected
+     */
+    private static long resolvePlateConflict(SQLiteDatabase garageDb, ContentValues values, String policy) {
+        String plate = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE);
+        if (CarDBHelper.purgeDeletedPlate(garageDb, plate)) {
+            return RETRY_INSERT;
         }
-        if(plate == null){
-            throw new IllegalArgumentException("Must enter car license plate");
+        if (GarageContract.CarEntry.CONFLICT_REPLACE.equals(policy)) {
+            //Every live car with the key, there can be more until CarMaintenance merged them
+            int rowsReplaced = garageDb.delete(GarageContract.CarEntry.TABLE_NAME,
+                    GarageContract.CarEntry.COLUMN_CAR_PLATE_KEY + "=? AND " + CarDBHelper.WHERE_NOT_DELETED,
+                    new String[] {GarageContract.CarEntry.plateKey(plate)});
+            return rowsReplaced != 0 ? RETRY_INSERT : -1;
+        }
+        if (GarageContract.CarEntry.CONFLICT_MERGE.equals(policy)) {
+            long existingId = CarDBHelper.findLiveCarByPlate(garageDb, plate);
+            if (existingId == -1) {
+                return -1;
+            }
+            try {
+                int rowsMerged = garageDb.update(GarageContract.CarEntry.TABLE_NAME, withPlateKey(values),
+                        GarageContract.CarEntry._ID + "=?", new String[] {String.valueOf(existingId)});
+                return rowsMerged != 0 ? existingId : -1;
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Error merging " + values, e);
+                return -1;
+            }
         }
+        return -1;
+    }
 
+    /**
+     * A copy of the values with the plate key set from the plate, if there is one. A plate key
+     * a caller put in is dropped, it must always match the plate
+     */
+    private static ContentValues withPlateKey(ContentValues values) {
+        ContentValues copy = new ContentValues(values);
+        copy.remove(GarageContract.CarEntry.COLUMN_CAR_PLATE_KEY);
+        String plate = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE);
+        if (plate != null) {
+            copy.put(GarageContract.CarEntry.COLUMN_CAR_PLATE_KEY, GarageContract.CarEntry.plateKey(plate));
+        }
+        return copy;
+    }
+
+    /**
+     * Insert one car, returning its new _id or -1 if the database refused it
+     */
+    private long insertValues(ContentValues values) {
+        if (isFullCar(values)) {
+            //The usual shape, bound straight into a compiled statement
+            try {
+                return carWriteStatements.insert(
+                        values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MAKE),
+                        values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MODEL),
+                        values.getAsInteger(GarageContract.CarEntry.COLUMN_CAR_YEAR),
+                        values.getAsInteger(GarageContract.CarEntry.COLUMN_CAR_COLOR),
+                        values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE));
+            } catch (SQLException e) {
+                //Same as SQLiteDatabase.insert(), a rejected row is logged and returns -1
+                Log.e(LOG_TAG, "Error inserting " + values, e);
+                return -1;
+            }
+        }
         //Proceed to inserting data by opening/getting writeable database
         SQLiteDatabase garageDb = carDBHelper.getWritableDatabase();
 
         // Insert the new car with the given values
         //int is returned that determines insert successful or not
-        long id = garageDb.insert(GarageContract.CarEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        return garageDb.insert(GarageContract.CarEntry.TABLE_NAME, null, withPlateKey(values));
+    }
+
+    /**
+     * Insert many cars at once inside a single database transaction.
+     * Every row is validated before any database work is done, the rows are written with
+     * one compiled insert statement, and listeners are notified once for the whole batch.
+     * A plate key that is already taken is settled per car by the conflict policy of the URI.
+     * Return the number of cars that were inserted, or merged into a car already there.
+     */
+    private int bulkInsertCars(Uri uri, int match, ContentValues[] valuesArray) {
+
+        if (match != CARS_TABLE_CODE) {
+            throw new IllegalArgumentException("Bulk insertion is not supported for " + uri);
         }
 
-        //Notify al listeners that the data has changed for the specific car content URI
-        //such as "content://com.example.android.monstergarage/cars"
-        getContext().getContentResolver().notifyChange(uri, null);
+        //Reject the whole batch up front if any car is missing required data
+        for (ContentValues values : valuesArray) {
+            CarValidator.validateNewCar(values);
+        }
 
-        // Once we know the ID of the new row in the table,
-        // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
+        String policy = conflictPolicy(uri);
+        SQLiteDatabase garageDb = carDBHelper.getWritableDatabase();
+        int rowsInserted = 0;
+
+        //Use one compiled insert and re-bind it for every car, rather than
+        //building and compiling new SQL per row like SQLiteDatabase.insert() does
+        SQLiteStatement insertStatement = carWriteStatements.acquireInsert();
+        garageDb.beginTransactionNonExclusive();
+        try {
+            for (ContentValues values : valuesArray) {
+                if (isFullCar(values)) {
+                    CarWriteStatements.bindCar(insertStatement,
+                            values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MAKE),
+                            values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MODEL),
+                            values.getAsInteger(GarageContract.CarEntry.COLUMN_CAR_YEAR),
+                            values.getAsInteger(GarageContract.CarEntry.COLUMN_CAR_COLOR),
+                            values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE));
+                } else {
+                    for (int i = 0; i < INSERT_CAR_COLUMNS.length; i++) {
+                        //SQLite statement bind indexes start at 1
+                        DatabaseUtils.bindObjectToProgram(insertStatement, i + 1, values.get(INSERT_CAR_COLUMNS[i]));
+                    }
+                    insertStatement.bindString(INSERT_CAR_COLUMNS.length + 1, GarageContract.CarEntry.plateKey(
+                            values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE)));
+                }
+                try {
+                    insertStatement.executeInsert();
+                    rowsInserted++;
+                } catch (SQLException e) {
+                    //The plate key may be taken, by a soft deleted car or one the policy deals with
+                    if (retryInsert(garageDb, insertStatement, values, policy)) {
+                        rowsInserted++;
+                    } else {
+                        //Same behaviour as a single insert: log the failed row and keep going
+                        Log.e(LOG_TAG, "Failed to insert row for " + uri, e);
+                    }
+                }
+            }
+            garageDb.setTransactionSuccessful();
+        } finally {
+            garageDb.endTransaction();
+            carWriteStatements.releaseInsert(insertStatement);
+        }
+
+        if (rowsInserted != 0) {
+            notifyChange(uri);
+        }
+
+        return rowsInserted;
     }
 
+    /**
+     * Settles a bound insert that failed with resolvePlateConflict(), and runs it a second time
+     * if that freed the plate key. Returns true if the car was inserted or merged
+     */
+    private static boolean retryInsert(SQLiteDatabase garageDb, SQLiteStatement insertStatement,
+                                       ContentValues values, String policy) {
+        long id = resolvePlateConflict(garageDb, values, policy);
+        if (id != RETRY_INSERT) {
+            return id != -1;
+        }
+        try {
+            insertStatement.executeInsert();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Apply a list of insert/update/delete operations inside a single database transaction.
+     * If any operation fails the whole batch is rolled back, and listeners are notified
+     * once after the batch has been committed rather than once per operation.
+     */
+    @NonNull
     @Override
-    public int delete(@NonNull Uri uri, @Nullable String where, @Nullable String[] where_args) {
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        SQLiteDatabase garageDb = carDBHelper.getWritableDatabase();
+        boolean[] changed = new boolean[1];
+        ContentProviderResult[] results;
+
+        mBatchChanged.set(changed);
+        garageDb.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            garageDb.setTransactionSuccessful();
+        } finally {
+            garageDb.endTransaction();
+            mBatchChanged.remove();
+            //Operations in the batch only recorded their changes, so clear the cache now the
+            //transaction is over. Harmless if it rolled back, the next queries just miss
+            if (changed[0]) {
+                mQueryCache.invalidateAll();
+            }
+        }
+
+        if (changed[0]) {
+            getContext().getContentResolver().notifyChange(GarageContract.CarEntry.CONTENT_URI, null);
+        }
+
+        return results;
+    }
+
+    /**
+     * Counts the cars matching the where clause per group, with a GROUP BY so only the
+     * groups leave SQLite. The last path segment of the URI picks the grouping.
+     * Columns are the GarageContract.StatsEntry columns, all of them when none are given.
+     */
+    private static Cursor queryStats(SQLiteDatabase garageDb, Uri uri, @Nullable String[] columns,
+                                     @Nullable String where, @Nullable String[] where_args, @Nullable String sortOrder) {
+        String grouping = uri.getLastPathSegment();
+        String groupExpression;
+        String defaultSortOrder;
+        if (GarageContract.StatsEntry.GROUP_BY_MAKE.equals(grouping)) {
+            groupExpression = GarageContract.CarEntry.COLUMN_CAR_MAKE;
+            defaultSortOrder = GarageContract.StatsEntry.COLUMN_CAR_COUNT + " DESC, " + GarageContract.StatsEntry.COLUMN_GROUP;
+        } else if (GarageContract.StatsEntry.GROUP_BY_YEAR.equals(grouping)) {
+            long band = GarageContract.StatsEntry.DEFAULT_YEAR_BAND;
+            String bandParameter = uri.getQueryParameter(GarageContract.StatsEntry.QUERY_PARAMETER_BAND);
+            if (bandParameter != null) {
+                band = Long.parseLong(parseNumberParameter(uri, bandParameter));
+                if (band < 1) {
+                    throw new IllegalArgumentException("Year band must be at least 1 in " + uri);
+                }
+            }
+            //Integer division, so every year in a band maps to the first year of the band
+            groupExpression = "(" + GarageContract.CarEntry.COLUMN_CAR_YEAR + " / " + band + ") * " + band;
+            defaultSortOrder = GarageContract.StatsEntry.COLUMN_GROUP;
+        } else if (GarageContract.StatsEntry.GROUP_BY_COLOR.equals(grouping)) {
+            groupExpression = GarageContract.CarEntry.COLUMN_CAR_COLOR;
+            defaultSortOrder = GarageContract.StatsEntry.COLUMN_CAR_COUNT + " DESC, " + GarageContract.StatsEntry.COLUMN_GROUP;
+        } else {
+            throw new IllegalArgumentException("Cannot query unknown statistics " + uri);
+        }
+
+        HashMap<String, String> projection = new HashMap<>();
+        projection.put(GarageContract.StatsEntry._ID,
+                "min(" + GarageContract.CarEntry._ID + ") AS " + GarageContract.StatsEntry._ID);
+        projection.put(GarageContract.StatsEntry.COLUMN_GROUP,
+                groupExpression + " AS " + GarageContract.StatsEntry.COLUMN_GROUP);
+        projection.put(GarageContract.StatsEntry.COLUMN_CAR_COUNT,
+                "count(*) AS " + GarageContract.StatsEntry.COLUMN_CAR_COUNT);
+        projection.put(GarageContract.StatsEntry.COLUMN_OLDEST_YEAR,
+                "min(" + GarageContract.CarEntry.COLUMN_CAR_YEAR + ") AS " + GarageContract.StatsEntry.COLUMN_OLDEST_YEAR);
+        projection.put(GarageContract.StatsEntry.COLUMN_NEWEST_YEAR,
+                "max(" + GarageContract.CarEntry.COLUMN_CAR_YEAR + ") AS " + GarageContract.StatsEntry.COLUMN_NEWEST_YEAR);
+        boolean byColor = GarageContract.StatsEntry.GROUP_BY_COLOR.equals(grouping);
+        if (byColor) {
+            //Looked up once per group rather than joined to every car
+            projection.put(GarageContract.StatsEntry.COLUMN_COLOR_NAME, "(SELECT name FROM "
+                    + CarDBHelper.TABLE_COLORS + " WHERE " + CarDBHelper.TABLE_COLORS + "._id = "
+                    + groupExpression + ") AS " + GarageContract.StatsEntry.COLUMN_COLOR_NAME);
+        }
+        if (columns == null && byColor) {
+            columns = new String[] {GarageContract.StatsEntry._ID, GarageContract.StatsEntry.COLUMN_GROUP,
+                    GarageContract.StatsEntry.COLUMN_CAR_COUNT, GarageContract.StatsEntry.COLUMN_OLDEST_YEAR,
+                    GarageContract.StatsEntry.COLUMN_NEWEST_YEAR, GarageContract.StatsEntry.COLUMN_COLOR_NAME};
+        } else if (columns == null) {
+            columns = new String[] {GarageContract.StatsEntry._ID, GarageContract.StatsEntry.COLUMN_GROUP,
+                    GarageContract.StatsEntry.COLUMN_CAR_COUNT, GarageContract.StatsEntry.COLUMN_OLDEST_YEAR,
+                    GarageContract.StatsEntry.COLUMN_NEWEST_YEAR};
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(GarageContract.CarEntry.TABLE_NAME);
+        builder.appendWhere(CarDBHelper.WHERE_NOT_DELETED);
+        //Unknown columns are rejected rather than passed to SQLite
+        builder.setProjectionMap(projection);
+        return builder.query(garageDb, columns, where, where_args, groupExpression, null,
+                sortOrder != null ? sortOrder : defaultSortOrder);
+    }
+
+    /**
+     * Notify all listeners that the data at the given URI has changed, or when called
+     * from inside applyBatch(), remember the change until the batch has finished.
+     * Every write calls this once its changes are committed, which makes it the one place
+     * the query cache is invalidated.
+     */
+    private void notifyChange(Uri uri) {
+        boolean[] batchChanged = mBatchChanged.get();
+        if (batchChanged != null) {
+            batchChanged[0] = true;
+        } else {
+            if (sUriMatcher.match(uri) == CARS_ID_CODE) {
+                mQueryCache.invalidateCar(ContentUris.parseId(uri));
+            } else {
+                mQueryCache.invalidateAll();
+            }
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Provider calls that are not plain queries or writes.
+     * GarageContract.METHOD_QUERY_CACHE_STATS returns the query cache counters.
+     * GarageContract.METHOD_SAVE_SNAPSHOT and METHOD_RESTORE_SNAPSHOT save and restore
+     * every car through a CarSnapshot file.
+     * GarageContract.METHOD_PURGE_DELETED purges every soft deleted car at once.
+     * GarageContract.METHOD_RESTORE_DELETED undoes the soft delete of one car.
+     * GarageContract.METHOD_DEDUPE_PLATES merges cars sharing a plate key at once.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (GarageContract.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            return mQueryCache.stats();
+        }
+        if (GarageContract.METHOD_SAVE_SNAPSHOT.equals(method)) {
+            return saveSnapshot(snapshotFile(arg));
+        }
+        if (GarageContract.METHOD_RESTORE_SNAPSHOT.equals(method)) {
+            return restoreSnapshot(snapshotFile(arg));
+        }
+        if (GarageContract.METHOD_PURGE_DELETED.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(GarageContract.PURGED_CARS, carMaintenance.purgeAllNow());
+            return result;
+        }
+        if (GarageContract.METHOD_RESTORE_DELETED.equals(method)) {
+            return restoreDeleted(arg);
+        }
+        if (GarageContract.METHOD_DEDUPE_PLATES.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(GarageContract.DEDUPED_CARS, carMaintenance.dedupePlatesNow());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Clears the tombstone of a soft deleted car that was not purged yet. Its plate is still its
+     * own, the plate key index keeps tombstones and a live car claiming the plate purges them first
+     */
+    private Bundle restoreDeleted(@Nullable String arg) {
+        long id;
+        try {
+            id = Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Cannot restore car " + arg);
+        }
+        ContentValues live = new ContentValues(1);
+        live.put(GarageContract.CarEntry.COLUMN_CAR_DELETED, 0);
+        int rowsRestored = carDBHelper.getWritableDatabase().update(GarageContract.CarEntry.TABLE_NAME, live,
+                GarageContract.CarEntry._ID + "=? AND " + GarageContract.CarEntry.COLUMN_CAR_DELETED + ">0",
+                new String[] {String.valueOf(id)});
+        if (rowsRestored != 0) {
+            notifyChange(ContentUris.withAppendedId(GarageContract.CarEntry.CONTENT_URI, id));
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(GarageContract.RESTORED_CARS, rowsRestored);
+        return result;
+    }
+
+    /**
+     * Snapshots live in the app's private snapshots directory, a name can't point anywhere else
+     */
+    private File snapshotFile(@Nullable String name) {
+        if (name == null) {
+            name = GarageContract.DEFAULT_SNAPSHOT;
+        }
+        if (name.isEmpty() || name.contains("/") || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid snapshot name " + name);
+        }
+        File directory = new File(getContext().getFilesDir(), SNAPSHOT_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + directory);
+        }
+        return new File(directory, name + SNAPSHOT_EXTENSION);
+    }
+
+    private Bundle saveSnapshot(File file) {
+        Bundle result = new Bundle();
+        try {
+            result.putInt(GarageContract.SNAPSHOT_CARS,
+                    CarSnapshot.write(carDBHelper.getReadableDatabase(), file));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Saving snapshot " + file + " failed", e);
+            throw new IllegalStateException("Saving snapshot failed: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    /**
+     * Every car may have changed, so the whole cache goes and one table wide change is sent
+     */
+    private Bundle restoreSnapshot(File file) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("No snapshot " + file.getName());
+        }
+        Bundle result = new Bundle();
+        try {
+            result.putInt(GarageContract.SNAPSHOT_CARS,
+                    CarSnapshot.restore(carDBHelper.getWritableDatabase(), file));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Restoring snapshot " + file + " failed", e);
+            throw new IllegalStateException("Restoring snapshot failed: " + e.getMessage(), e);
+        }
+        notifyChange(GarageContract.CarEntry.CONTENT_URI);
+        return result;
+    }
+
+    /**
+     * Returns the ids of the rows matching the where clause, or null if there are more than
+     * MAX_ROW_NOTIFICATIONS of them. Must be called inside the same transaction as the write
+     * so the ids are exactly the rows that write is going to touch.
+     */
+    @Nullable
+    private static long[] findAffectedIds(SQLiteDatabase db, @Nullable String where, @Nullable String[] where_args) {
+        Cursor cursor = db.query(GarageContract.CarEntry.TABLE_NAME,
+                new String[] {GarageContract.CarEntry._ID}, where, where_args,
+                null, null, null, String.valueOf(MAX_ROW_NOTIFICATIONS + 1));
+        try {
+            if (cursor.getCount() > MAX_ROW_NOTIFICATIONS) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Notify listeners of each changed row's own URI, or of the whole table
+     * when the ids are unknown because too many rows changed
+     */
+    private void notifyRowsChanged(@Nullable long[] ids) {
+        if (ids == null) {
+            notifyChange(GarageContract.CarEntry.CONTENT_URI);
+            return;
+        }
+        for (long id : ids) {
+            notifyChange(ContentUris.withAppendedId(GarageContract.CarEntry.CONTENT_URI, id));
+        }
+    }
+
+    private int deleteCars(Uri uri, int match, @Nullable String where, @Nullable String[] where_args) {
         //Opening/getting writeable database
         SQLiteDatabase garageDb = carDBHelper.getWritableDatabase();
-        final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        //Soft deleted cars are only marked with the time, 0 removes them for good
+        long deletedAt = Boolean.parseBoolean(uri.getQueryParameter(
+                GarageContract.CarEntry.QUERY_PARAMETER_SOFT_DELETE)) ? System.currentTimeMillis() : 0;
 
         switch (match){
             case CARS_TABLE_CODE:
 
-                //Delete all rows in the entire table that match the where and where_args
-                rowsDeleted = garageDb.delete(GarageContract.CarEntry.TABLE_NAME, where, where_args);
+                //Delete all rows in the entire table that match the where and where_args a chunk
+                //at a time, remembering which ones they were so only those rows are notified
+                where = appendWhere(where, CarDBHelper.WHERE_NOT_DELETED);
+                long[] deletedIds = findAffectedIds(garageDb, where, where_args);
+                rowsDeleted = CarDBHelper.deleteCarsInChunks(garageDb, where, where_args,
+                        deleteChunkSize(uri), deletedAt);
 
                 if(rowsDeleted != 0){
-                    getContext().getContentResolver().notifyChange(uri, null);
+                    //Matching cars added between the chunks were deleted as well, then
+                    //the ids found up front are not the whole story
+                    notifyRowsChanged(deletedIds != null && deletedIds.length == rowsDeleted ? deletedIds : null);
                 }
-
-                return rowsDeleted;
+                break;
 
             case CARS_ID_CODE:
 
                 //Delete a single row in the table that matches the given unique ID in the URI
-                where = GarageContract.CarEntry._ID + "=?";
+                where = GarageContract.CarEntry._ID + "=? AND " + CarDBHelper.WHERE_NOT_DELETED;
                 where_args = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = garageDb.delete(GarageContract.CarEntry.TABLE_NAME, where, where_args);
+                if (deletedAt != 0) {
+                    ContentValues tombstone = new ContentValues(1);
+                    tombstone.put(GarageContract.CarEntry.COLUMN_CAR_DELETED, deletedAt);
+                    rowsDeleted = garageDb.update(GarageContract.CarEntry.TABLE_NAME, tombstone, where, where_args);
+                } else {
+                    rowsDeleted = garageDb.delete(GarageContract.CarEntry.TABLE_NAME, where, where_args);
+                }
 
                 if(rowsDeleted != 0){
-                    getContext().getContentResolver().notifyChange(uri, null);
+                    //The car's own URI, without the delete's query parameters
+                    notifyChange(ContentUris.withAppendedId(GarageContract.CarEntry.CONTENT_URI,
+                            ContentUris.parseId(uri)));
                 }
-
-                return rowsDeleted;
+                break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
+        if (rowsDeleted != 0 && deletedAt != 0) {
+            carMaintenance.schedule(CarMaintenance.TOMBSTONE_LIFETIME_MS);
+        }
+        return rowsDeleted;
     }
 
-    @Override
-    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String where, @Nullable String[] where_args) {
+    /**
+     * The number of cars a table delete removes per transaction
+     */
+    private static int deleteChunkSize(Uri uri) {
+        String chunkSize = uri.getQueryParameter(GarageContract.CarEntry.QUERY_PARAMETER_CHUNK_SIZE);
+        if (chunkSize == null) {
+            return GarageContract.CarEntry.DEFAULT_DELETE_CHUNK_SIZE;
+        }
+        long size = Long.parseLong(parseNumberParameter(uri, chunkSize));
+        if (size < 1 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Chunk size must be at least 1 in " + uri);
+        }
+        return (int) size;
+    }
+
+    private int updateCars(Uri uri, int match, @Nullable ContentValues values, @Nullable String where, @Nullable String[] where_args) {
 
-        final int match = sUriMatcher.match(uri);
         switch (match){
             case CARS_TABLE_CODE:
                 return updateCarHelper(uri, values, where, where_args);
 
             case CARS_ID_CODE:
+                //The editor saves every column of one car, which has its own compiled statement
+                if (where == null && values != null && isFullCar(values)) {
+                    return updateFullCar(uri, ContentUris.parseId(uri), values);
+                }
                 // For the CAR_ID code, extract out the ID from the URI,
                 // so we know which row to update. where clause will be "_id=?" and where
                 // arguments will be a String array containing the actual ID we want to match.
@@ -229,6 +1225,43 @@ public class GarageProvider extends ContentProvider {
 
     }
 
+    /**
+     * Overwrite every column of one car through CarWriteStatements.
+     * A single row needs no transaction, and the only URI to notify is the car's own.
+     */
+    private int updateFullCar(Uri uri, long id, ContentValues values) {
+        CarValidator.validateNewCar(values);
+        CarDBHelper.purgeDeletedPlate(carDBHelper.getWritableDatabase(),
+                values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE));
+        int rowsUpdated = carWriteStatements.updateById(id,
+                values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MAKE),
+                values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MODEL),
+                values.getAsInteger(GarageContract.CarEntry.COLUMN_CAR_YEAR),
+                values.getAsInteger(GarageContract.CarEntry.COLUMN_CAR_COLOR),
+                values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE));
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * True when the values hold exactly the columns of a car, with a numeric year and color,
+     * which is the shape CarWriteStatements binds without going through ContentValues again
+     */
+    private static boolean isFullCar(ContentValues values) {
+        if (values.size() != INSERT_CAR_COLUMNS.length) {
+            return false;
+        }
+        for (String column : INSERT_CAR_COLUMNS) {
+            if (values.get(column) == null) {
+                return false;
+            }
+        }
+        return values.getAsInteger(GarageContract.CarEntry.COLUMN_CAR_YEAR) != null
+                && values.getAsInteger(GarageContract.CarEntry.COLUMN_CAR_COLOR) != null;
+    }
+
     /**
      * Update cars in the database with the given content values. Apply the changes to the rows
      * specified in the where and where_args(which could be 0 or 1 or more cars).
@@ -239,42 +1272,34 @@ public class GarageProvider extends ContentProvider {
         if(values.size() == 0){
             return 0;
         }
-        //Yet since this is an update call, not all fields may be updated so check
-        //to see which new values were added/updated first, then sanity check it
-        if(values.containsKey(GarageContract.CarEntry.COLUMN_CAR_MAKE)){
-            String make = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MAKE);
-            if(make == null){
-                throw new IllegalArgumentException("Must enter car make");
-            }
-        }
-        if(values.containsKey(GarageContract.CarEntry.COLUMN_CAR_MAKE)){
-            String model = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_MODEL);
-            if(model == null){
-                throw new IllegalArgumentException("Must enter car model");
-            }
-        }
-        if(values.containsKey(GarageContract.CarEntry.COLUMN_CAR_MAKE)){
-            String year = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_YEAR);
-            if(year == null){
-                throw new IllegalArgumentException("Must enter car year");
-            }
-        }
-        if(values.containsKey(GarageContract.CarEntry.COLUMN_CAR_MAKE)){
-            String plate = values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE);
-            if(plate == null){
-                throw new IllegalArgumentException("Must enter car license plate");
-            }
-        }
+        //Yet since this is an update call, not all fields may be updated so only
+        //the new values that were added/updated are sanity checked
+        CarValidator.validateChanges(values);
 
         //Proceed to updating data by opening/getting writeable database
         SQLiteDatabase garageDb = carDBHelper.getWritableDatabase();
+        //Soft deleted cars cannot be changed, and give up their plate to cars that can
+        where = appendWhere(where, CarDBHelper.WHERE_NOT_DELETED);
+        CarDBHelper.purgeDeletedPlate(garageDb, values.getAsString(GarageContract.CarEntry.COLUMN_CAR_PLATE));
+        //A changed plate changes its key with it
+        values = withPlateKey(values);
 
-
-        //Returns the number of database rows affected by the update statement
-        int rowsUpdated = garageDb.update(GarageContract.CarEntry.TABLE_NAME, values, where, where_args);
+        int rowsUpdated;
+        long[] updatedIds;
+        garageDb.beginTransactionNonExclusive();
+        try {
+            //Find the rows before updating them, the where clause may no longer
+            //match once their values have changed
+            updatedIds = findAffectedIds(garageDb, where, where_args);
+            //Returns the number of database rows affected by the update statement
+            rowsUpdated = garageDb.update(GarageContract.CarEntry.TABLE_NAME, values, where, where_args);
+            garageDb.setTransactionSuccessful();
+        } finally {
+            garageDb.endTransaction();
+        }
 
         if(rowsUpdated !=0){
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyRowsChanged(updatedIds);
         }
 
         return rowsUpdated;
@@ -0,0 +1,132 @@
+package com.example.android.monstergarage.table_data;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from long keys to non-negative int values, stored in two flat arrays so neither
+ * lookups nor inserts box a key or allocate an entry.
+ *
+ * Open addressing with linear probing over a power of two table kept at most 3/4 full.
+ * Removing a key shifts the keys probed after it back into the gap, so there are no
+ * deleted markers and lookups never slow down as keys come and go.
+ */
+final class LongIntMap {
+
+    //Returned by get() and remove() for a key that is not in the map, and marks an empty slot
+    static final int NO_VALUE = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mMask;
+    //Keeps the top bits of the hash, as many as index the table
+    private int mShift;
+    private int mSize;
+
+    LongIntMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * The value of the key, or NO_VALUE when it is not in the map
+     */
+    int get(long key) {
+        for (int slot = slotOf(key); ; slot = (slot + 1) & mMask) {
+            int value = mValues[slot];
+            if (value == NO_VALUE || mKeys[slot] == key) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Maps the key to the value, which must not be negative
+     */
+    void put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        int slot = slotOf(key);
+        while (mValues[slot] != NO_VALUE) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+        if (mSize * 4 > mValues.length * 3) {
+            grow();
+        }
+    }
+
+    /**
+     * Removes the key, returning its value or NO_VALUE when it was not in the map
+     */
+    int remove(long key) {
+        int hole = slotOf(key);
+        while (mValues[hole] != NO_VALUE && mKeys[hole] != key) {
+            hole = (hole + 1) & mMask;
+        }
+        int removed = mValues[hole];
+        if (removed == NO_VALUE) {
+            return NO_VALUE;
+        }
+
+        //Move back every following key whose home slot is not between the hole and itself
+        for (int next = (hole + 1) & mMask; mValues[next] != NO_VALUE; next = (next + 1) & mMask) {
+            int home = slotOf(mKeys[next]);
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                hole = next;
+            }
+        }
+        mValues[hole] = NO_VALUE;
+        mSize--;
+        return removed;
+    }
+
+    void clear() {
+        Arrays.fill(mValues, NO_VALUE);
+        mSize = 0;
+    }
+
+    /**
+     * Fibonacci hashing, the top bits of the product are well mixed even for sequential ids
+     */
+    private int slotOf(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mShift);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mValues, NO_VALUE);
+        mMask = capacity - 1;
+        mShift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        allocate(values.length * 2);
+        mSize = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != NO_VALUE) {
+                put(keys[i], values[i]);
+            }
+        }
+    }
+}
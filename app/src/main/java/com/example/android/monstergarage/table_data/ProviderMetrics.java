@@ -0,0 +1,180 @@
+package com.example.android.monstergarage.table_data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.monstergarage.table_data.GarageContract.MetricsEntry;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call counts, row counts, error counts and latency histograms for GarageProvider,
+ * kept per operation and per URI match code.
+ *
+ * Recording never takes a lock: every counter is a slot in an AtomicLongArray, so binder
+ * threads calling the provider at the same time never wait on each other. A snapshot read
+ * while calls are being recorded may be a few calls out of step between counters.
+ *
+ * Latencies go into power of two buckets of microseconds, bucket i counting calls that took
+ * less than 2^i microseconds, with the last bucket counting everything slower.
+ */
+final class ProviderMetrics {
+
+    //Operations that are measured
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+    static final int BULK_INSERT = 4;
+    private static final String[] OPERATION_NAMES = {"query", "insert", "update", "delete", "bulk_insert"};
+
+    //URI match codes are numbered from FIRST_MATCH_CODE up, anything else shares the last slot
+    private static final int FIRST_MATCH_CODE = 100;
+    private static final int MATCH_SLOTS = 8;
+    private static final int UNKNOWN_MATCH_SLOT = MATCH_SLOTS - 1;
+
+    //Bucket 0 is under 1us, bucket 21 is everything from about 1 second up
+    private static final int BUCKETS = 22;
+
+    private static final int SERIES = OPERATION_NAMES.length * MATCH_SLOTS;
+
+    private final AtomicLongArray mCalls = new AtomicLongArray(SERIES);
+    private final AtomicLongArray mErrors = new AtomicLongArray(SERIES);
+    private final AtomicLongArray mRows = new AtomicLongArray(SERIES);
+    private final AtomicLongArray mTotalNanos = new AtomicLongArray(SERIES);
+    private final AtomicLongArray mMaxNanos = new AtomicLongArray(SERIES);
+    private final AtomicLongArray mBuckets = new AtomicLongArray(SERIES * BUCKETS);
+
+    /**
+     * Records a call that completed, started at the given System.nanoTime()
+     */
+    void record(int operation, int matchCode, long startNanos, int rows) {
+        int series = series(operation, matchCode);
+        long nanos = System.nanoTime() - startNanos;
+        mCalls.incrementAndGet(series);
+        mRows.addAndGet(series, rows);
+        mTotalNanos.addAndGet(series, nanos);
+        mBuckets.incrementAndGet(series * BUCKETS + bucket(nanos));
+
+        long max = mMaxNanos.get(series);
+        while (nanos > max && !mMaxNanos.compareAndSet(series, max, nanos)) {
+            max = mMaxNanos.get(series);
+        }
+    }
+
+    /**
+     * Records a call that failed, its latency still goes into the histogram
+     */
+    void recordError(int operation, int matchCode, long startNanos) {
+        mErrors.incrementAndGet(series(operation, matchCode));
+        record(operation, matchCode, startNanos, 0);
+    }
+
+    private static int series(int operation, int matchCode) {
+        int slot = matchCode - FIRST_MATCH_CODE;
+        if (slot < 0 || slot >= UNKNOWN_MATCH_SLOT) {
+            slot = UNKNOWN_MATCH_SLOT;
+        }
+        return operation * MATCH_SLOTS + slot;
+    }
+
+    private static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        //Number of bits needed for the microseconds, so under 1us is 0, 1us is 1, 2-3us is 2...
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Returns one row per operation and match code that has been called,
+     * with the columns listed in GarageContract.MetricsEntry
+     */
+    Cursor toCursor() {
+        MatrixCursor cursor = new MatrixCursor(MetricsEntry.COLUMNS);
+        for (int series = 0; series < SERIES; series++) {
+            long calls = mCalls.get(series);
+            if (calls == 0) {
+                continue;
+            }
+            long[] buckets = readBuckets(series);
+            cursor.addRow(new Object[] {
+                    OPERATION_NAMES[series / MATCH_SLOTS],
+                    matchCodeOf(series),
+                    calls,
+                    mErrors.get(series),
+                    mRows.get(series),
+                    mTotalNanos.get(series) / 1000,
+                    mMaxNanos.get(series) / 1000,
+                    percentileMicros(buckets, 50),
+                    percentileMicros(buckets, 90),
+                    percentileMicros(buckets, 99)});
+        }
+        return cursor;
+    }
+
+    /**
+     * Prints the same figures as toCursor() as a table, plus the raw histograms
+     */
+    void dump(PrintWriter writer) {
+        writer.println("GarageProvider metrics (times in microseconds, percentiles are bucket upper bounds)");
+        writer.println("operation    match  calls  errors  rows  total  max  p50  p90  p99");
+        for (int series = 0; series < SERIES; series++) {
+            long calls = mCalls.get(series);
+            if (calls == 0) {
+                continue;
+            }
+            long[] buckets = readBuckets(series);
+            writer.println(String.format("%-12s %5d %6d %7d %5d %6d %4d %4d %4d %4d",
+                    OPERATION_NAMES[series / MATCH_SLOTS], matchCodeOf(series), calls,
+                    mErrors.get(series), mRows.get(series), mTotalNanos.get(series) / 1000,
+                    mMaxNanos.get(series) / 1000, percentileMicros(buckets, 50),
+                    percentileMicros(buckets, 90), percentileMicros(buckets, 99)));
+
+            StringBuilder histogram = new StringBuilder("    histogram:");
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (buckets[bucket] != 0) {
+                    histogram.append(" <").append(1L << bucket).append("us=").append(buckets[bucket]);
+                }
+            }
+            writer.println(histogram);
+        }
+    }
+
+    private long[] readBuckets(int series) {
+        long[] buckets = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            buckets[bucket] = mBuckets.get(series * BUCKETS + bucket);
+        }
+        return buckets;
+    }
+
+    //The match code the series belongs to, or -1 for the shared slot of unknown codes
+    private static int matchCodeOf(int series) {
+        int slot = series % MATCH_SLOTS;
+        return slot == UNKNOWN_MATCH_SLOT ? -1 : FIRST_MATCH_CODE + slot;
+    }
+
+    /**
+     * The upper bound of the bucket holding the given percentile, in microseconds
+     */
+    private static long percentileMicros(long[] buckets, int percentile) {
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        //Rank of the wanted call, rounded up so p99 of a single call is that call
+        long rank = (total * percentile + 99) / 100;
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return 1L << bucket;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+}
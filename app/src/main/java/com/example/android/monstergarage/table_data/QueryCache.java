@@ -0,0 +1,231 @@
+package com.example.android.monstergarage.table_data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An in-memory LRU cache of GarageProvider query results.
+ *
+ * Each entry is a copy of every row of a small result, keyed by everything that decides what a
+ * query returns (URI, projection, selection, selection args and sort order). A cache hit is
+ * answered with a new MatrixCursor over the copied rows without touching SQLite.
+ *
+ * The provider invalidates entries after each of its writes has committed: a single car change
+ * drops the entries for that car plus every list entry, anything else drops everything.
+ * A query that was already running when a write committed is never stored, because every
+ * invalidation moves the cache on to a new generation.
+ *
+ * All methods are safe to call from any binder thread.
+ */
+final class QueryCache {
+
+    //Results with more rows than this are returned straight from SQLite and never copied
+    static final int MAX_CACHED_ROWS = 250;
+    //Total number of cells (rows x columns) held by the cache before the least recently used go
+    private static final int MAX_CACHED_CELLS = 20000;
+
+    /**
+     * Everything that decides the result of a query
+     */
+    static final class Key {
+        final String uri;
+        final String[] projection;
+        final String selection;
+        final String[] selectionArgs;
+        final String sortOrder;
+        //The car id for a single car query, or -1 for a list query
+        final long carId;
+        private final int mHashCode;
+
+        Key(String uri, @Nullable String[] projection, @Nullable String selection,
+            @Nullable String[] selectionArgs, @Nullable String sortOrder, long carId) {
+            this.uri = uri;
+            this.projection = projection;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+            this.sortOrder = sortOrder;
+            this.carId = carId;
+
+            int hash = uri.hashCode();
+            hash = 31 * hash + Arrays.hashCode(projection);
+            hash = 31 * hash + (selection == null ? 0 : selection.hashCode());
+            hash = 31 * hash + Arrays.hashCode(selectionArgs);
+            hash = 31 * hash + (sortOrder == null ? 0 : sortOrder.hashCode());
+            mHashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return mHashCode == key.mHashCode
+                    && uri.equals(key.uri)
+                    && Arrays.equals(projection, key.projection)
+                    && equalOrBothNull(selection, key.selection)
+                    && Arrays.equals(selectionArgs, key.selectionArgs)
+                    && equalOrBothNull(sortOrder, key.sortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        private static boolean equalOrBothNull(String first, String second) {
+            return first == null ? second == null : first.equals(second);
+        }
+    }
+
+    /**
+     * The copied rows of one query result, never modified once created
+     */
+    private static final class Snapshot {
+        final String[] columnNames;
+        final Object[][] rows;
+
+        Snapshot(String[] columnNames, Object[][] rows) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+        }
+    }
+
+    private final LruCache<Key, Snapshot> mCache = new LruCache<Key, Snapshot>(MAX_CACHED_CELLS) {
+        @Override
+        protected int sizeOf(Key key, Snapshot snapshot) {
+            //Count each entry as at least one cell so empty results still take up room
+            return Math.max(1, snapshot.rows.length * snapshot.columnNames.length);
+        }
+    };
+
+    //Guarded by this
+    private long mGeneration;
+    private long mInvalidationCount;
+    private long mStalePutCount;
+    private long mTooLargeCount;
+
+    /**
+     * Returns the generation to pass to put() for a query about to be run
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns a new cursor over the cached result for the key, or null on a cache miss
+     */
+    @Nullable
+    Cursor get(Key key) {
+        Snapshot snapshot = mCache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        MatrixCursor cursor = new MatrixCursor(snapshot.columnNames, snapshot.rows.length);
+        for (Object[] row : snapshot.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Copies a query result into the cache. The cursor is left positioned before its first row.
+     * Nothing is stored if the result is too large, or if the cache was invalidated after
+     * the given generation was read, since the result may then be out of date.
+     */
+    void put(Key key, Cursor cursor, long generation) {
+        int rowCount = cursor.getCount();
+        if (rowCount > MAX_CACHED_ROWS) {
+            synchronized (this) {
+                mTooLargeCount++;
+            }
+            return;
+        }
+
+        int columnCount = cursor.getColumnCount();
+        Object[][] rows = new Object[rowCount][];
+        cursor.moveToPosition(-1);
+        for (int row = 0; cursor.moveToNext(); row++) {
+            Object[] values = new Object[columnCount];
+            for (int column = 0; column < columnCount; column++) {
+                values[column] = readValue(cursor, column);
+            }
+            rows[row] = values;
+        }
+        cursor.moveToPosition(-1);
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                mStalePutCount++;
+                return;
+            }
+            mCache.put(key, new Snapshot(cursor.getColumnNames(), rows));
+        }
+    }
+
+    private static Object readValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Drops the entries for one car and every list entry, since any list may hold that car
+     */
+    synchronized void invalidateCar(long carId) {
+        mGeneration++;
+        mInvalidationCount++;
+        for (Map.Entry<Key, Snapshot> entry : mCache.snapshot().entrySet()) {
+            long entryCarId = entry.getKey().carId;
+            if (entryCarId < 0 || entryCarId == carId) {
+                mCache.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Drops every entry. Removed one by one, evictAll() would count each of them as evicted
+     * for lack of room, which is what QUERY_CACHE_EVICTIONS is there to tell apart
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mInvalidationCount++;
+        for (Key key : mCache.snapshot().keySet()) {
+            mCache.remove(key);
+        }
+    }
+
+    /**
+     * Returns the cache counters, keyed by the GarageContract.QUERY_CACHE_* constants
+     */
+    synchronized Bundle stats() {
+        Bundle stats = new Bundle();
+        stats.putInt(GarageContract.QUERY_CACHE_HITS, mCache.hitCount());
+        stats.putInt(GarageContract.QUERY_CACHE_MISSES, mCache.missCount());
+        stats.putInt(GarageContract.QUERY_CACHE_EVICTIONS, mCache.evictionCount());
+        stats.putInt(GarageContract.QUERY_CACHE_ENTRIES, mCache.snapshot().size());
+        stats.putInt(GarageContract.QUERY_CACHE_CELLS, mCache.size());
+        stats.putLong(GarageContract.QUERY_CACHE_INVALIDATIONS, mInvalidationCount);
+        stats.putLong(GarageContract.QUERY_CACHE_STALE_PUTS, mStalePutCount);
+        stats.putLong(GarageContract.QUERY_CACHE_TOO_LARGE, mTooLargeCount);
+        return stats;
+    }
+}